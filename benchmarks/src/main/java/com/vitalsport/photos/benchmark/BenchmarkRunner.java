@@ -0,0 +1,107 @@
+package com.vitalsport.photos.benchmark;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Runs the benchmarks with the usual JMH command line. With {@code -Dbaseline=<results.json>} the scores are
+ * compared with a previous JMH JSON result and the run fails when any benchmark got slower than its tolerance allows
+ * and by more than the score errors of both runs, so that noise between forks isn't reported. The tolerance is a
+ * fraction, {@code -Dtolerance.<Class>.<method>} for one benchmark, else {@code -Dtolerance}, else 0.2.
+ */
+public final class BenchmarkRunner {
+
+    private static final double DEFAULT_TOLERANCE = 0.2;
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        String baseline = System.getProperty("baseline");
+        if (baseline == null) {
+            Main.main(args);
+            return;
+        }
+
+        Collection<RunResult> results = new Runner(new CommandLineOptions(args)).run();
+        int regressions = compare(results, readBaseline(new File(baseline)));
+        if (regressions > 0) {
+            System.err.println(regressions + " benchmark(s) regressed beyond their tolerance.");
+            System.exit(1);
+        }
+    }
+
+    private static Map<String, JsonNode> readBaseline(File file) throws IOException {
+        Map<String, JsonNode> baseline = new HashMap<>();
+        for (JsonNode result : new ObjectMapper().readTree(file)) {
+            Map<String, String> params = new TreeMap<>();
+            JsonNode paramsNode = result.path("params");
+            paramsNode.fieldNames().forEachRemaining(name -> params.put(name, paramsNode.get(name).asText()));
+            baseline.put(key(result.get("benchmark").asText(), Mode.deepValueOf(result.get("mode").asText()), params),
+                    result.get("primaryMetric"));
+        }
+        return baseline;
+    }
+
+    private static int compare(Collection<RunResult> results, Map<String, JsonNode> baseline) {
+        int regressions = 0;
+        for (RunResult result : results) {
+            BenchmarkParams params = result.getParams();
+            Map<String, String> values = new TreeMap<>();
+            for (String name : params.getParamsKeys()) {
+                values.put(name, params.getParam(name));
+            }
+            String key = key(params.getBenchmark(), params.getMode(), values);
+            JsonNode previous = baseline.get(key);
+            if (previous == null) {
+                System.out.println("NEW        " + key);
+                continue;
+            }
+
+            double score = result.getPrimaryResult().getScore();
+            double before = previous.get("score").asDouble();
+            double error = error(result.getPrimaryResult().getScoreError()) + error(previous.path("scoreError").asDouble());
+            // throughput should not drop, times should not grow
+            double loss = params.getMode() == Mode.Throughput ? before - score : score - before;
+            double change = loss / before;
+            boolean regressed = change > tolerance(params.getBenchmark()) && loss > error;
+            if (regressed) {
+                regressions++;
+            }
+            System.out.println(String.format("%-10s %s: %.3f -> %.3f +- %.3f %s (%+.1f%%)",
+                    regressed ? "REGRESSED" : "OK", key, before, score, error,
+                    result.getPrimaryResult().getScoreUnit(), change * 100));
+        }
+        return regressions;
+    }
+
+    private static double tolerance(String benchmark) {
+        String method = benchmark.substring(benchmark.lastIndexOf('.', benchmark.lastIndexOf('.') - 1) + 1);
+        String tolerance = System.getProperty("tolerance." + method, System.getProperty("tolerance"));
+        return tolerance == null ? DEFAULT_TOLERANCE : Double.parseDouble(tolerance);
+    }
+
+    /**
+     * A single measured iteration has no error, which JMH reports as NaN.
+     */
+    private static double error(double scoreError) {
+        return Double.isNaN(scoreError) ? 0 : scoreError;
+    }
+
+    private static String key(String benchmark, Mode mode, Map<String, String> params) {
+        return benchmark + ":" + mode.shortLabel() + params;
+    }
+}
@@ -0,0 +1,21 @@
+package com.vitalsport.photos.benchmark;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    static Path createDirectory(String prefix) throws IOException {
+        return Files.createTempDirectory("vitalsport-" + prefix + "-");
+    }
+
+    static void deleteDirectory(Path directory) throws IOException {
+        FileUtils.deleteDirectory(directory.toFile());
+    }
+}
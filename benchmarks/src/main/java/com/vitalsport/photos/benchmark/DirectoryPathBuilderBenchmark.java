@@ -0,0 +1,73 @@
+package com.vitalsport.photos.benchmark;
+
+import com.vitalsport.photos.builder.DirectoryPathBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds image paths in the flat and the sharded layout. The sharded one also checks for a legacy user directory
+ * until the layout migration has finished, so both states are measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Benchmark)
+public class DirectoryPathBuilderBenchmark {
+
+    private Path directory;
+    private DirectoryPathBuilder flat;
+    private DirectoryPathBuilder sharded;
+    private DirectoryPathBuilder migrated;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Benchmarks.createDirectory("path-builder");
+        String root = directory.toString() + "/";
+        flat = new DirectoryPathBuilder(root + "photos/", "all/", root + "renditions/");
+        sharded = new DirectoryPathBuilder(root + "photos/", "all/", root + "renditions/", 2,
+                root + "photos-sharded/", root + "renditions-sharded/");
+        migrated = new DirectoryPathBuilder(root + "photos/", "all/", root + "renditions/", 2,
+                root + "photos-sharded/", root + "renditions-sharded/");
+        migrated.setLegacyLayoutMigrated(true);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Benchmarks.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public String flatImagePath() {
+        return flat.getImagePath("userId", "album", "image.jpg");
+    }
+
+    @Benchmark
+    public String shardedImagePath() {
+        return sharded.getImagePath("userId", "album", "image.jpg");
+    }
+
+    @Benchmark
+    public String migratedImagePath() {
+        return migrated.getImagePath("userId", "album", "image.jpg");
+    }
+
+    @Benchmark
+    public String renditionPath() {
+        return migrated.getRenditionPath("userId", "album", "image.jpg", 512);
+    }
+}
@@ -0,0 +1,145 @@
+package com.vitalsport.photos.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.vitalsport.photos.builder.DirectoryPathBuilder;
+import com.vitalsport.photos.builder.ImageResponseBuilder;
+import com.vitalsport.photos.index.LogMetadataIndex;
+import com.vitalsport.photos.index.SimilarityIndex;
+import com.vitalsport.photos.io.BaseImageHandler;
+import com.vitalsport.photos.io.CachingImageHandler;
+import com.vitalsport.photos.io.ImageHandler;
+import com.vitalsport.photos.io.ImageScaler;
+import com.vitalsport.photos.service.AlbumLocks;
+import com.vitalsport.photos.service.PhotoService;
+import com.vitalsport.photos.service.QuotaService;
+import com.vitalsport.photos.service.RenditionService;
+import com.vitalsport.photos.service.TrashService;
+import com.vitalsport.photos.validator.InputValidator;
+import com.vitalsport.photos.web.PhotoController;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.setup.MockMvcBuilders.standaloneSetup;
+
+/**
+ * Serves an image through {@link PhotoController#getImage} with MockMvc on top of the real service and handler
+ * stack, with and without the in-memory cache. Handlers run on the calling thread instead of the I/O executor;
+ * the body is still streamed from MockMvc's own async thread, as it would be from a servlet container's.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Thread)
+public class GetImageBenchmark {
+
+    private static final String userId = "userId";
+    private static final String album = "album";
+    private static final String image = "image.jpg";
+
+    @Param({"false", "true"})
+    private boolean cached;
+
+    @Param({"16384", "1048576"})
+    private int size;
+
+    private Path directory;
+    private RenditionService renditionService;
+    private MockMvc mockMvc;
+    private RequestBuilder request;
+    private RequestBuilder conditionalRequest;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Benchmarks.createDirectory("get-image");
+        String root = directory.toString() + "/";
+        DirectoryPathBuilder directoryPathBuilder = new DirectoryPathBuilder(root + "photos/", "all/",
+                root + "renditions/");
+        ImageHandler imageHandler = cached
+                ? new CachingImageHandler(new BaseImageHandler(), 64 * 1024 * 1024, 2 * 1024 * 1024, false)
+                : new BaseImageHandler();
+        SimilarityIndex similarityIndex = new SimilarityIndex(root + "similarity.log", 10000);
+        similarityIndex.open();
+        AlbumLocks albumLocks = new AlbumLocks(256);
+        LogMetadataIndex metadataIndex = new LogMetadataIndex(directoryPathBuilder, imageHandler, root + "index.log",
+                10000, false);
+        renditionService = new RenditionService(directoryPathBuilder, imageHandler, new ImageScaler(),
+                similarityIndex, metadataIndex, albumLocks, new int[]{128, 512}, 1, 1, 100, new String[0], 0.8f);
+        PhotoService photoService = new PhotoService(directoryPathBuilder, new InputValidator(), imageHandler,
+                renditionService, metadataIndex, similarityIndex, new QuotaService(metadataIndex, 0, 0, 1, 1),
+                albumLocks, new TrashService(directoryPathBuilder, imageHandler, 0, 0, 1000));
+
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        imageHandler.upload(directoryPathBuilder.getImagePath(userId, album, image), bytes);
+
+        PhotoController photoController = new PhotoController();
+        setField(photoController, "photoService", photoService);
+        setField(photoController, "imageResponseBuilder", new ImageResponseBuilder());
+        setField(photoController, "objectMapper", new ObjectMapper());
+        setField(photoController, "ioExecutor", new SyncTaskExecutor());
+        mockMvc = standaloneSetup(photoController).build();
+
+        request = get("/{userId}/image", userId).param("album", album).param("image", image);
+        String entityTag = imageHandler.download(directoryPathBuilder.getImagePath(userId, album, image))
+                .getEntityTag();
+        conditionalRequest = get("/{userId}/image", userId).param("album", album).param("image", image)
+                .header("If-None-Match", entityTag);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        renditionService.shutdown();
+        Benchmarks.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public int getImage() throws Exception {
+        return perform(request).getResponse().getContentAsByteArray().length;
+    }
+
+    @Benchmark
+    public int getImageNotModified() throws Exception {
+        return perform(conditionalRequest).getResponse().getStatus();
+    }
+
+    private MvcResult perform(RequestBuilder requestBuilder) throws Exception {
+        MvcResult started = mockMvc.perform(requestBuilder).andReturn();
+        MvcResult result = mockMvc.perform(asyncDispatch(started)).andReturn();
+        if (result.getRequest().isAsyncStarted()) {
+            // MvcResult#getAsyncResult polls in 100ms steps, which would dwarf the request itself
+            MockAsyncContext asyncContext = (MockAsyncContext) result.getRequest().getAsyncContext();
+            CountDownLatch streamed = new CountDownLatch(1);
+            asyncContext.addDispatchHandler(streamed::countDown);
+            if (asyncContext.getDispatchedPath() == null) {
+                streamed.await();
+            }
+        }
+        return result;
+    }
+}
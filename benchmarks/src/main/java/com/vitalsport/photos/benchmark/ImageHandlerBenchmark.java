@@ -0,0 +1,77 @@
+package com.vitalsport.photos.benchmark;
+
+import com.vitalsport.photos.io.BaseImageHandler;
+import com.vitalsport.photos.model.ImageHolder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes and reads whole images through {@link BaseImageHandler}, which is what every upload and every cache miss
+ * costs. Reads drain the resource so that the file is actually read, not just opened.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Thread)
+public class ImageHandlerBenchmark {
+
+    @Param({"16384", "1048576", "16777216"})
+    private int size;
+
+    private BaseImageHandler imageHandler = new BaseImageHandler();
+    private Path directory;
+    private byte[] image;
+    private String uploadPath;
+    private String downloadPath;
+    private byte[] buffer = new byte[8192];
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Benchmarks.createDirectory("image-handler");
+        image = new byte[size];
+        new Random(size).nextBytes(image);
+        uploadPath = directory.resolve("album/upload.jpg").toString();
+        downloadPath = directory.resolve("album/download.jpg").toString();
+        imageHandler.upload(downloadPath, image);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Benchmarks.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public void upload() throws IOException {
+        imageHandler.upload(uploadPath, image);
+    }
+
+    @Benchmark
+    public void download(Blackhole blackhole) throws IOException {
+        ImageHolder imageHolder = imageHandler.download(downloadPath);
+        try (InputStream input = imageHolder.getResource().getInputStream()) {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                blackhole.consume(read);
+            }
+        }
+    }
+}
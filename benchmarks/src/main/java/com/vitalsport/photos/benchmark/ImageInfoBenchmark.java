@@ -0,0 +1,60 @@
+package com.vitalsport.photos.benchmark;
+
+import com.vitalsport.photos.io.BaseImageHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lists an album directory with {@link BaseImageHandler#list}, as album and photo listings do when the
+ * metadata index can't answer. Named after the listing it replaced so that results stay comparable to the baseline.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Benchmark)
+public class ImageInfoBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    private int entries;
+
+    private BaseImageHandler imageHandler = new BaseImageHandler();
+    private Path directory;
+    private Path album;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Benchmarks.createDirectory("image-info");
+        album = Files.createDirectories(directory.resolve("album"));
+        for (int i = 0; i < entries; i++) {
+            Files.createFile(album.resolve("image-" + i + ".jpg"));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Benchmarks.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public Collection<String> getImageInfo() throws IOException {
+        return imageHandler.list(album.toString());
+    }
+}
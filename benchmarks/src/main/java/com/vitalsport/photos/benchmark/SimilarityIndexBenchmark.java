@@ -0,0 +1,75 @@
+package com.vitalsport.photos.benchmark;
+
+import com.vitalsport.photos.index.SimilarityIndex;
+import com.vitalsport.photos.model.SimilarImage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Searches for similar images among a million random hashes, spread over a thousand users or all owned by one,
+ * at the default and the maximum distance.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgs = "-Xmx2g")
+@State(Scope.Benchmark)
+public class SimilarityIndexBenchmark {
+
+    private static final int IMAGES = 1000000;
+
+    @Param({"1", "1000"})
+    private int users;
+
+    @Param({"10", "15"})
+    private int distance;
+
+    private Path directory;
+    private SimilarityIndex similarityIndex;
+    private long[] queries;
+    private int query;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Benchmarks.createDirectory("similarity");
+        similarityIndex = new SimilarityIndex(directory.resolve("similarity.log").toString(), 10000);
+        similarityIndex.open();
+        Random random = new Random(IMAGES);
+        for (int image = 0; image < IMAGES; image++) {
+            similarityIndex.putImage("user" + image % users, "album", "image" + image + ".jpg", random.nextLong());
+        }
+        queries = new long[1024];
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = random.nextLong();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        similarityIndex.close();
+        Benchmarks.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public List<SimilarImage> findSimilar() {
+        query = (query + 1) % queries.length;
+        return similarityIndex.findSimilar("user0", queries[query], distance);
+    }
+}
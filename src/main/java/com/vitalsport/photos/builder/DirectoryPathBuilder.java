@@ -1,23 +1,80 @@
 package com.vitalsport.photos.builder;
 
+import com.vitalsport.photos.io.ImageHandler;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Maps users, albums and images to paths. With sharding enabled user directories live under
+ * {@code shardedPath/ab/cd/userId}, where the prefixes are hex digits of a userId hash. Users that have not been
+ * migrated yet keep resolving to the flat legacy layout until {@link #setLegacyLayoutMigrated} is called.
+ * With several volumes a user directory lives on the volume owning the user in the {@link VolumeRing}; a user still
+ * stored on its previous volume keeps resolving there until it is moved or {@link #setVolumesBalanced} is called.
+ */
 @Component
 public class DirectoryPathBuilder {
 
     private static final char DELIMITER = '/';
+    private static final int MAX_SHARD_LEVELS = 4;
+    private static final String FULL_SIZE = "full";
+    private static final String TRASH = ".trash";
 
     private String path;
     private String defaultAlbum;
+    private String renditionsPath;
+    private int shardLevels;
+    private String shardedPath;
+    private String shardedRenditionsPath;
+    private VolumeRing volumeRing;
+    private volatile boolean legacyLayoutMigrated;
+    private volatile boolean volumesBalanced;
+
+    public DirectoryPathBuilder(String path, String defaultAlbum, String renditionsPath) {
+        this(path, defaultAlbum, renditionsPath, 0, null, null);
+    }
+
+    public DirectoryPathBuilder(String path, String defaultAlbum, String renditionsPath,
+                                int shardLevels, String shardedPath, String shardedRenditionsPath) {
+        this(path, defaultAlbum, renditionsPath, shardLevels, shardedPath, shardedRenditionsPath,
+                new VolumeRing(Collections.emptyList(), 1));
+    }
 
     @Autowired
     public DirectoryPathBuilder(@Value("${photos.path}") String path,
-                                @Value("${photos.defaultAlbum}") String defaultAlbum) {
+                                @Value("${photos.defaultAlbum}") String defaultAlbum,
+                                @Value("${photos.renditions.path}") String renditionsPath,
+                                @Value("${photos.layout.shardLevels}") int shardLevels,
+                                @Value("${photos.layout.path}") String shardedPath,
+                                @Value("${photos.layout.renditionsPath}") String shardedRenditionsPath,
+                                VolumeRing volumeRing) {
+        if (shardLevels < 0 || shardLevels > MAX_SHARD_LEVELS) {
+            throw new IllegalArgumentException("photos.layout.shardLevels should be between 0 and " + MAX_SHARD_LEVELS);
+        }
         this.path = path;
         this.defaultAlbum = defaultAlbum;
+        this.renditionsPath = renditionsPath;
+        this.shardLevels = shardLevels;
+        this.shardedPath = shardedPath;
+        this.shardedRenditionsPath = shardedRenditionsPath;
+        this.volumeRing = volumeRing;
     }
 
     public String getAllAlbumsPath(String userId) {
@@ -37,6 +94,155 @@ public class DirectoryPathBuilder {
         return pathBuilder.toString();
     }
 
+    /**
+     * Returns the album name as it appears on disk, resolving the default album.
+     */
+    public String getAlbumName(String album) {
+        return StringUtils.strip(retrieveAlbum(album), String.valueOf(DELIMITER));
+    }
+
+    public String getAlbumRenditionsPath(String userId, String album) {
+        StringBuilder pathBuilder = userPath(renditionsPath, shardedRenditionsPath, userId);
+        append(pathBuilder, retrieveAlbum(album));
+        return pathBuilder.toString();
+    }
+
+    public String getRenditionPath(String userId, String album, String fileName, int size) {
+        StringBuilder pathBuilder = new StringBuilder(getAlbumRenditionsPath(userId, album));
+        append(pathBuilder, String.valueOf(size));
+        append(pathBuilder, fileName);
+        return pathBuilder.toString();
+    }
+
+    /**
+     * Returns the path of an image re-encoded into another format, stored next to the renditions of the given size
+     * or under {@code full} for the full-size image, e.g. {@code album/512/photo.jpg.webp}.
+     */
+    public String getTranscodedPath(String userId, String album, String fileName, Integer size, String extension) {
+        StringBuilder pathBuilder = new StringBuilder(getAlbumRenditionsPath(userId, album));
+        append(pathBuilder, size == null ? FULL_SIZE : String.valueOf(size));
+        append(pathBuilder, fileName);
+        pathBuilder.append('.').append(extension);
+        return pathBuilder.toString();
+    }
+
+    /**
+     * Returns the hidden directory of the user that deleted albums are moved to, next to the albums so that moving
+     * one there stays on the same volume.
+     */
+    public String getTrashPath(String userId) {
+        StringBuilder pathBuilder = allAlbumsPath(userId);
+        append(pathBuilder, TRASH);
+        return pathBuilder.toString();
+    }
+
+    public String getTrashedAlbumPath(String userId, String trashId) {
+        StringBuilder pathBuilder = new StringBuilder(getTrashPath(userId));
+        append(pathBuilder, trashId);
+        return pathBuilder.toString();
+    }
+
+    /**
+     * Returns where the renditions of a deleted album are kept, in the trash of the renditions root.
+     */
+    public String getTrashedRenditionsPath(String userId, String trashId) {
+        StringBuilder pathBuilder = userPath(renditionsPath, shardedRenditionsPath, userId);
+        append(pathBuilder, TRASH);
+        append(pathBuilder, trashId);
+        return pathBuilder.toString();
+    }
+
+    /**
+     * Returns the directories of all users in both layouts, the name of each one being the userId.
+     */
+    public List<Path> getUserPaths() throws IOException {
+        List<Path> users = new ArrayList<>();
+        if (isSharded()) {
+            users.addAll(children(Paths.get(path)));
+        }
+        for (String volume : volumeRing.getVolumes()) {
+            users.addAll(users(Paths.get(volume + currentRoot(path))));
+        }
+        return users;
+    }
+
+    /**
+     * Returns the ids of all users in both layouts, listed through the storage rather than the local file system, so
+     * that the users of an object store are found as well.
+     */
+    public List<String> getUserIds(ImageHandler imageHandler) throws IOException {
+        List<String> users = new ArrayList<>();
+        if (isSharded()) {
+            users.addAll(visibleNames(imageHandler, StringUtils.stripEnd(path, String.valueOf(DELIMITER))));
+        }
+        for (String volume : volumeRing.getVolumes()) {
+            String root = StringUtils.stripEnd(volume + currentRoot(path), String.valueOf(DELIMITER));
+            users.addAll(userIds(imageHandler, root, isSharded() ? shardLevels : 0));
+        }
+        return users;
+    }
+
+    /**
+     * Returns the user directories, of images and renditions, stored on a volume other than the one owning the user,
+     * each mapped to its location on the owning volume.
+     */
+    public Map<Path, Path> getMisplacedUserPaths() throws IOException {
+        Map<Path, Path> misplaced = new LinkedHashMap<>();
+        if (!volumeRing.isDistributed()) {
+            return misplaced;
+        }
+        for (String root : Arrays.asList(currentRoot(path), currentRoot(renditionsPath))) {
+            for (String volume : volumeRing.getVolumes()) {
+                for (Path user : users(Paths.get(volume + root))) {
+                    String userId = user.getFileName().toString();
+                    String owner = volumeRing.getOwner(userId);
+                    if (!owner.equals(volume)) {
+                        misplaced.put(user, Paths.get(volumeUserPath(owner, root, userId).toString()));
+                    }
+                }
+            }
+        }
+        return misplaced;
+    }
+
+    public boolean isDistributed() {
+        return volumeRing.isDistributed();
+    }
+
+    public boolean isSharded() {
+        return shardLevels > 0;
+    }
+
+    /**
+     * Returns the flat photos and renditions roots that users are migrated out of.
+     */
+    public List<Path> getLegacyRoots() {
+        return Arrays.asList(Paths.get(path), Paths.get(renditionsPath));
+    }
+
+    /**
+     * Returns the sharded location of a user directory found under one of the {@link #getLegacyRoots legacy roots},
+     * on the volume owning the user.
+     */
+    public Path getShardedUserPath(Path legacyRoot, String userId) {
+        String root = legacyRoot.equals(Paths.get(renditionsPath)) ? shardedRenditionsPath : shardedPath;
+        return Paths.get(volumeUserPath(volumeRing.getOwner(userId), root, userId).toString());
+    }
+
+    /**
+     * Stops looking for users in the legacy layout once all of them have been moved.
+     */
+    public void setLegacyLayoutMigrated(boolean legacyLayoutMigrated) {
+        this.legacyLayoutMigrated = legacyLayoutMigrated;
+    }
+
+    /**
+     * Stops looking for users on volumes other than their owners once all of them have been moved.
+     */
+    public void setVolumesBalanced(boolean volumesBalanced) {
+        this.volumesBalanced = volumesBalanced;
+    }
+
     private String retrieveAlbum(String album) {
         return StringUtils.isEmpty(album) ? defaultAlbum : album;
     }
@@ -47,9 +253,112 @@ public class DirectoryPathBuilder {
     }
 
     private StringBuilder allAlbumsPath(String userId) {
-        StringBuilder pathBuilder = new StringBuilder(path);
+        return userPath(path, shardedPath, userId);
+    }
+
+    private StringBuilder userPath(String legacyRoot, String shardedRoot, String userId) {
+        if (isSharded() && !legacyLayoutMigrated && Files.isDirectory(Paths.get(legacyRoot, userId))) {
+            StringBuilder pathBuilder = new StringBuilder(legacyRoot);
+            pathBuilder.append(userId);
+            return pathBuilder;
+        }
+        String root = isSharded() ? shardedRoot : legacyRoot;
+        String owner = volumeRing.getOwner(userId);
+        if (volumeRing.isDistributed() && !volumesBalanced
+                && !Files.isDirectory(Paths.get(volumeUserPath(owner, root, userId).toString()))) {
+            for (String volume : volumeRing.getVolumes()) {
+                StringBuilder previous = volumeUserPath(volume, root, userId);
+                if (!volume.equals(owner) && Files.isDirectory(Paths.get(previous.toString()))) {
+                    return previous;
+                }
+            }
+        }
+        return volumeUserPath(owner, root, userId);
+    }
+
+    private StringBuilder volumeUserPath(String volume, String root, String userId) {
+        if (isSharded()) {
+            return shardedUserPath(volume + root, userId);
+        }
+        StringBuilder pathBuilder = new StringBuilder(volume);
+        pathBuilder.append(root);
         pathBuilder.append(userId);
         return pathBuilder;
     }
 
+    private String currentRoot(String legacyRoot) {
+        if (!isSharded()) {
+            return legacyRoot;
+        }
+        return legacyRoot.equals(path) ? shardedPath : shardedRenditionsPath;
+    }
+
+    private StringBuilder shardedUserPath(String root, String userId) {
+        CRC32 crc = new CRC32();
+        crc.update(userId.getBytes(UTF_8));
+        String hash = String.format("%08x", crc.getValue());
+
+        StringBuilder pathBuilder = new StringBuilder(root);
+        for (int level = 0; level < shardLevels; level++) {
+            pathBuilder.append(hash, 2 * level, 2 * level + 2);
+            pathBuilder.append(DELIMITER);
+        }
+        pathBuilder.append(userId);
+        return pathBuilder;
+    }
+
+    private List<Path> users(Path root) throws IOException {
+        if (!isSharded()) {
+            return children(root);
+        }
+        List<Path> users = new ArrayList<>();
+        if (Files.isDirectory(root)) {
+            try (Stream<Path> paths = Files.walk(root, shardLevels + 1)) {
+                paths.filter(user -> root.relativize(user).getNameCount() == shardLevels + 1)
+                        .filter(user -> Files.isDirectory(user) && isVisible(user))
+                        .forEach(users::add);
+            }
+        }
+        return users;
+    }
+
+    private List<String> userIds(ImageHandler imageHandler, String root, int levels) throws IOException {
+        if (levels == 0) {
+            return visibleNames(imageHandler, root);
+        }
+        List<String> users = new ArrayList<>();
+        for (String shard : visibleNames(imageHandler, root)) {
+            users.addAll(userIds(imageHandler, root + DELIMITER + shard, levels - 1));
+        }
+        return users;
+    }
+
+    private List<String> visibleNames(ImageHandler imageHandler, String parent) throws IOException {
+        List<String> names = new ArrayList<>();
+        for (String name : imageHandler.list(parent)) {
+            if (!name.startsWith(".")) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    private List<Path> children(Path parent) throws IOException {
+        List<Path> children = new ArrayList<>();
+        if (Files.isDirectory(parent)) {
+            try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(parent, Files::isDirectory)) {
+                for (Path child : directoryStream) {
+                    if (isVisible(child)) {
+                        children.add(child);
+                    }
+                }
+            }
+        }
+        return children;
+    }
+
+    private boolean isVisible(Path path) {
+        return !path.getFileName().toString().startsWith(".");
+    }
+
 }
@@ -0,0 +1,139 @@
+package com.vitalsport.photos.builder;
+
+import com.vitalsport.photos.io.MultipartRangeResource;
+import com.vitalsport.photos.io.RangeResource;
+import com.vitalsport.photos.model.ImageHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.springframework.http.HttpStatus.NOT_MODIFIED;
+import static org.springframework.http.HttpStatus.PARTIAL_CONTENT;
+import static org.springframework.http.HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE;
+
+/**
+ * Builds image responses honouring conditional (If-None-Match, If-Modified-Since) and Range requests.
+ */
+@Slf4j
+@Component
+public class ImageResponseBuilder {
+
+    private static final int MAX_RANGES = 16;
+
+    public ResponseEntity<?> build(ImageHolder imageHolder, HttpHeaders requestHeaders) {
+        HttpHeaders httpHeaders = new HttpHeaders();
+        httpHeaders.setETag(imageHolder.getEntityTag());
+        httpHeaders.setLastModified(imageHolder.getLastModified());
+        httpHeaders.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+        httpHeaders.set(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+
+        if (isNotModified(requestHeaders, imageHolder)) {
+            return new ResponseEntity<>(httpHeaders, NOT_MODIFIED);
+        }
+
+        long length = imageHolder.getContentLength();
+        List<HttpRange> ranges = requestedRanges(requestHeaders, imageHolder);
+        if (ranges.isEmpty()) {
+            httpHeaders.setContentType(imageHolder.getMediaType());
+            httpHeaders.setContentLength(length);
+            return new ResponseEntity<>(imageHolder.getResource(), httpHeaders, HttpStatus.OK);
+        }
+
+        ranges = satisfiableRanges(ranges, length);
+        if (ranges.isEmpty()) {
+            httpHeaders.set(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+            return new ResponseEntity<>(httpHeaders, REQUESTED_RANGE_NOT_SATISFIABLE);
+        }
+
+        if (ranges.size() == 1) {
+            long start = ranges.get(0).getRangeStart(length);
+            long end = ranges.get(0).getRangeEnd(length);
+            httpHeaders.setContentType(imageHolder.getMediaType());
+            httpHeaders.setContentLength(end - start + 1);
+            httpHeaders.set(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+            return new ResponseEntity<>(new RangeResource(imageHolder.getResource(), start, end - start + 1),
+                    httpHeaders, PARTIAL_CONTENT);
+        }
+
+        String boundary = UUID.randomUUID().toString();
+        MultipartRangeResource body = new MultipartRangeResource(imageHolder.getResource(), ranges, length,
+                imageHolder.getMediaType(), boundary);
+        httpHeaders.setContentType(MediaType.parseMediaType("multipart/byteranges; boundary=" + boundary));
+        httpHeaders.setContentLength(body.contentLength());
+        return new ResponseEntity<>(body, httpHeaders, PARTIAL_CONTENT);
+    }
+
+    private boolean isNotModified(HttpHeaders requestHeaders, ImageHolder imageHolder) {
+        List<String> ifNoneMatch = requestHeaders.getIfNoneMatch();
+        if (!ifNoneMatch.isEmpty()) {
+            for (String tag : ifNoneMatch) {
+                if ("*".equals(tag) || imageHolder.getEntityTag().equals(stripWeakPrefix(tag))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        long ifModifiedSince = ifModifiedSince(requestHeaders);
+        return ifModifiedSince >= 0 && imageHolder.getLastModified() / 1000 <= ifModifiedSince / 1000;
+    }
+
+    private List<HttpRange> requestedRanges(HttpHeaders requestHeaders, ImageHolder imageHolder) {
+        String ifRange = requestHeaders.getFirst(HttpHeaders.IF_RANGE);
+        if (ifRange != null && !matchesIfRange(requestHeaders, ifRange, imageHolder)) {
+            return Collections.emptyList();
+        }
+        try {
+            List<HttpRange> ranges = requestHeaders.getRange();
+            return ranges.size() > MAX_RANGES ? Collections.<HttpRange>emptyList() : ranges;
+        } catch (IllegalArgumentException exception) {
+            log.debug("Ignoring malformed Range header: {}", requestHeaders.getFirst(HttpHeaders.RANGE));
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Drops the ranges starting past the end of the image; the request is only unsatisfiable when none is left.
+     */
+    private List<HttpRange> satisfiableRanges(List<HttpRange> ranges, long length) {
+        List<HttpRange> satisfiable = new ArrayList<>(ranges.size());
+        for (HttpRange range : ranges) {
+            if (range.getRangeStart(length) < length) {
+                satisfiable.add(range);
+            }
+        }
+        return satisfiable;
+    }
+
+    private boolean matchesIfRange(HttpHeaders requestHeaders, String ifRange, ImageHolder imageHolder) {
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(imageHolder.getEntityTag());
+        }
+        try {
+            return imageHolder.getLastModified() / 1000 == requestHeaders.getFirstDate(HttpHeaders.IF_RANGE) / 1000;
+        } catch (IllegalArgumentException exception) {
+            return false;
+        }
+    }
+
+    private long ifModifiedSince(HttpHeaders requestHeaders) {
+        try {
+            return requestHeaders.getIfModifiedSince();
+        } catch (IllegalArgumentException exception) {
+            return -1;
+        }
+    }
+
+    private String stripWeakPrefix(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+}
@@ -0,0 +1,88 @@
+package com.vitalsport.photos.builder;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+
+/**
+ * Assigns users to storage volumes with a consistent-hash ring. Each volume is placed on the ring at several
+ * virtual nodes, so users spread evenly and adding a volume only takes over about 1/N of them, from all the others.
+ * A volume is a directory prefixed to the storage roots; the empty volume is the working directory.
+ */
+@Component
+public class VolumeRing {
+
+    private static final char DELIMITER = '/';
+
+    private final List<String> volumes;
+    private final NavigableMap<Long, String> ring = new TreeMap<>();
+
+    @Autowired
+    public VolumeRing(@Value("${photos.volumes.paths}") String[] volumes,
+                      @Value("${photos.volumes.virtualNodes}") int virtualNodes) {
+        this(asList(volumes), virtualNodes);
+    }
+
+    public VolumeRing(List<String> volumes, int virtualNodes) {
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("photos.volumes.virtualNodes should be positive");
+        }
+        List<String> normalized = new ArrayList<>();
+        for (String volume : volumes.isEmpty() ? Collections.singletonList("") : volumes) {
+            String directory = volume.trim();
+            normalized.add(directory.isEmpty() || directory.charAt(directory.length() - 1) == DELIMITER
+                    ? directory : directory + DELIMITER);
+        }
+        this.volumes = Collections.unmodifiableList(normalized);
+        for (String volume : this.volumes) {
+            for (int node = 0; node < virtualNodes; node++) {
+                ring.put(hash(volume + '#' + node), volume);
+            }
+        }
+    }
+
+    /**
+     * Returns the volume owning the key: the first virtual node clockwise from the hash of the key.
+     */
+    public String getOwner(String key) {
+        Map.Entry<Long, String> owner = ring.ceilingEntry(hash(key));
+        return owner == null ? ring.firstEntry().getValue() : owner.getValue();
+    }
+
+    public List<String> getVolumes() {
+        return volumes;
+    }
+
+    public boolean isDistributed() {
+        return volumes.size() > 1;
+    }
+
+    private static long hash(String key) {
+        byte[] digest = md5().digest(key.getBytes(UTF_8));
+        long hash = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            hash = hash << 8 | (digest[i] & 0xff);
+        }
+        return hash;
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException exception) {
+            throw new InternalError(exception);
+        }
+    }
+}
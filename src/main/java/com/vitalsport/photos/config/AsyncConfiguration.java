@@ -0,0 +1,76 @@
+package com.vitalsport.photos.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Runs blocking image I/O and response streaming on a bounded pool instead of servlet container threads.
+ * Work submitted to a saturated pool is rejected and answered with 503.
+ */
+@Configuration
+public class AsyncConfiguration extends WebMvcConfigurerAdapter {
+
+    @Value("${photos.io.threads}")
+    private int threads;
+
+    @Value("${photos.io.queueSize}")
+    private int queueSize;
+
+    @Value("${photos.io.timeout}")
+    private long timeout;
+
+    @Value("${photos.upload.threads}")
+    private int uploadThreads;
+
+    @Value("${photos.upload.queueSize}")
+    private int uploadQueueSize;
+
+    @Bean
+    public ThreadPoolTaskExecutor ioExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(threads);
+        executor.setMaxPoolSize(threads);
+        executor.setQueueCapacity(queueSize);
+        executor.setThreadNamePrefix("photos-io-");
+        return executor;
+    }
+
+    /**
+     * Writes the files of batch uploads. A full queue makes the submitting request write the file itself,
+     * which throttles the batch instead of failing it.
+     */
+    @Bean
+    public ThreadPoolTaskExecutor uploadExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(uploadThreads);
+        executor.setMaxPoolSize(uploadThreads);
+        executor.setQueueCapacity(uploadQueueSize);
+        executor.setThreadNamePrefix("photos-upload-");
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+        return executor;
+    }
+
+    @Bean
+    public PublicMetrics executorMetrics() {
+        return () -> Arrays.asList(
+                new Metric<>("photos.io.active", ioExecutor().getActiveCount()),
+                new Metric<>("photos.io.queued", ioExecutor().getThreadPoolExecutor().getQueue().size()),
+                new Metric<>("photos.upload.active", uploadExecutor().getActiveCount()),
+                new Metric<>("photos.upload.queued", uploadExecutor().getThreadPoolExecutor().getQueue().size()));
+    }
+
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        configurer.setTaskExecutor(ioExecutor());
+        configurer.setDefaultTimeout(timeout);
+    }
+}
@@ -1,14 +1,24 @@
 package com.vitalsport.photos.config;
 
+import com.codahale.metrics.MetricRegistry;
+import com.vitalsport.photos.io.CachingImageHandler;
+import com.vitalsport.photos.io.ImageHandler;
+import com.vitalsport.photos.service.MeteredPhotoLoader;
+import com.vitalsport.photos.service.PhotoService;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.beans.factory.config.YamlPropertiesFactoryBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
 import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 import javax.activation.MimetypesFileTypeMap;
 
 @Configuration
+@EnableScheduling
 public class ServiceConfiguration {
 
     @Bean
@@ -19,4 +29,19 @@ public class ServiceConfiguration {
         propertySourcesPlaceholderConfigurer.setProperties(yaml.getObject());
         return propertySourcesPlaceholderConfigurer;
     }
+
+    @Bean
+    @Primary
+    public CachingImageHandler cachingImageHandler(@Qualifier("storageImageHandler") ImageHandler storage,
+                                                   @Value("${photos.cache.capacity}") long capacity,
+                                                   @Value("${photos.cache.maxEntrySize}") long maxEntrySize,
+                                                   @Value("${photos.cache.offHeap}") boolean offHeap) {
+        return new CachingImageHandler(storage, capacity, maxEntrySize, offHeap);
+    }
+
+    @Bean
+    @Primary
+    public MeteredPhotoLoader meteredPhotoLoader(PhotoService photoService, MetricRegistry metricRegistry) {
+        return new MeteredPhotoLoader(photoService, metricRegistry);
+    }
 }
@@ -0,0 +1,168 @@
+package com.vitalsport.photos.config;
+
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.client.builder.AwsClientBuilder.EndpointConfiguration;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.vitalsport.photos.builder.VolumeRing;
+import com.vitalsport.photos.io.BaseImageHandler;
+import com.vitalsport.photos.io.BlobStore;
+import com.vitalsport.photos.io.DeduplicatingImageHandler;
+import com.vitalsport.photos.io.ImageHandler;
+import com.vitalsport.photos.io.ReplicatingImageHandler;
+import com.vitalsport.photos.io.ReplicatingImageHandler.Acknowledgement;
+import com.vitalsport.photos.io.RootedImageHandler;
+import com.vitalsport.photos.io.S3ImageHandler;
+import com.vitalsport.photos.io.TieringImageHandler;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Chooses where images are stored: {@code local} keeps them on the file system, deduplicated when blobs are
+ * enabled and the images live on a single volume, since blobs are hard links that can't span file systems, and
+ * {@code s3} keeps them in a bucket of Amazon S3 or of any S3 compatible store such as MinIO, addressed through its
+ * endpoint. Local storage can move rarely read images to a cheaper cold volume. Either can be replicated to local
+ * directories, typically on other disks.
+ */
+@Slf4j
+@Configuration
+public class StorageConfiguration {
+
+    @Value("${photos.storage.type}")
+    private String type;
+
+    @Value("${photos.blobs.enabled}")
+    private boolean deduplicate;
+
+    @Value("${photos.storage.s3.endpoint}")
+    private String endpoint;
+
+    @Value("${photos.storage.s3.region}")
+    private String region;
+
+    @Value("${photos.storage.s3.bucket}")
+    private String bucket;
+
+    @Value("${photos.storage.s3.accessKey}")
+    private String accessKey;
+
+    @Value("${photos.storage.s3.secretKey}")
+    private String secretKey;
+
+    @Value("${photos.storage.s3.pathStyle}")
+    private boolean pathStyle;
+
+    @Value("${photos.storage.s3.partSize}")
+    private long partSize;
+
+    @Value("${photos.storage.s3.uploadThreads}")
+    private int uploadThreads;
+
+    @Value("${photos.replication.replicas}")
+    private String[] replicaRoots;
+
+    @Value("${photos.replication.acknowledgement}")
+    private String acknowledgement;
+
+    @Value("${photos.replication.logPath}")
+    private String replicationLogPath;
+
+    @Value("${photos.replication.retryDelay}")
+    private long retryDelay;
+
+    @Value("${photos.replication.timeout}")
+    private long replicationTimeout;
+
+    @Value("${photos.tiering.path}")
+    private String coldPath;
+
+    @Value("${photos.tiering.promotionWindow}")
+    private long promotionWindow;
+
+    @Bean
+    public TieringImageHandler tieringImageHandler(BaseImageHandler baseImageHandler, BlobStore blobStore,
+                                                   VolumeRing volumeRing) {
+        if (deduplicate && volumeRing.isDistributed()) {
+            log.warn("Blobs are disabled: images are stored on {} volumes", volumeRing.getVolumes().size());
+        }
+        return new TieringImageHandler(localImageHandler(baseImageHandler, blobStore, volumeRing), coldPath,
+                promotionWindow);
+    }
+
+    @Bean
+    public ImageHandler storageImageHandler(BaseImageHandler baseImageHandler, BlobStore blobStore,
+                                            TieringImageHandler tieringImageHandler, VolumeRing volumeRing)
+            throws IOException {
+        ImageHandler primary = primaryImageHandler(baseImageHandler, blobStore, tieringImageHandler, volumeRing);
+        if (replicaRoots.length == 0) {
+            return primary;
+        }
+        List<ImageHandler> replicas = new ArrayList<>();
+        for (String root : replicaRoots) {
+            replicas.add(new RootedImageHandler(baseImageHandler, root));
+        }
+        return new ReplicatingImageHandler(primary, replicas,
+                Acknowledgement.valueOf(acknowledgement.toUpperCase(Locale.ROOT)), replicationLogPath, retryDelay,
+                replicationTimeout);
+    }
+
+    /**
+     * A bean of its own, only when images are kept in S3, so that its upload threads are shut down with the context
+     * even when it is wrapped for replication.
+     */
+    @Bean(destroyMethod = "shutdown")
+    @ConditionalOnProperty(name = "photos.storage.type", havingValue = "s3")
+    public S3ImageHandler s3ImageHandler() {
+        return new S3ImageHandler(amazonS3(), bucket, partSize, uploadThreads);
+    }
+
+    private ImageHandler primaryImageHandler(BaseImageHandler baseImageHandler, BlobStore blobStore,
+                                             TieringImageHandler tieringImageHandler, VolumeRing volumeRing) {
+        switch (type) {
+            case "local":
+                return tieringImageHandler.isEnabled()
+                        ? tieringImageHandler : localImageHandler(baseImageHandler, blobStore, volumeRing);
+            case "s3":
+                return s3ImageHandler();
+            default:
+                throw new IllegalArgumentException("Unknown storage type: " + type);
+        }
+    }
+
+    private ImageHandler localImageHandler(BaseImageHandler baseImageHandler, BlobStore blobStore,
+                                           VolumeRing volumeRing) {
+        return deduplicate && !volumeRing.isDistributed()
+                ? new DeduplicatingImageHandler(baseImageHandler, blobStore) : baseImageHandler;
+    }
+
+    private AmazonS3 amazonS3() {
+        AmazonS3ClientBuilder builder = AmazonS3ClientBuilder.standard()
+                .withPathStyleAccessEnabled(pathStyle)
+                .withCredentials(credentials());
+        if (StringUtils.isEmpty(endpoint)) {
+            builder.withRegion(region);
+        } else {
+            builder.withEndpointConfiguration(new EndpointConfiguration(endpoint, region));
+        }
+        return builder.build();
+    }
+
+    private AWSCredentialsProvider credentials() {
+        if (StringUtils.isEmpty(accessKey)) {
+            return new DefaultAWSCredentialsProviderChain();
+        }
+        return new AWSStaticCredentialsProvider(new BasicAWSCredentials(accessKey, secretKey));
+    }
+}
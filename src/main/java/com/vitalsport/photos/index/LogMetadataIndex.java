@@ -0,0 +1,442 @@
+package com.vitalsport.photos.index;
+
+import com.vitalsport.photos.builder.DirectoryPathBuilder;
+import com.vitalsport.photos.io.ImageHandler;
+import com.vitalsport.photos.model.CatalogPage;
+import com.vitalsport.photos.model.CatalogQuery;
+import com.vitalsport.photos.model.ImageMetadata;
+import com.vitalsport.photos.model.PhotoSort;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.*;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.stream.Stream;
+
+import static java.nio.file.Paths.get;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Keeps album and image metadata in memory and persists every change to an append-only log.
+ * On startup the log is replayed and compacted; without a log the index is rebuilt by scanning the photos directory.
+ * The log is compacted again once the records appended since exceed both the threshold and the snapshot, and with
+ * sync on every record is forced to disk before the change returns.
+ * Besides the per-album listings every user has a {@link PhotoCatalog} for searching all their photos by header
+ * fields. Logs written before capture time, orientation and camera were recorded are still read.
+ */
+@Slf4j
+@Component
+public class LogMetadataIndex implements MetadataIndex, PublicMetrics {
+
+    private static final int LEGACY_MAGIC = 0x56504931;
+    private static final int MAGIC = 0x56504932;
+
+    private static final long UNKNOWN_TIME = Long.MIN_VALUE;
+
+    private static final byte PUT_IMAGE = 1;
+    private static final byte REMOVE_IMAGE = 2;
+    private static final byte PUT_ALBUM = 3;
+    private static final byte REMOVE_ALBUM = 4;
+
+    private final Map<String, NavigableMap<String, AlbumImages>> users = new ConcurrentHashMap<>();
+    private final Map<String, PhotoCatalog> catalogs = new ConcurrentHashMap<>();
+
+    private DirectoryPathBuilder directoryPathBuilder;
+    private ImageHandler imageHandler;
+    private Path logPath;
+    private int compactionThreshold;
+    private boolean sync;
+    private FileOutputStream file;
+    private DataOutputStream journal;
+    private long snapshotRecords;
+    private long appendedRecords;
+    private volatile long scannedEntries;
+
+    @Autowired
+    public LogMetadataIndex(DirectoryPathBuilder directoryPathBuilder,
+                            ImageHandler basicImageHandler,
+                            @Value("${photos.index.path}") String logPath,
+                            @Value("${photos.index.compactionThreshold}") int compactionThreshold,
+                            @Value("${photos.index.sync}") boolean sync) {
+        this.directoryPathBuilder = directoryPathBuilder;
+        this.imageHandler = basicImageHandler;
+        this.logPath = get(logPath);
+        this.compactionThreshold = compactionThreshold;
+        this.sync = sync;
+    }
+
+    @PostConstruct
+    public synchronized void open() throws IOException {
+        if (Files.exists(logPath)) {
+            replay();
+        } else {
+            rebuild();
+        }
+        compact();
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+
+    @Override
+    public synchronized void putImage(String userId, String album, ImageMetadata metadata) {
+        applyPutImage(userId, album, metadata);
+        append(output -> {
+            output.writeByte(PUT_IMAGE);
+            output.writeUTF(userId);
+            output.writeUTF(album);
+            writeMetadata(output, metadata);
+        });
+    }
+
+    @Override
+    public synchronized void removeImage(String userId, String album, String name) {
+        applyRemoveImage(userId, album, name);
+        append(output -> {
+            output.writeByte(REMOVE_IMAGE);
+            output.writeUTF(userId);
+            output.writeUTF(album);
+            output.writeUTF(name);
+        });
+    }
+
+    @Override
+    public synchronized void putAlbum(String userId, String album) {
+        applyPutAlbum(userId, album);
+        append(output -> {
+            output.writeByte(PUT_ALBUM);
+            output.writeUTF(userId);
+            output.writeUTF(album);
+        });
+    }
+
+    @Override
+    public synchronized void removeAlbum(String userId, String album) {
+        applyRemoveAlbum(userId, album);
+        append(output -> {
+            output.writeByte(REMOVE_ALBUM);
+            output.writeUTF(userId);
+            output.writeUTF(album);
+        });
+    }
+
+    @Override
+    public Collection<String> getUsers() {
+        return new ArrayList<>(users.keySet());
+    }
+
+    @Override
+    public Collection<String> getAlbums(String userId) {
+        NavigableMap<String, AlbumImages> albums = users.get(userId);
+        return albums == null ? Collections.emptyList() : new ArrayList<>(albums.keySet());
+    }
+
+    @Override
+    public Collection<ImageMetadata> getImages(String userId, String album) {
+        AlbumImages images = images(userId, album);
+        return images == null ? Collections.emptyList() : new ArrayList<>(images.byName.values());
+    }
+
+    @Override
+    public Stream<ImageMetadata> getImages(String userId, String album, PhotoSort sort, boolean descending,
+                                           ImageMetadata after) {
+        AlbumImages images = images(userId, album);
+        if (images == null) {
+            return Stream.empty();
+        }
+        NavigableSet<ImageMetadata> sorted = images.sorted.get(sort);
+        if (descending) {
+            sorted = sorted.descendingSet();
+        }
+        if (after != null) {
+            sorted = sorted.tailSet(after, false);
+        }
+        return sorted.stream();
+    }
+
+    @Override
+    public ImageMetadata getImage(String userId, String album, String name) {
+        AlbumImages images = images(userId, album);
+        return images == null ? null : images.byName.get(name);
+    }
+
+    @Override
+    public CatalogPage findImages(String userId, CatalogQuery query) {
+        PhotoCatalog catalog = catalogs.get(userId);
+        return catalog == null ? new CatalogPage(Collections.emptyList(), null) : catalog.find(query);
+    }
+
+    /**
+     * Reports the indexed users and the directory entries the last rebuild had to scan.
+     */
+    @Override
+    public Collection<Metric<?>> metrics() {
+        return Arrays.asList(
+                new Metric<>("photos.index.users", users.size()),
+                new Metric<>("photos.index.scanned", scannedEntries));
+    }
+
+    private AlbumImages images(String userId, String album) {
+        NavigableMap<String, AlbumImages> albums = users.get(userId);
+        return albums == null ? null : albums.get(album);
+    }
+
+    private void applyPutImage(String userId, String album, ImageMetadata metadata) {
+        applyPutAlbum(userId, album).put(metadata);
+        catalogs.computeIfAbsent(userId, id -> new PhotoCatalog()).put(album, metadata);
+    }
+
+    private void applyRemoveImage(String userId, String album, String name) {
+        AlbumImages images = images(userId, album);
+        if (images != null) {
+            images.remove(name);
+        }
+        PhotoCatalog catalog = catalogs.get(userId);
+        if (catalog != null) {
+            catalog.remove(album, name);
+        }
+    }
+
+    private AlbumImages applyPutAlbum(String userId, String album) {
+        return users.computeIfAbsent(userId, id -> new ConcurrentSkipListMap<>())
+                .computeIfAbsent(album, name -> new AlbumImages());
+    }
+
+    private void applyRemoveAlbum(String userId, String album) {
+        NavigableMap<String, AlbumImages> albums = users.get(userId);
+        if (albums != null) {
+            albums.remove(album);
+        }
+        PhotoCatalog catalog = catalogs.get(userId);
+        if (catalog != null) {
+            catalog.removeAlbum(album);
+        }
+    }
+
+    private void replay() throws IOException {
+        int records = 0;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(logPath)))) {
+            int magic = input.readInt();
+            if (magic != MAGIC && magic != LEGACY_MAGIC) {
+                throw new IOException("Unknown metadata log format: " + logPath);
+            }
+            boolean headerFields = magic == MAGIC;
+            while (true) {
+                byte operation = input.readByte();
+                String userId = input.readUTF();
+                String album = input.readUTF();
+                switch (operation) {
+                    case PUT_IMAGE:
+                        applyPutImage(userId, album, readMetadata(input, headerFields));
+                        break;
+                    case REMOVE_IMAGE:
+                        applyRemoveImage(userId, album, input.readUTF());
+                        break;
+                    case PUT_ALBUM:
+                        applyPutAlbum(userId, album);
+                        break;
+                    case REMOVE_ALBUM:
+                        applyRemoveAlbum(userId, album);
+                        break;
+                    default:
+                        throw new IOException("Unknown metadata log operation: " + operation);
+                }
+                records++;
+            }
+        } catch (EOFException exception) {
+            log.info("Replayed {} metadata records from: {}", records, logPath);
+        }
+    }
+
+    private void rebuild() throws IOException {
+        log.info("Rebuilding metadata index from disk");
+        long scanned = 0;
+        for (Path user : directoryPathBuilder.getUserPaths()) {
+            String userId = user.getFileName().toString();
+            for (Path album : directories(user)) {
+                String albumName = album.getFileName().toString();
+                applyPutAlbum(userId, albumName);
+                try (DirectoryStream<Path> images = Files.newDirectoryStream(album, Files::isRegularFile)) {
+                    for (Path image : images) {
+                        scanned++;
+                        if (isVisible(image)) {
+                            String imagePath = directoryPathBuilder.getImagePath(userId, albumName,
+                                    image.getFileName().toString());
+                            applyPutImage(userId, albumName, imageHandler.readMetadata(imagePath));
+                        }
+                    }
+                }
+            }
+        }
+        scannedEntries = scanned;
+        log.info("Scanned {} directory entries", scanned);
+    }
+
+    private Collection<Path> directories(Path parent) throws IOException {
+        Collection<Path> directories = new ArrayList<>();
+        if (Files.isDirectory(parent)) {
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(parent, Files::isDirectory)) {
+                for (Path child : children) {
+                    if (isVisible(child)) {
+                        directories.add(child);
+                    }
+                }
+            }
+        }
+        return directories;
+    }
+
+    private boolean isVisible(Path path) {
+        return !path.getFileName().toString().startsWith(".");
+    }
+
+    /**
+     * Rewrites the log as a snapshot of the current state and reopens it for appending. The snapshot is forced to
+     * disk before it replaces the log, so a crash leaves either of them whole.
+     */
+    private void compact() throws IOException {
+        close();
+        Path directory = logPath.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path snapshot = Files.createTempFile(directory, ".metadata-", ".tmp");
+        long records = 0;
+        try (FileOutputStream snapshotFile = new FileOutputStream(snapshot.toFile());
+             DataOutputStream output = new DataOutputStream(new BufferedOutputStream(snapshotFile))) {
+            output.writeInt(MAGIC);
+            for (Map.Entry<String, NavigableMap<String, AlbumImages>> user : users.entrySet()) {
+                for (Map.Entry<String, AlbumImages> album : user.getValue().entrySet()) {
+                    output.writeByte(PUT_ALBUM);
+                    output.writeUTF(user.getKey());
+                    output.writeUTF(album.getKey());
+                    records++;
+                    for (ImageMetadata metadata : album.getValue().byName.values()) {
+                        output.writeByte(PUT_IMAGE);
+                        output.writeUTF(user.getKey());
+                        output.writeUTF(album.getKey());
+                        writeMetadata(output, metadata);
+                        records++;
+                    }
+                }
+            }
+            output.flush();
+            snapshotFile.getChannel().force(false);
+        }
+        Files.move(snapshot, logPath, ATOMIC_MOVE, REPLACE_EXISTING);
+        file = new FileOutputStream(logPath.toFile(), true);
+        journal = new DataOutputStream(new BufferedOutputStream(file));
+        snapshotRecords = records;
+        appendedRecords = 0;
+    }
+
+    /**
+     * Appends a record and, once the records appended since the last snapshot outnumber it and the threshold, compacts
+     * the log, so that its size stays proportional to the index and a compaction is paid for by as many appends.
+     */
+    private void append(LogWriter writer) {
+        try {
+            writer.write(journal);
+            journal.flush();
+            if (sync) {
+                file.getChannel().force(false);
+            }
+            appendedRecords++;
+            if (appendedRecords >= compactionThreshold && appendedRecords > snapshotRecords) {
+                compact();
+            }
+        } catch (IOException exception) {
+            throw new InternalError(exception);
+        }
+    }
+
+    private void writeMetadata(DataOutput output, ImageMetadata metadata) throws IOException {
+        output.writeUTF(metadata.getName());
+        output.writeLong(metadata.getSize());
+        output.writeUTF(metadata.getMimeType());
+        output.writeInt(metadata.getWidth());
+        output.writeInt(metadata.getHeight());
+        output.writeLong(metadata.getCreated());
+        output.writeLong(metadata.getModified());
+        output.writeLong(metadata.getCaptured() == null ? UNKNOWN_TIME : metadata.getCaptured());
+        output.writeByte(metadata.getOrientation());
+        output.writeUTF(metadata.getCamera() == null ? "" : metadata.getCamera());
+    }
+
+    private ImageMetadata readMetadata(DataInput input, boolean headerFields) throws IOException {
+        String name = input.readUTF();
+        long size = input.readLong();
+        String mimeType = input.readUTF();
+        int width = input.readInt();
+        int height = input.readInt();
+        long created = input.readLong();
+        long modified = input.readLong();
+        if (!headerFields) {
+            return new ImageMetadata(name, size, mimeType, width, height, created, modified);
+        }
+        long captured = input.readLong();
+        int orientation = input.readByte();
+        String camera = input.readUTF();
+        return new ImageMetadata(name, size, mimeType, width, height, created, modified,
+                captured == UNKNOWN_TIME ? null : captured, orientation, camera.isEmpty() ? null : camera);
+    }
+
+    private interface LogWriter {
+        void write(DataOutputStream output) throws IOException;
+    }
+
+    /**
+     * Images of one album, looked up by name and kept sorted in every listing order.
+     * Mutations are serialized by the index, readers iterate the concurrent views.
+     */
+    private static class AlbumImages {
+        private final Map<String, ImageMetadata> byName = new ConcurrentSkipListMap<>();
+        private final Map<PhotoSort, NavigableSet<ImageMetadata>> sorted = new EnumMap<>(PhotoSort.class);
+
+        AlbumImages() {
+            for (PhotoSort sort : PhotoSort.values()) {
+                sorted.put(sort, new ConcurrentSkipListSet<>(sort.comparator()));
+            }
+        }
+
+        void put(ImageMetadata metadata) {
+            remove(metadata.getName());
+            byName.put(metadata.getName(), metadata);
+            for (NavigableSet<ImageMetadata> images : sorted.values()) {
+                images.add(metadata);
+            }
+        }
+
+        void remove(String name) {
+            ImageMetadata removed = byName.remove(name);
+            if (removed != null) {
+                for (NavigableSet<ImageMetadata> images : sorted.values()) {
+                    images.remove(removed);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.vitalsport.photos.index;
+
+import com.vitalsport.photos.model.CatalogPage;
+import com.vitalsport.photos.model.CatalogQuery;
+import com.vitalsport.photos.model.ImageMetadata;
+import com.vitalsport.photos.model.PhotoSort;
+
+import java.util.Collection;
+import java.util.stream.Stream;
+
+public interface MetadataIndex {
+    void putImage(String userId, String album, ImageMetadata metadata);
+
+    void removeImage(String userId, String album, String name);
+
+    void putAlbum(String userId, String album);
+
+    void removeAlbum(String userId, String album);
+
+    /**
+     * Returns the users that have albums in the index.
+     */
+    Collection<String> getUsers();
+
+    Collection<String> getAlbums(String userId);
+
+    Collection<ImageMetadata> getImages(String userId, String album);
+
+    Stream<ImageMetadata> getImages(String userId, String album, PhotoSort sort, boolean descending,
+                                    ImageMetadata after);
+
+    ImageMetadata getImage(String userId, String album, String name);
+
+    CatalogPage findImages(String userId, CatalogQuery query);
+}
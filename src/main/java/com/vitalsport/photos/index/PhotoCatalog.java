@@ -0,0 +1,198 @@
+package com.vitalsport.photos.index;
+
+import com.vitalsport.photos.model.CatalogPage;
+import com.vitalsport.photos.model.CatalogPhoto;
+import com.vitalsport.photos.model.CatalogQuery;
+import com.vitalsport.photos.model.ImageMetadata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The photos of one user as columns: a primitive array per searchable field, with albums and cameras encoded
+ * as indices into dictionaries. Range queries scan only the columns they filter on, and rows stay dense as a
+ * removed row is replaced by the last one. Results are ordered by the time taken, then by album and name, and
+ * only the rows of the requested page are kept while scanning.
+ */
+final class PhotoCatalog {
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int NONE = -1;
+    private static final char SEPARATOR = '/';
+
+    private final Map<String, Integer> rows = new HashMap<>();
+    private final List<String> albums = new ArrayList<>();
+    private final Map<String, Integer> albumCodes = new HashMap<>();
+    private final List<String> cameras = new ArrayList<>();
+    private final Map<String, Integer> cameraCodes = new HashMap<>();
+
+    private int size;
+    private long[] taken = new long[INITIAL_CAPACITY];
+    private int[] widths = new int[INITIAL_CAPACITY];
+    private int[] heights = new int[INITIAL_CAPACITY];
+    private byte[] orientations = new byte[INITIAL_CAPACITY];
+    private int[] albumColumn = new int[INITIAL_CAPACITY];
+    private int[] cameraColumn = new int[INITIAL_CAPACITY];
+    private String[] names = new String[INITIAL_CAPACITY];
+
+    synchronized void put(String album, ImageMetadata metadata) {
+        String key = key(album, metadata.getName());
+        Integer row = rows.get(key);
+        if (row == null) {
+            if (size == taken.length) {
+                grow();
+            }
+            row = size++;
+            rows.put(key, row);
+        }
+        taken[row] = metadata.getCaptured() == null ? metadata.getModified() : metadata.getCaptured();
+        widths[row] = metadata.getWidth();
+        heights[row] = metadata.getHeight();
+        orientations[row] = (byte) metadata.getOrientation();
+        albumColumn[row] = code(album, albums, albumCodes);
+        cameraColumn[row] = metadata.getCamera() == null ? NONE : code(metadata.getCamera(), cameras, cameraCodes);
+        names[row] = metadata.getName();
+    }
+
+    synchronized void remove(String album, String name) {
+        Integer row = rows.remove(key(album, name));
+        if (row == null) {
+            return;
+        }
+        int last = --size;
+        if (row != last) {
+            taken[row] = taken[last];
+            widths[row] = widths[last];
+            heights[row] = heights[last];
+            orientations[row] = orientations[last];
+            albumColumn[row] = albumColumn[last];
+            cameraColumn[row] = cameraColumn[last];
+            names[row] = names[last];
+            rows.put(key(albums.get(albumColumn[row]), names[row]), row);
+        }
+        names[last] = null;
+    }
+
+    synchronized void removeAlbum(String album) {
+        Integer code = albumCodes.get(album);
+        if (code == null) {
+            return;
+        }
+        for (int row = size - 1; row >= 0; row--) {
+            if (albumColumn[row] == code) {
+                remove(album, names[row]);
+            }
+        }
+    }
+
+    synchronized CatalogPage find(CatalogQuery query) {
+        int album = NONE;
+        if (query.getAlbum() != null) {
+            Integer code = albumCodes.get(query.getAlbum());
+            if (code == null) {
+                return new CatalogPage(new ArrayList<>(), null);
+            }
+            album = code;
+        }
+        int camera = NONE;
+        if (query.getCamera() != null) {
+            Integer code = cameraCodes.get(query.getCamera());
+            if (code == null) {
+                return new CatalogPage(new ArrayList<>(), null);
+            }
+            camera = code;
+        }
+        long from = query.getFrom() == null ? Long.MIN_VALUE : query.getFrom();
+        long to = query.getTo() == null ? Long.MAX_VALUE : query.getTo();
+        int minWidth = query.getMinWidth() == null ? 0 : query.getMinWidth();
+        int maxWidth = query.getMaxWidth() == null ? Integer.MAX_VALUE : query.getMaxWidth();
+        int minHeight = query.getMinHeight() == null ? 0 : query.getMinHeight();
+        int maxHeight = query.getMaxHeight() == null ? Integer.MAX_VALUE : query.getMaxHeight();
+        CatalogPhoto after = query.getAfter() == null ? null : fromCursor(query.getAfter());
+
+        Comparator<Integer> order = Comparator.<Integer>comparingLong(row -> taken[row])
+                .thenComparing(row -> albums.get(albumColumn[row]))
+                .thenComparing(row -> names[row]);
+        PriorityQueue<Integer> page = new PriorityQueue<>(query.getLimit() + 2, order.reversed());
+        for (int row = 0; row < size; row++) {
+            if (taken[row] >= from && taken[row] < to
+                    && widths[row] >= minWidth && widths[row] <= maxWidth
+                    && heights[row] >= minHeight && heights[row] <= maxHeight
+                    && (album == NONE || albumColumn[row] == album)
+                    && (camera == NONE || cameraColumn[row] == camera)
+                    && (after == null || isAfter(row, after))) {
+                page.add(row);
+                if (page.size() > query.getLimit() + 1) {
+                    page.poll();
+                }
+            }
+        }
+        boolean more = page.size() > query.getLimit();
+        if (more) {
+            page.poll();
+        }
+        LinkedList<CatalogPhoto> photos = new LinkedList<>();
+        while (!page.isEmpty()) {
+            photos.addFirst(photo(page.poll()));
+        }
+        return new CatalogPage(new ArrayList<>(photos), more ? toCursor(photos.getLast()) : null);
+    }
+
+    private boolean isAfter(int row, CatalogPhoto after) {
+        if (taken[row] != after.getTaken()) {
+            return taken[row] > after.getTaken();
+        }
+        int albumOrder = albums.get(albumColumn[row]).compareTo(after.getAlbum());
+        return albumOrder != 0 ? albumOrder > 0 : names[row].compareTo(after.getName()) > 0;
+    }
+
+    private CatalogPhoto photo(int row) {
+        return new CatalogPhoto(albums.get(albumColumn[row]), names[row], widths[row], heights[row], taken[row],
+                orientations[row], cameraColumn[row] == NONE ? null : cameras.get(cameraColumn[row]));
+    }
+
+    private String toCursor(CatalogPhoto photo) {
+        String position = photo.getTaken() + String.valueOf(SEPARATOR) + key(photo.getAlbum(), photo.getName());
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(position.getBytes(UTF_8));
+    }
+
+    private CatalogPhoto fromCursor(String cursor) {
+        try {
+            String[] position = new String(Base64.getUrlDecoder().decode(cursor), UTF_8).split("/", 3);
+            return new CatalogPhoto(position[1], position[2], 0, 0, Long.parseLong(position[0]), 0, null);
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException exception) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor, exception);
+        }
+    }
+
+    private int code(String value, List<String> values, Map<String, Integer> codes) {
+        return codes.computeIfAbsent(value, added -> {
+            values.add(added);
+            return values.size() - 1;
+        });
+    }
+
+    private void grow() {
+        int capacity = taken.length * 2;
+        taken = Arrays.copyOf(taken, capacity);
+        widths = Arrays.copyOf(widths, capacity);
+        heights = Arrays.copyOf(heights, capacity);
+        orientations = Arrays.copyOf(orientations, capacity);
+        albumColumn = Arrays.copyOf(albumColumn, capacity);
+        cameraColumn = Arrays.copyOf(cameraColumn, capacity);
+        names = Arrays.copyOf(names, capacity);
+    }
+
+    private static String key(String album, String name) {
+        return album + SEPARATOR + name;
+    }
+}
@@ -0,0 +1,440 @@
+package com.vitalsport.photos.index;
+
+import com.vitalsport.photos.model.SimilarImage;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static java.nio.file.Paths.get;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Keeps the 64-bit perceptual hashes of images in memory for Hamming distance search and persists every change to
+ * an append-only log, replayed and compacted on startup like the {@link LogMetadataIndex}.
+ * <p>
+ * Search uses multi-index hashing: every hash is split into four 16-bit chunks, each with a table of the entries
+ * holding a given chunk value. Two hashes within distance d have at least one chunk within d / 4 of each other, so
+ * a query only probes the buckets of chunk values that close to its own and checks the full distance of the entries
+ * found there. Entries live in primitive arrays; removed ones are skipped until the arrays are rebuilt, on startup
+ * or once they outnumber the live ones and the compaction threshold.
+ */
+@Slf4j
+@Component
+public class SimilarityIndex implements PublicMetrics {
+
+    public static final int MAX_DISTANCE = 15;
+
+    private static final int MAGIC = 0x56505331;
+
+    private static final byte PUT_IMAGE = 1;
+    private static final byte REMOVE_IMAGE = 2;
+    private static final byte REMOVE_ALBUM = 3;
+
+    private static final int CHUNKS = 4;
+    private static final int CHUNK_BITS = 16;
+    private static final int BUCKETS = 1 << CHUNK_BITS;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final char SEPARATOR = '/';
+    private static final int REMOVED = -1;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Integer> owners = new HashMap<>();
+    private final Map<String, NavigableMap<String, Integer>> users = new HashMap<>();
+    private final int[][][] buckets = new int[CHUNKS][BUCKETS][];
+    private final int[][] bucketSizes = new int[CHUNKS][BUCKETS];
+    private long[] hashes = new long[INITIAL_CAPACITY];
+    private int[] entryOwners = new int[INITIAL_CAPACITY];
+    private String[] entryKeys = new String[INITIAL_CAPACITY];
+    private int entries;
+    private int removed;
+
+    private Path logPath;
+    private int compactionThreshold;
+    private DataOutputStream journal;
+
+    @Autowired
+    public SimilarityIndex(@Value("${photos.similarity.path}") String logPath,
+                           @Value("${photos.similarity.compactionThreshold}") int compactionThreshold) {
+        this.logPath = get(logPath);
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    @PostConstruct
+    public void open() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (Files.exists(logPath)) {
+                replay();
+            }
+            compact();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (journal != null) {
+                journal.close();
+                journal = null;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void putImage(String userId, String album, String name, long hash) {
+        lock.writeLock().lock();
+        try {
+            applyPutImage(userId, album, name, hash);
+            append(output -> {
+                output.writeByte(PUT_IMAGE);
+                output.writeUTF(userId);
+                output.writeUTF(album);
+                output.writeUTF(name);
+                output.writeLong(hash);
+            });
+            compactIfSparse();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void removeImage(String userId, String album, String name) {
+        lock.writeLock().lock();
+        try {
+            applyRemoveImage(userId, album, name);
+            append(output -> {
+                output.writeByte(REMOVE_IMAGE);
+                output.writeUTF(userId);
+                output.writeUTF(album);
+                output.writeUTF(name);
+            });
+            compactIfSparse();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void removeAlbum(String userId, String album) {
+        lock.writeLock().lock();
+        try {
+            applyRemoveAlbum(userId, album);
+            append(output -> {
+                output.writeByte(REMOVE_ALBUM);
+                output.writeUTF(userId);
+                output.writeUTF(album);
+            });
+            compactIfSparse();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the hash of an image, or null when it hasn't been hashed.
+     */
+    public Long getHash(String userId, String album, String name) {
+        lock.readLock().lock();
+        try {
+            Integer entry = entry(userId, album, name);
+            return entry == null ? null : hashes[entry];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the images of the user whose hashes are within the distance of the given one, closest first.
+     */
+    public List<SimilarImage> findSimilar(String userId, long hash, int distance) {
+        if (distance < 0 || distance > MAX_DISTANCE) {
+            throw new IllegalArgumentException("distance should be between 0 and " + MAX_DISTANCE);
+        }
+        List<SimilarImage> similar = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            Integer owner = owners.get(userId);
+            if (owner == null) {
+                return similar;
+            }
+            int radius = distance / CHUNKS;
+            for (int chunk = 0; chunk < CHUNKS; chunk++) {
+                probe(new Query(owner, hash, distance, radius, chunk, similar), chunk(hash, chunk), 0, radius);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        similar.sort(Comparator.comparingInt(SimilarImage::getDistance)
+                .thenComparing(SimilarImage::getAlbum)
+                .thenComparing(SimilarImage::getName));
+        return similar;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        return Arrays.asList(
+                new Metric<>("photos.similarity.images", entries - removed),
+                new Metric<>("photos.similarity.removed", removed));
+    }
+
+    /**
+     * Visits every bucket whose chunk value differs from the query chunk in at most the remaining bits, flipping
+     * bits from the given position up so that each value is visited once.
+     */
+    private void probe(Query query, int value, int position, int flips) {
+        scan(query, value);
+        if (flips == 0) {
+            return;
+        }
+        for (int bit = position; bit < CHUNK_BITS; bit++) {
+            probe(query, value ^ (1 << bit), bit + 1, flips - 1);
+        }
+    }
+
+    /**
+     * Checks the entries of a bucket. An entry found through an earlier chunk, one within the radius there,
+     * has been reported already.
+     */
+    private void scan(Query query, int value) {
+        int[] bucket = buckets[query.chunk][value];
+        int size = bucketSizes[query.chunk][value];
+        for (int i = 0; i < size; i++) {
+            int entry = bucket[i];
+            if (entryOwners[entry] != query.owner) {
+                continue;
+            }
+            long hash = hashes[entry];
+            int distance = Long.bitCount(hash ^ query.hash);
+            if (distance > query.distance || foundEarlier(query, hash)) {
+                continue;
+            }
+            String key = entryKeys[entry];
+            int separator = key.indexOf(SEPARATOR);
+            query.similar.add(new SimilarImage(key.substring(0, separator), key.substring(separator + 1), distance));
+        }
+    }
+
+    private boolean foundEarlier(Query query, long hash) {
+        for (int chunk = 0; chunk < query.chunk; chunk++) {
+            if (Integer.bitCount(chunk(hash, chunk) ^ chunk(query.hash, chunk)) <= query.radius) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Integer entry(String userId, String album, String name) {
+        NavigableMap<String, Integer> images = users.get(userId);
+        return images == null ? null : images.get(key(album, name));
+    }
+
+    private void applyPutImage(String userId, String album, String name, long hash) {
+        applyRemoveImage(userId, album, name);
+        if (entries == hashes.length) {
+            grow();
+        }
+        int entry = entries++;
+        Integer owner = owners.computeIfAbsent(userId, id -> owners.size());
+        hashes[entry] = hash;
+        entryOwners[entry] = owner;
+        entryKeys[entry] = key(album, name);
+        for (int chunk = 0; chunk < CHUNKS; chunk++) {
+            int value = chunk(hash, chunk);
+            int[] bucket = buckets[chunk][value];
+            int size = bucketSizes[chunk][value];
+            if (bucket == null) {
+                bucket = buckets[chunk][value] = new int[2];
+            } else if (size == bucket.length) {
+                bucket = buckets[chunk][value] = Arrays.copyOf(bucket, size * 2);
+            }
+            bucket[size] = entry;
+            bucketSizes[chunk][value] = size + 1;
+        }
+        users.computeIfAbsent(userId, id -> new TreeMap<>()).put(entryKeys[entry], entry);
+    }
+
+    private void applyRemoveImage(String userId, String album, String name) {
+        NavigableMap<String, Integer> images = users.get(userId);
+        if (images != null) {
+            remove(images.remove(key(album, name)));
+        }
+    }
+
+    private void applyRemoveAlbum(String userId, String album) {
+        NavigableMap<String, Integer> images = users.get(userId);
+        if (images != null) {
+            Map<String, Integer> albumImages = images.subMap(album + SEPARATOR, true,
+                    album + (char) (SEPARATOR + 1), false);
+            albumImages.values().forEach(this::remove);
+            albumImages.clear();
+        }
+    }
+
+    private void remove(Integer entry) {
+        if (entry != null) {
+            entryOwners[entry] = REMOVED;
+            entryKeys[entry] = null;
+            removed++;
+        }
+    }
+
+    private void grow() {
+        int capacity = hashes.length * 2;
+        hashes = Arrays.copyOf(hashes, capacity);
+        entryOwners = Arrays.copyOf(entryOwners, capacity);
+        entryKeys = Arrays.copyOf(entryKeys, capacity);
+    }
+
+    private void replay() throws IOException {
+        int records = 0;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(logPath)))) {
+            if (input.readInt() != MAGIC) {
+                throw new IOException("Unknown similarity log format: " + logPath);
+            }
+            while (true) {
+                byte operation = input.readByte();
+                String userId = input.readUTF();
+                String album = input.readUTF();
+                switch (operation) {
+                    case PUT_IMAGE:
+                        applyPutImage(userId, album, input.readUTF(), input.readLong());
+                        break;
+                    case REMOVE_IMAGE:
+                        applyRemoveImage(userId, album, input.readUTF());
+                        break;
+                    case REMOVE_ALBUM:
+                        applyRemoveAlbum(userId, album);
+                        break;
+                    default:
+                        throw new IOException("Unknown similarity log operation: " + operation);
+                }
+                records++;
+            }
+        } catch (EOFException exception) {
+            log.info("Replayed {} similarity records from: {}", records, logPath);
+        }
+    }
+
+    /**
+     * Rewrites the log as a snapshot of the live entries, rebuilding the arrays without the removed ones,
+     * and reopens it for appending.
+     */
+    private void compact() throws IOException {
+        close();
+        int count = entries;
+        long[] liveHashes = Arrays.copyOf(hashes, count);
+        String[] liveKeys = Arrays.copyOf(entryKeys, count);
+        int[] liveOwners = Arrays.copyOf(entryOwners, count);
+        Map<Integer, String> userIds = new HashMap<>();
+        owners.forEach((userId, owner) -> userIds.put(owner, userId));
+        owners.clear();
+        users.clear();
+        for (int[] sizes : bucketSizes) {
+            Arrays.fill(sizes, 0);
+        }
+        entries = 0;
+        removed = 0;
+
+        Path directory = logPath.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path snapshot = Files.createTempFile(directory, ".similarity-", ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(snapshot)))) {
+            output.writeInt(MAGIC);
+            for (int entry = 0; entry < count; entry++) {
+                if (liveOwners[entry] == REMOVED) {
+                    continue;
+                }
+                String userId = userIds.get(liveOwners[entry]);
+                String key = liveKeys[entry];
+                int separator = key.indexOf(SEPARATOR);
+                String album = key.substring(0, separator);
+                String name = key.substring(separator + 1);
+                applyPutImage(userId, album, name, liveHashes[entry]);
+                output.writeByte(PUT_IMAGE);
+                output.writeUTF(userId);
+                output.writeUTF(album);
+                output.writeUTF(name);
+                output.writeLong(liveHashes[entry]);
+            }
+        }
+        Files.move(snapshot, logPath, ATOMIC_MOVE, REPLACE_EXISTING);
+        journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logPath.toFile(), true)));
+    }
+
+    /**
+     * Compacts once removed entries are both over the threshold and more than the live ones, so that searches don't
+     * wade through them and the cost of rebuilding is spread over as many removals as there are live entries.
+     */
+    private void compactIfSparse() {
+        if (removed >= compactionThreshold && removed > entries - removed) {
+            try {
+                compact();
+            } catch (IOException exception) {
+                throw new InternalError(exception);
+            }
+        }
+    }
+
+    private void append(LogWriter writer) {
+        try {
+            writer.write(journal);
+            journal.flush();
+        } catch (IOException exception) {
+            throw new InternalError(exception);
+        }
+    }
+
+    private static int chunk(long hash, int chunk) {
+        return (int) (hash >>> (chunk * CHUNK_BITS)) & (BUCKETS - 1);
+    }
+
+    private static String key(String album, String name) {
+        return album + SEPARATOR + name;
+    }
+
+    private interface LogWriter {
+        void write(DataOutputStream output) throws IOException;
+    }
+
+    private static class Query {
+        private final int owner;
+        private final long hash;
+        private final int distance;
+        private final int radius;
+        private final int chunk;
+        private final List<SimilarImage> similar;
+
+        Query(int owner, long hash, int distance, int radius, int chunk, List<SimilarImage> similar) {
+            this.owner = owner;
+            this.hash = hash;
+            this.distance = distance;
+            this.radius = radius;
+            this.chunk = chunk;
+            this.similar = similar;
+        }
+    }
+}
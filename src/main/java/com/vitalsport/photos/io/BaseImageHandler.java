@@ -1,70 +1,162 @@
 package com.vitalsport.photos.io;
 
 import com.vitalsport.photos.model.ImageHolder;
-import org.springframework.http.MediaType;
+import com.vitalsport.photos.model.ImageMetadata;
+import org.apache.commons.io.FileUtils;
+import org.springframework.core.io.FileSystemResource;
 import org.springframework.stereotype.Component;
 
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
 import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.function.Function;
 
-import static java.net.URLConnection.guessContentTypeFromName;
-import static org.apache.commons.io.IOUtils.toByteArray;
-import static org.springframework.http.MediaType.valueOf;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 
+/**
+ * Local file system storage: a path is a file path.
+ */
 @Component
 public class BaseImageHandler implements ImageHandler {
 
+    private static final String TEMPORARY_PREFIX = ".upload-";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
     @Override
     public void upload(String path, byte[] bytes) throws IOException {
-        File imageFile = createFile(path);
-        try (OutputStream fileStream = new BufferedOutputStream(
-                new FileOutputStream(imageFile))) {
-            fileStream.write(bytes);
+        upload(path, new ByteArrayInputStream(bytes));
+    }
+
+    @Override
+    public void upload(String path, InputStream input) throws IOException {
+        Path target = file(path).toPath().toAbsolutePath();
+        Path temporary = createTemporaryFile(target.getParent());
+        try {
+            Files.copy(input, temporary, REPLACE_EXISTING);
+            Files.move(temporary, target, ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Moves the file into place, or copies it next to the target first when it is on another file system, e.g. when
+     * upload sessions are staged apart from the volume that owns the user, so the target appears complete either way.
+     */
+    @Override
+    public void upload(String path, Path file) throws IOException {
+        Path target = file(path).toPath().toAbsolutePath();
+        Files.createDirectories(target.getParent());
+        try {
+            Files.move(file, target, ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException exception) {
+            Path temporary = createTemporaryFile(target.getParent());
+            try {
+                Files.copy(file, temporary, REPLACE_EXISTING);
+                Files.move(temporary, target, ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+            Files.delete(file);
         }
     }
 
     @Override
     public ImageHolder download(String path) throws IOException {
-        File file = prepareFile(path);
-        MediaType mimeType = getMimeType(file);
-        try (InputStream input = new FileInputStream(file)) {
-            return new ImageHolder(mimeType, toByteArray(input));
+        File file = file(path);
+        if (!file.isFile()) {
+            throw new FileNotFoundException(path);
+        }
+        long length = file.length();
+        long lastModified = file.lastModified();
+        return new ImageHolder(ImageFormats.mediaType(file.getName()), new FileSystemResource(file),
+                length, lastModified, entityTag(length, lastModified));
+    }
+
+    @Override
+    public ImageMetadata readMetadata(String path) throws IOException {
+        File file = file(path);
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            return ImageFormats.metadata(file.getName(), attributes.size(),
+                    attributes.creationTime().toMillis(), attributes.lastModifiedTime().toMillis(), input);
         }
     }
 
     @Override
-    public Collection<String> getImageInfo(Path userFolder, Function<Path, String> infoFunction) throws IOException {
-        Collection<String> photos = new ArrayList<>();
+    public Collection<String> list(String path) throws IOException {
+        Collection<String> names = new ArrayList<>();
+        Path directory = file(path).toPath();
 
-        if (Files.exists(userFolder)) {
-            try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(userFolder)) {
-                for (Path path : directoryStream) {
-                    photos.add(infoFunction.apply(path));
+        if (Files.isDirectory(directory)) {
+            try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directory)) {
+                for (Path entry : directoryStream) {
+                    String name = entry.getFileName().toString();
+                    if (!name.startsWith(TEMPORARY_PREFIX)) {
+                        names.add(name);
+                    }
                 }
             }
         }
 
-        return photos;
+        return names;
     }
 
     @Override
-    public File prepareFile(String path) {
-        return new File(path);
+    public boolean exists(String path) {
+        return file(path).exists();
+    }
+
+    @Override
+    public void setLastModified(String path, long lastModified) throws IOException {
+        Files.setLastModifiedTime(file(path).toPath(), FileTime.fromMillis(lastModified));
+    }
+
+    @Override
+    public void createDirectory(String path) throws IOException {
+        Files.createDirectories(file(path).toPath());
+    }
+
+    @Override
+    public boolean delete(String path) {
+        return file(path).delete();
+    }
+
+    @Override
+    public void deleteDirectory(String path) throws IOException {
+        FileUtils.deleteDirectory(file(path));
+    }
+
+    @Override
+    public void move(String source, String target) throws IOException {
+        Path destination = file(target).toPath();
+        Files.createDirectories(destination.getParent());
+        Files.move(file(source).toPath(), destination, ATOMIC_MOVE);
     }
 
+    private File file(String path) {
+        return new File(path);
+    }
 
-    private MediaType getMimeType(File file) throws IOException {
-        return valueOf(guessContentTypeFromName(file.getName()));
+    private String entityTag(long length, long lastModified) {
+        return '"' + Long.toHexString(length) + '-' + Long.toHexString(lastModified) + '"';
     }
 
-    private File createFile(String path) {
-        File file = prepareFile(path);
-        file.getParentFile().mkdirs();
-        return file;
+    private Path createTemporaryFile(Path directory) throws IOException {
+        try {
+            return Files.createTempFile(directory, TEMPORARY_PREFIX, TEMPORARY_SUFFIX);
+        } catch (NoSuchFileException exception) {
+            Files.createDirectories(directory);
+            return Files.createTempFile(directory, TEMPORARY_PREFIX, TEMPORARY_SUFFIX);
+        }
     }
 }
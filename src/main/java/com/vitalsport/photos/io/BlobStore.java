@@ -0,0 +1,159 @@
+package com.vitalsport.photos.io;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.stream.Stream;
+
+import static java.nio.file.Paths.get;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Stores image content once per SHA-256 digest in a sharded directory tree ({@code ab/cd/abcd...}).
+ * Album entries are hard links to a blob, so the file system link count is the reference count:
+ * deleting an entry drops a reference and a blob with a single remaining link is unreferenced.
+ */
+@Slf4j
+@Component
+public class BlobStore {
+
+    private static final String TEMPORARY_PREFIX = ".blob-";
+    private static final String ENTRY_PREFIX = ".upload-";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final int BUFFER_SIZE = 8192;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Path root;
+
+    @Autowired
+    public BlobStore(@Value("${photos.blobs.path}") String root) {
+        this.root = get(root).toAbsolutePath();
+    }
+
+    /**
+     * Stores the content unless an identical blob exists and links it at the target, replacing any entry there.
+     */
+    public void link(InputStream input, Path target) throws IOException {
+        Files.createDirectories(root);
+        Path temporary = Files.createTempFile(root, TEMPORARY_PREFIX, TEMPORARY_SUFFIX);
+        try {
+            MessageDigest digest = sha256();
+            try (InputStream digestInput = new DigestInputStream(input, digest)) {
+                Files.copy(digestInput, temporary, REPLACE_EXISTING);
+            }
+            link(temporary, hex(digest.digest()), target);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Same as {@link #link(InputStream, Path)} for a local file, which is moved into the store instead of copied.
+     */
+    public void link(Path file, Path target) throws IOException {
+        MessageDigest digest = sha256();
+        try (InputStream input = new DigestInputStream(Files.newInputStream(file), digest)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (input.read(buffer) != -1) {
+                // the digest sees every byte read
+            }
+        }
+        try {
+            link(file, hex(digest.digest()), target);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private void link(Path content, String hash, Path target) throws IOException {
+        Path blob = blobPath(hash);
+        Files.createDirectories(target.getParent());
+        Path entry = Files.createTempFile(target.getParent(), ENTRY_PREFIX, TEMPORARY_SUFFIX);
+        Files.delete(entry);
+        try {
+            synchronized (this) {
+                if (Files.exists(blob)) {
+                    log.debug("Reusing blob: {} for: {}", blob.getFileName(), target);
+                } else {
+                    Files.createDirectories(blob.getParent());
+                    Files.move(content, blob, ATOMIC_MOVE);
+                }
+                Files.createLink(entry, blob);
+            }
+            Files.move(entry, target, ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(entry);
+        }
+    }
+
+    /**
+     * Reclaims blobs that are no longer linked from any album.
+     */
+    @Scheduled(fixedDelayString = "${photos.blobs.sweepInterval}")
+    public void sweep() throws IOException {
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        Collection<Path> blobs = new ArrayList<>();
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.filter(Files::isRegularFile)
+                    .filter(path -> !path.getFileName().toString().startsWith(TEMPORARY_PREFIX))
+                    .forEach(blobs::add);
+        }
+        int reclaimed = 0;
+        for (Path blob : blobs) {
+            synchronized (this) {
+                if (references(blob) == 0) {
+                    Files.deleteIfExists(blob);
+                    reclaimed++;
+                }
+            }
+        }
+        if (reclaimed > 0) {
+            log.info("Reclaimed {} unreferenced blobs from: {}", reclaimed, root);
+        }
+    }
+
+    int references(Path blob) throws IOException {
+        try {
+            return (Integer) Files.getAttribute(blob, "unix:nlink") - 1;
+        } catch (NoSuchFileException exception) {
+            return 0;
+        }
+    }
+
+    Path blobPath(String hash) {
+        return root.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash);
+    }
+
+    private MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException exception) {
+            throw new InternalError(exception);
+        }
+    }
+
+    private String hex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+}
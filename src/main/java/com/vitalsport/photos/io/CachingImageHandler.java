@@ -0,0 +1,214 @@
+package com.vitalsport.photos.io;
+
+import com.vitalsport.photos.model.ImageHolder;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.http.MediaType;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps recently downloaded images in memory, evicting the least recently used ones once the byte budget
+ * is exceeded. Entries are invalidated by every mutation going through this handler.
+ */
+public class CachingImageHandler extends DelegatingImageHandler implements PublicMetrics {
+
+    private final long capacity;
+    private final long maxEntrySize;
+    private final boolean offHeap;
+
+    private final LinkedHashMap<String, CachedImage> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    private long generation;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public CachingImageHandler(ImageHandler delegate, long capacity, long maxEntrySize, boolean offHeap) {
+        super(delegate);
+        this.capacity = capacity;
+        this.maxEntrySize = Math.min(maxEntrySize, capacity);
+        this.offHeap = offHeap;
+    }
+
+    @Override
+    public void upload(String path, byte[] bytes) throws IOException {
+        invalidate(path);
+        delegate.upload(path, bytes);
+        invalidate(path);
+    }
+
+    @Override
+    public void upload(String path, InputStream input) throws IOException {
+        invalidate(path);
+        delegate.upload(path, input);
+        invalidate(path);
+    }
+
+    @Override
+    public void upload(String path, Path file) throws IOException {
+        invalidate(path);
+        delegate.upload(path, file);
+        invalidate(path);
+    }
+
+    @Override
+    public void setLastModified(String path, long lastModified) throws IOException {
+        delegate.setLastModified(path, lastModified);
+        invalidate(path);
+    }
+
+    @Override
+    public ImageHolder download(String path) throws IOException {
+        long loadGeneration;
+        synchronized (this) {
+            CachedImage cached = entries.get(path);
+            if (cached != null) {
+                hits.increment();
+                return cached.toImageHolder(path);
+            }
+            loadGeneration = generation;
+        }
+        misses.increment();
+
+        ImageHolder imageHolder = delegate.download(path);
+        if (imageHolder.getContentLength() > maxEntrySize) {
+            return imageHolder;
+        }
+
+        CachedImage cached = new CachedImage(imageHolder, read(imageHolder));
+        synchronized (this) {
+            if (loadGeneration == generation && !entries.containsKey(path)) {
+                entries.put(path, cached);
+                size += cached.size();
+                evict();
+            }
+        }
+        return cached.toImageHolder(path);
+    }
+
+    @Override
+    public boolean delete(String path) {
+        try {
+            return delegate.delete(path);
+        } finally {
+            invalidate(path);
+        }
+    }
+
+    @Override
+    public void deleteDirectory(String path) throws IOException {
+        try {
+            delegate.deleteDirectory(path);
+        } finally {
+            invalidateDirectory(path);
+        }
+    }
+
+    @Override
+    public void move(String source, String target) throws IOException {
+        try {
+            delegate.move(source, target);
+        } finally {
+            invalidate(source);
+            invalidateDirectory(source);
+        }
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        long currentSize;
+        int currentEntries;
+        synchronized (this) {
+            currentSize = size;
+            currentEntries = entries.size();
+        }
+        return Arrays.<Metric<?>>asList(
+                new Metric<>("photos.cache.hits", hits.sum()),
+                new Metric<>("photos.cache.misses", misses.sum()),
+                new Metric<>("photos.cache.evictions", evictions.sum()),
+                new Metric<>("photos.cache.entries", currentEntries),
+                new Metric<>("photos.cache.size", currentSize),
+                new Metric<>("photos.cache.capacity", capacity));
+    }
+
+    private synchronized void invalidate(String path) {
+        generation++;
+        CachedImage removed = entries.remove(path);
+        if (removed != null) {
+            size -= removed.size();
+        }
+    }
+
+    private synchronized void invalidateDirectory(String path) {
+        generation++;
+        String prefix = path.endsWith("/") ? path : path + "/";
+        Iterator<Map.Entry<String, CachedImage>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, CachedImage> entry = iterator.next();
+            if (entry.getKey().startsWith(prefix)) {
+                size -= entry.getValue().size();
+                iterator.remove();
+            }
+        }
+    }
+
+    private void evict() {
+        Iterator<CachedImage> iterator = entries.values().iterator();
+        while (size > capacity && iterator.hasNext()) {
+            size -= iterator.next().size();
+            iterator.remove();
+            evictions.increment();
+        }
+    }
+
+    private ByteBuffer read(ImageHolder imageHolder) throws IOException {
+        int length = (int) imageHolder.getContentLength();
+        ByteBuffer buffer = offHeap ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+        try (InputStream input = imageHolder.getResource().getInputStream();
+             ReadableByteChannel channel = Channels.newChannel(input)) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    break;
+                }
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static class CachedImage {
+        private final MediaType mediaType;
+        private final ByteBuffer data;
+        private final long lastModified;
+        private final String entityTag;
+
+        CachedImage(ImageHolder imageHolder, ByteBuffer data) {
+            this.mediaType = imageHolder.getMediaType();
+            this.data = data;
+            this.lastModified = imageHolder.getLastModified();
+            this.entityTag = imageHolder.getEntityTag();
+        }
+
+        long size() {
+            return data.capacity();
+        }
+
+        ImageHolder toImageHolder(String path) {
+            return new ImageHolder(mediaType, new ByteBufferResource(data, path), data.remaining(),
+                    lastModified, entityTag);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.vitalsport.photos.io;
+
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.LongConsumer;
+
+/**
+ * Reports the bytes read from another resource. Skipped bytes are not counted, so ranges only count what was sent.
+ * Ranges are opened on the source, so wrapping a resource doesn't take away its positioned reads.
+ */
+public class CountingResource extends AbstractResource implements RangedResource {
+
+    private final Resource source;
+    private final LongConsumer counter;
+
+    public CountingResource(Resource source, LongConsumer counter) {
+        this.source = source;
+        this.counter = counter;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return new CountingInputStream(source.getInputStream());
+    }
+
+    @Override
+    public InputStream getInputStream(long start, long length) throws IOException {
+        return new CountingInputStream(new RangeResource(source, start, length).getInputStream());
+    }
+
+    @Override
+    public long contentLength() throws IOException {
+        return source.contentLength();
+    }
+
+    @Override
+    public long lastModified() throws IOException {
+        return source.lastModified();
+    }
+
+    @Override
+    public boolean exists() {
+        return source.exists();
+    }
+
+    @Override
+    public String getDescription() {
+        return source.getDescription();
+    }
+
+    private class CountingInputStream extends FilterInputStream {
+
+        CountingInputStream(InputStream input) {
+            super(input);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value != -1) {
+                counter.accept(1);
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                counter.accept(read);
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.vitalsport.photos.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Stores uploaded content in the {@link BlobStore} and links it at the requested path, so identical images
+ * uploaded into several albums share one file on disk and in the page cache. Reads and deletes need no special
+ * handling: an entry is an ordinary file and removing it releases its reference.
+ */
+public class DeduplicatingImageHandler extends DelegatingImageHandler {
+
+    private final BlobStore blobStore;
+
+    public DeduplicatingImageHandler(ImageHandler delegate, BlobStore blobStore) {
+        super(delegate);
+        this.blobStore = blobStore;
+    }
+
+    @Override
+    public void upload(String path, byte[] bytes) throws IOException {
+        upload(path, new ByteArrayInputStream(bytes));
+    }
+
+    @Override
+    public void upload(String path, InputStream input) throws IOException {
+        blobStore.link(input, Paths.get(path).toAbsolutePath());
+    }
+
+    @Override
+    public void upload(String path, Path file) throws IOException {
+        blobStore.link(file, Paths.get(path).toAbsolutePath());
+    }
+}
@@ -0,0 +1,81 @@
+package com.vitalsport.photos.io;
+
+import com.vitalsport.photos.model.ImageHolder;
+import com.vitalsport.photos.model.ImageMetadata;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Collection;
+
+/**
+ * Forwards every operation to another handler. Decorators override only the operations they change.
+ */
+public abstract class DelegatingImageHandler implements ImageHandler {
+
+    protected final ImageHandler delegate;
+
+    protected DelegatingImageHandler(ImageHandler delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void upload(String path, byte[] bytes) throws IOException {
+        delegate.upload(path, bytes);
+    }
+
+    @Override
+    public void upload(String path, InputStream input) throws IOException {
+        delegate.upload(path, input);
+    }
+
+    @Override
+    public void upload(String path, Path file) throws IOException {
+        delegate.upload(path, file);
+    }
+
+    @Override
+    public ImageHolder download(String path) throws IOException {
+        return delegate.download(path);
+    }
+
+    @Override
+    public ImageMetadata readMetadata(String path) throws IOException {
+        return delegate.readMetadata(path);
+    }
+
+    @Override
+    public Collection<String> list(String path) throws IOException {
+        return delegate.list(path);
+    }
+
+    @Override
+    public boolean exists(String path) {
+        return delegate.exists(path);
+    }
+
+    @Override
+    public void setLastModified(String path, long lastModified) throws IOException {
+        delegate.setLastModified(path, lastModified);
+    }
+
+    @Override
+    public void createDirectory(String path) throws IOException {
+        delegate.createDirectory(path);
+    }
+
+    @Override
+    public boolean delete(String path) {
+        return delegate.delete(path);
+    }
+
+    @Override
+    public void deleteDirectory(String path) throws IOException {
+        delegate.deleteDirectory(path);
+    }
+
+    @Override
+    public void move(String source, String target) throws IOException {
+        delegate.move(source, target);
+    }
+}
@@ -0,0 +1,175 @@
+package com.vitalsport.photos.io;
+
+import javax.imageio.stream.ImageInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * Reads the EXIF fields the catalog needs from the APP1 segment of a JPEG header, stopping at the first segment
+ * that isn't metadata, so no image data is read, let alone decoded. Capture times without an EXIF offset are taken
+ * as UTC. Other formats, missing fields and broken headers only leave the fields unknown.
+ */
+final class ExifReader {
+
+    private static final int SOI = 0xFFD8;
+    private static final int APP1 = 0xFFE1;
+    private static final int SOS = 0xFFDA;
+    private static final int FIRST_APP = 0xFFE0;
+    private static final int LAST_APP = 0xFFEF;
+    private static final int COMMENT = 0xFFFE;
+    private static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+
+    private static final int MAKE = 0x010F;
+    private static final int MODEL = 0x0110;
+    private static final int ORIENTATION = 0x0112;
+    private static final int DATE_TIME = 0x0132;
+    private static final int EXIF_IFD = 0x8769;
+    private static final int DATE_TIME_ORIGINAL = 0x9003;
+    private static final int OFFSET_TIME_ORIGINAL = 0x9011;
+
+    private static final int ASCII = 2;
+    private static final int SHORT = 3;
+    private static final int ENTRY_SIZE = 12;
+    private static final DateTimeFormatter DATE_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy:MM:dd HH:mm:ss");
+
+    private ExifReader() {
+    }
+
+    /**
+     * Reads the fields from the current position of the input, which should be the start of the image.
+     */
+    static Exif read(ImageInputStream input) {
+        try {
+            input.setByteOrder(ByteOrder.BIG_ENDIAN);
+            if (input.readUnsignedShort() != SOI) {
+                return Exif.UNKNOWN;
+            }
+            while (true) {
+                int marker = input.readUnsignedShort();
+                if (marker == SOS || !(marker >= FIRST_APP && marker <= LAST_APP || marker == COMMENT)) {
+                    return Exif.UNKNOWN;
+                }
+                int length = input.readUnsignedShort() - 2;
+                if (marker == APP1 && length > EXIF_HEADER.length) {
+                    byte[] segment = new byte[length];
+                    input.readFully(segment);
+                    if (isExif(segment)) {
+                        return parse(ByteBuffer.wrap(segment, EXIF_HEADER.length, length - EXIF_HEADER.length)
+                                .slice());
+                    }
+                } else {
+                    input.seek(input.getStreamPosition() + length);
+                }
+            }
+        } catch (IOException | RuntimeException exception) {
+            return Exif.UNKNOWN;
+        }
+    }
+
+    private static boolean isExif(byte[] segment) {
+        for (int i = 0; i < EXIF_HEADER.length; i++) {
+            if (segment[i] != EXIF_HEADER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses the TIFF structure: a byte order mark, then IFD0 holding the camera and orientation and pointing
+     * to the EXIF IFD holding the capture time.
+     */
+    private static Exif parse(ByteBuffer tiff) {
+        tiff.order(tiff.getShort(0) == 0x4949 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        Exif exif = new Exif();
+        String make = null;
+        String dateTime = null;
+        int exifDirectory = -1;
+        int directory = tiff.getInt(4);
+        int entries = tiff.getShort(directory) & 0xFFFF;
+        for (int i = 0; i < entries; i++) {
+            int entry = directory + 2 + i * ENTRY_SIZE;
+            switch (tiff.getShort(entry) & 0xFFFF) {
+                case MAKE:
+                    make = ascii(tiff, entry);
+                    break;
+                case MODEL:
+                    exif.camera = ascii(tiff, entry);
+                    break;
+                case ORIENTATION:
+                    if ((tiff.getShort(entry + 2) & 0xFFFF) == SHORT) {
+                        exif.orientation = tiff.getShort(entry + 8) & 0xFFFF;
+                    }
+                    break;
+                case DATE_TIME:
+                    dateTime = ascii(tiff, entry);
+                    break;
+                case EXIF_IFD:
+                    exifDirectory = tiff.getInt(entry + 8);
+                    break;
+                default:
+                    break;
+            }
+        }
+        String offset = null;
+        if (exifDirectory > 0) {
+            entries = tiff.getShort(exifDirectory) & 0xFFFF;
+            for (int i = 0; i < entries; i++) {
+                int entry = exifDirectory + 2 + i * ENTRY_SIZE;
+                int tag = tiff.getShort(entry) & 0xFFFF;
+                if (tag == DATE_TIME_ORIGINAL) {
+                    dateTime = ascii(tiff, entry);
+                } else if (tag == OFFSET_TIME_ORIGINAL) {
+                    offset = ascii(tiff, entry);
+                }
+            }
+        }
+        if (make != null && exif.camera != null && !exif.camera.toLowerCase().startsWith(make.toLowerCase())) {
+            exif.camera = make + ' ' + exif.camera;
+        }
+        exif.captured = time(dateTime, offset);
+        return exif;
+    }
+
+    private static String ascii(ByteBuffer tiff, int entry) {
+        if ((tiff.getShort(entry + 2) & 0xFFFF) != ASCII) {
+            return null;
+        }
+        int count = tiff.getInt(entry + 4);
+        int start = count <= 4 ? entry + 8 : tiff.getInt(entry + 8);
+        byte[] bytes = new byte[count];
+        for (int i = 0; i < count; i++) {
+            bytes[i] = tiff.get(start + i);
+        }
+        String value = new String(bytes, US_ASCII).trim();
+        int end = value.indexOf(0);
+        value = (end < 0 ? value : value.substring(0, end)).trim();
+        return value.isEmpty() ? null : value;
+    }
+
+    private static Long time(String dateTime, String offset) {
+        if (dateTime == null) {
+            return null;
+        }
+        try {
+            ZoneOffset zone = offset == null ? ZoneOffset.UTC : ZoneOffset.of(offset);
+            return LocalDateTime.parse(dateTime, DATE_TIME_FORMAT).toInstant(zone).toEpochMilli();
+        } catch (RuntimeException exception) {
+            return null;
+        }
+    }
+
+    static final class Exif {
+        static final Exif UNKNOWN = new Exif();
+
+        Long captured;
+        int orientation = 1;
+        String camera;
+    }
+}
@@ -0,0 +1,79 @@
+package com.vitalsport.photos.io;
+
+import com.vitalsport.photos.model.ImageMetadata;
+import org.springframework.http.MediaType;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Dimension;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import static java.net.URLConnection.guessContentTypeFromName;
+
+/**
+ * Type and header inspection shared by the storage implementations.
+ */
+final class ImageFormats {
+
+    private static final Map<String, String> EXTENSION_TYPES = new HashMap<>();
+
+    static {
+        EXTENSION_TYPES.put("webp", "image/webp");
+        EXTENSION_TYPES.put("jpeg", "image/jpeg");
+        EXTENSION_TYPES.put("bmp", "image/bmp");
+    }
+
+    private ImageFormats() {
+    }
+
+    /**
+     * Guesses the type from the file name; names the JDK doesn't know, such as transcoded WebP variants,
+     * fall back to the extension table and finally to application/octet-stream.
+     */
+    static MediaType mediaType(String name) {
+        String mimeType = guessContentTypeFromName(name);
+        if (mimeType == null) {
+            mimeType = EXTENSION_TYPES.get(name.substring(name.lastIndexOf('.') + 1).toLowerCase());
+        }
+        return mimeType == null ? MediaType.APPLICATION_OCTET_STREAM : MediaType.valueOf(mimeType);
+    }
+
+    /**
+     * Builds the metadata of an image from its file attributes and the fields of its header.
+     */
+    static ImageMetadata metadata(String name, long size, long created, long modified, ImageInputStream input)
+            throws IOException {
+        ExifReader.Exif exif = ExifReader.Exif.UNKNOWN;
+        if (input != null) {
+            exif = ExifReader.read(input);
+            input.seek(0);
+        }
+        Dimension dimensions = dimensions(input);
+        return new ImageMetadata(name, size, mediaType(name).toString(), dimensions.width, dimensions.height,
+                created, modified, exif.captured, exif.orientation, exif.camera);
+    }
+
+    /**
+     * Reads the dimensions from the image header only. Unknown formats and broken headers give 0x0.
+     */
+    static Dimension dimensions(ImageInputStream input) {
+        Dimension dimension = new Dimension();
+        Iterator<ImageReader> readers = input == null ? null : ImageIO.getImageReaders(input);
+        if (readers != null && readers.hasNext()) {
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                dimension.setSize(reader.getWidth(0), reader.getHeight(0));
+            } catch (IOException | RuntimeException exception) {
+                // a broken header only leaves the dimensions unknown
+            } finally {
+                reader.dispose();
+            }
+        }
+        return dimension;
+    }
+}
@@ -1,19 +1,54 @@
 package com.vitalsport.photos.io;
 
 import com.vitalsport.photos.model.ImageHolder;
+import com.vitalsport.photos.model.ImageMetadata;
 
-import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Path;
 import java.util.Collection;
-import java.util.function.Function;
 
+/**
+ * Storage of images under slash separated paths. What a path maps to, a file or an object key, is up to the
+ * implementation; directories are implied by the paths of their entries.
+ */
 public interface ImageHandler {
     void upload(String path, byte[] bytes) throws IOException;
 
+    void upload(String path, InputStream input) throws IOException;
+
+    /**
+     * Stores a completely written local file, which is consumed: local storage moves it into place when it is on
+     * the same file system as the images and copies it otherwise.
+     */
+    void upload(String path, Path file) throws IOException;
+
     ImageHolder download(String path) throws IOException;
 
-    Collection<String> getImageInfo(Path userFolder, Function<Path, String> dataFunction) throws IOException;
+    ImageMetadata readMetadata(String path) throws IOException;
+
+    /**
+     * Returns the names of the entries directly under the path, or nothing when it doesn't exist.
+     */
+    Collection<String> list(String path) throws IOException;
+
+    boolean exists(String path);
+
+    /**
+     * Sets when the file at the path was last modified, which its entity tag derives from, e.g. for a copy to be
+     * tagged like the original. Object stores tag objects by their content and ignore it.
+     */
+    void setLastModified(String path, long lastModified) throws IOException;
+
+    void createDirectory(String path) throws IOException;
+
+    boolean delete(String path);
+
+    void deleteDirectory(String path) throws IOException;
 
-    File prepareFile(String path);
+    /**
+     * Moves a file or a directory to a path that doesn't exist yet, creating its parent directories. Local storage
+     * renames it atomically, whatever it holds; object stores copy every object under it.
+     */
+    void move(String source, String target) throws IOException;
 }
@@ -0,0 +1,271 @@
+package com.vitalsport.photos.io;
+
+import org.springframework.stereotype.Component;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+@Component
+public class ImageScaler {
+
+    private static final String DEFAULT_FORMAT = "png";
+    private static final String JPEG = "image/jpeg";
+    private static final int HASH_SIZE = 8;
+    private static final int HASH_SOURCE_SIZE = 64;
+    private static final int SOI = 0xFFD8;
+    private static final int APP0 = 0xFFE0;
+    private static final int APP14 = 0xFFEE;
+    private static final int APP15 = 0xFFEF;
+    private static final int COMMENT = 0xFFFE;
+
+    public BufferedImage read(InputStream input) throws IOException {
+        return ImageIO.read(input);
+    }
+
+    /**
+     * Turns the image upright according to its EXIF orientation: 2 to 8 mirror and rotate it, anything else leaves
+     * it as it is.
+     */
+    public BufferedImage orient(BufferedImage image, int orientation) {
+        if (orientation < 2 || orientation > 8) {
+            return image;
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        AffineTransform transform = new AffineTransform();
+        switch (orientation) {
+            case 2:
+                transform.translate(width, 0);
+                transform.scale(-1, 1);
+                break;
+            case 3:
+                transform.translate(width, height);
+                transform.rotate(Math.PI);
+                break;
+            case 4:
+                transform.translate(0, height);
+                transform.scale(1, -1);
+                break;
+            case 5:
+                transform.rotate(Math.PI / 2);
+                transform.scale(1, -1);
+                break;
+            case 6:
+                transform.translate(height, 0);
+                transform.rotate(Math.PI / 2);
+                break;
+            case 7:
+                transform.translate(height, width);
+                transform.rotate(Math.PI / 2);
+                transform.scale(-1, 1);
+                break;
+            default:
+                transform.translate(0, width);
+                transform.rotate(-Math.PI / 2);
+                break;
+        }
+        boolean transposed = orientation >= 5;
+        BufferedImage result = new BufferedImage(transposed ? height : width, transposed ? width : height,
+                image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = result.createGraphics();
+        try {
+            graphics.drawImage(image, transform, null);
+        } finally {
+            graphics.dispose();
+        }
+        return result;
+    }
+
+    /**
+     * Scales the image so that its longest side is at most maxSize pixels, halving step by step for quality.
+     */
+    public BufferedImage scale(BufferedImage image, int maxSize) {
+        int longestSide = Math.max(image.getWidth(), image.getHeight());
+        if (longestSide <= maxSize) {
+            return image;
+        }
+
+        double ratio = (double) maxSize / longestSide;
+        int targetWidth = Math.max(1, (int) Math.round(image.getWidth() * ratio));
+        int targetHeight = Math.max(1, (int) Math.round(image.getHeight() * ratio));
+
+        BufferedImage result = image;
+        int width = image.getWidth();
+        int height = image.getHeight();
+        do {
+            width = Math.max(targetWidth, width / 2);
+            height = Math.max(targetHeight, height / 2);
+            result = resize(result, width, height);
+        } while (width != targetWidth || height != targetHeight);
+
+        return result;
+    }
+
+    /**
+     * Encodes the image with the writer registered for the mime type, falling back to PNG.
+     */
+    public byte[] write(BufferedImage image, String mimeType) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByMIMEType(mimeType);
+        ImageWriter writer = writers.hasNext() ? writers.next()
+                : ImageIO.getImageWritersByFormatName(DEFAULT_FORMAT).next();
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (ImageOutputStream imageOutput = ImageIO.createImageOutputStream(output)) {
+            writer.setOutput(imageOutput);
+            writer.write(image);
+        } finally {
+            writer.dispose();
+        }
+        return output.toByteArray();
+    }
+
+    public boolean canWrite(String mimeType) {
+        return ImageIO.getImageWritersByMIMEType(mimeType).hasNext();
+    }
+
+    /**
+     * Encodes the image for delivery: progressive where the format supports it and at the given quality where
+     * the format is lossy. Transparency is flattened onto white for formats without an alpha channel.
+     */
+    public byte[] write(BufferedImage image, String mimeType, float quality) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByMIMEType(mimeType).next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (param.canWriteProgressive()) {
+            param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+        }
+        if (param.canWriteCompressed()) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            if (param.getCompressionType() == null) {
+                param.setCompressionType(param.getCompressionTypes()[0]);
+            }
+            param.setCompressionQuality(quality);
+        }
+        BufferedImage encoded = image.getColorModel().hasAlpha() && JPEG.equals(mimeType) ? flatten(image) : image;
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (ImageOutputStream imageOutput = ImageIO.createImageOutputStream(output)) {
+            writer.setOutput(imageOutput);
+            writer.write(null, new IIOImage(encoded, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Copies the metadata segments of a JPEG original, EXIF and ICC profiles among them, into a re-encoded copy
+     * right after the encoder's own JFIF header. Adobe segments stay behind as they describe the colour transform of
+     * the original encoding. Returns null when either header can't be walked.
+     */
+    public byte[] copyJpegMetadata(byte[] original, byte[] encoded) {
+        if (original.length < 2 || readShort(original, 0) != SOI
+                || encoded.length < 2 || readShort(encoded, 0) != SOI) {
+            return null;
+        }
+        int insertion = 2;
+        int end;
+        while ((end = metadataEnd(encoded, insertion)) > 0 && readShort(encoded, insertion) == APP0) {
+            insertion = end;
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream(encoded.length + 1024);
+        output.write(encoded, 0, insertion);
+        int position = 2;
+        while ((end = metadataEnd(original, position)) > 0) {
+            int marker = readShort(original, position);
+            if (marker != APP0 && marker != APP14) {
+                output.write(original, position, end - position);
+            }
+            position = end;
+        }
+        if (position + 2 > original.length || isMetadata(readShort(original, position))) {
+            return null;
+        }
+        output.write(encoded, insertion, encoded.length - insertion);
+        return output.toByteArray();
+    }
+
+    /**
+     * Returns where the metadata segment at the position ends, or -1 when there is none or it is cut short.
+     */
+    private static int metadataEnd(byte[] jpeg, int position) {
+        if (position + 4 > jpeg.length || !isMetadata(readShort(jpeg, position))) {
+            return -1;
+        }
+        int end = position + 2 + readShort(jpeg, position + 2);
+        return end <= jpeg.length ? end : -1;
+    }
+
+    private static boolean isMetadata(int marker) {
+        return marker >= APP0 && marker <= APP15 || marker == COMMENT;
+    }
+
+    private static int readShort(byte[] jpeg, int position) {
+        return (jpeg[position] & 0xFF) << 8 | jpeg[position + 1] & 0xFF;
+    }
+
+    /**
+     * Computes the 64-bit difference hash of the image: it is averaged down to 9x8 gray pixels and every bit tells
+     * whether a pixel is brighter than its right neighbour, so rescaled, recompressed or slightly edited copies of an
+     * image differ in a few bits only.
+     */
+    public long differenceHash(BufferedImage image) {
+        Image reduced = scale(image, HASH_SOURCE_SIZE)
+                .getScaledInstance(HASH_SIZE + 1, HASH_SIZE, Image.SCALE_AREA_AVERAGING);
+        BufferedImage gray = new BufferedImage(HASH_SIZE + 1, HASH_SIZE, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D graphics = gray.createGraphics();
+        try {
+            graphics.drawImage(reduced, 0, 0, null);
+        } finally {
+            graphics.dispose();
+        }
+        Raster pixels = gray.getRaster();
+        long hash = 0;
+        for (int y = 0; y < HASH_SIZE; y++) {
+            for (int x = 0; x < HASH_SIZE; x++) {
+                hash = hash << 1 | (pixels.getSample(x, y, 0) > pixels.getSample(x + 1, y, 0) ? 1 : 0);
+            }
+        }
+        return hash;
+    }
+
+    private BufferedImage flatten(BufferedImage image) {
+        BufferedImage flattened = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = flattened.createGraphics();
+        try {
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, image.getWidth(), image.getHeight());
+            graphics.drawImage(image, 0, 0, null);
+        } finally {
+            graphics.dispose();
+        }
+        return flattened;
+    }
+
+    private BufferedImage resize(BufferedImage image, int width, int height) {
+        int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage resized = new BufferedImage(width, height, type);
+        Graphics2D graphics = resized.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return resized;
+    }
+}
@@ -0,0 +1,118 @@
+package com.vitalsport.photos.io;
+
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpRange;
+import org.springframework.http.MediaType;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * A multipart/byteranges body built lazily from the ranges of another resource.
+ */
+public class MultipartRangeResource extends AbstractResource {
+
+    private final Resource source;
+    private final List<HttpRange> ranges;
+    private final long sourceLength;
+    private final MediaType mediaType;
+    private final String boundary;
+
+    public MultipartRangeResource(Resource source, List<HttpRange> ranges, long sourceLength,
+                                  MediaType mediaType, String boundary) {
+        this.source = source;
+        this.ranges = ranges;
+        this.sourceLength = sourceLength;
+        this.mediaType = mediaType;
+        this.boundary = boundary;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        List<InputStream> parts = new ArrayList<>();
+        for (HttpRange range : ranges) {
+            long start = range.getRangeStart(sourceLength);
+            long end = range.getRangeEnd(sourceLength);
+            parts.add(new ByteArrayInputStream(partHeader(start, end)));
+            parts.add(new LazyInputStream(new RangeResource(source, start, end - start + 1)));
+        }
+        parts.add(new ByteArrayInputStream(closingBoundary()));
+        return new SequenceInputStream(Collections.enumeration(parts));
+    }
+
+    @Override
+    public long contentLength() {
+        long length = closingBoundary().length;
+        for (HttpRange range : ranges) {
+            long start = range.getRangeStart(sourceLength);
+            long end = range.getRangeEnd(sourceLength);
+            length += partHeader(start, end).length + end - start + 1;
+        }
+        return length;
+    }
+
+    @Override
+    public boolean exists() {
+        return source.exists();
+    }
+
+    @Override
+    public String getDescription() {
+        return "byte ranges " + HttpRange.toString(ranges) + " of " + source.getDescription();
+    }
+
+    private byte[] partHeader(long start, long end) {
+        return ("\r\n--" + boundary + "\r\n"
+                + "Content-Type: " + mediaType + "\r\n"
+                + "Content-Range: bytes " + start + "-" + end + "/" + sourceLength + "\r\n\r\n").getBytes(US_ASCII);
+    }
+
+    private byte[] closingBoundary() {
+        return ("\r\n--" + boundary + "--\r\n").getBytes(US_ASCII);
+    }
+
+    /**
+     * Opens the range only when it is first read, so at most one file handle is open at a time.
+     */
+    private static class LazyInputStream extends InputStream {
+
+        private final Resource resource;
+        private InputStream delegate;
+
+        LazyInputStream(Resource resource) {
+            this.resource = resource;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return delegate().read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            return delegate().read(buffer, offset, count);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (delegate != null) {
+                delegate.close();
+            }
+        }
+
+        private InputStream delegate() throws IOException {
+            if (delegate == null) {
+                delegate = resource.getInputStream();
+            }
+            return delegate;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.vitalsport.photos.io;
+
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * A byte range of another resource. Files are positioned directly and {@link RangedResource}s open the range
+ * themselves instead of being skipped through.
+ */
+public class RangeResource extends AbstractResource {
+
+    private final Resource source;
+    private final long start;
+    private final long length;
+
+    public RangeResource(Resource source, long start, long length) {
+        this.source = source;
+        this.start = start;
+        this.length = length;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if (source instanceof RangedResource) {
+            return ((RangedResource) source).getInputStream(start, length);
+        }
+        return new LimitedInputStream(openAt(start), length);
+    }
+
+    @Override
+    public long contentLength() {
+        return length;
+    }
+
+    @Override
+    public boolean exists() {
+        return source.exists();
+    }
+
+    @Override
+    public String getDescription() {
+        return "bytes " + start + "-" + (start + length - 1) + " of " + source.getDescription();
+    }
+
+    private InputStream openAt(long position) throws IOException {
+        if (source instanceof FileSystemResource) {
+            FileChannel channel = FileChannel.open(source.getFile().toPath(), READ);
+            channel.position(position);
+            return Channels.newInputStream(channel);
+        }
+
+        InputStream input = source.getInputStream();
+        long remaining = position;
+        while (remaining > 0) {
+            long skipped = input.skip(remaining);
+            if (skipped <= 0) {
+                if (input.read() < 0) {
+                    break;
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+        return input;
+    }
+
+    private static class LimitedInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        LimitedInputStream(InputStream input, long limit) {
+            super(input);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int result = super.read();
+            if (result >= 0) {
+                remaining--;
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int result = super.read(buffer, offset, (int) Math.min(count, remaining));
+            if (result > 0) {
+                remaining -= result;
+            }
+            return result;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long result = super.skip(Math.min(count, remaining));
+            remaining -= result;
+            return result;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.vitalsport.photos.io;
+
+import org.springframework.core.io.Resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A resource that can open a byte range by itself, such as a ranged GET of a remote object, instead of being read
+ * from its start and skipped through.
+ */
+public interface RangedResource extends Resource {
+
+    InputStream getInputStream(long start, long length) throws IOException;
+}
@@ -0,0 +1,399 @@
+package com.vitalsport.photos.io;
+
+import com.vitalsport.photos.io.ReplicationLog.Change;
+import com.vitalsport.photos.model.ImageHolder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copies every change of the primary storage to replicas behind the write. A change is logged durably before it is
+ * made, then each replica synchronizes the changed paths from the primary in turn on its own thread. A replica that
+ * fails is paused with its changes queued behind the one that failed, which is retried once per retry delay until
+ * the replica is back; as a synchronization mirrors the current state of the path, repetition doesn't matter.
+ * The acknowledgement policy sets how many copies a write waits for. Reads rotate over the primary and the replicas
+ * that are available and up to date with the path, and fail over to the next copy on errors. Copies carry the
+ * modification time of the primary, so every copy of a file has the same entity tag.
+ */
+@Slf4j
+public class ReplicatingImageHandler extends DelegatingImageHandler {
+
+    private static final byte FILE = 1;
+    private static final byte DIRECTORY = 2;
+    private static final byte MOVE = 3;
+
+    private final List<Replica> replicas = new ArrayList<>();
+    private final Acknowledgement acknowledgement;
+    private final ReplicationLog replicationLog;
+    private final long retryDelay;
+    private final long timeout;
+    private final AtomicInteger reads = new AtomicInteger();
+
+    public ReplicatingImageHandler(ImageHandler primary, List<ImageHandler> replicas, Acknowledgement acknowledgement,
+                                   String logPath, long retryDelay, long timeout) throws IOException {
+        super(primary);
+        this.acknowledgement = acknowledgement;
+        this.replicationLog = new ReplicationLog(Paths.get(logPath), replicas.size());
+        this.retryDelay = retryDelay;
+        this.timeout = timeout;
+        for (int index = 0; index < replicas.size(); index++) {
+            this.replicas.add(new Replica(index, replicas.get(index)));
+        }
+        for (Change change : replicationLog.getPending()) {
+            for (Replica replica : this.replicas) {
+                if (change.isPendingOn(replica.index)) {
+                    replica.submit(change);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void upload(String path, byte[] bytes) throws IOException {
+        replicated(FILE, path, () -> {
+            delegate.upload(path, bytes);
+            return null;
+        });
+    }
+
+    @Override
+    public void upload(String path, InputStream input) throws IOException {
+        replicated(FILE, path, () -> {
+            delegate.upload(path, input);
+            return null;
+        });
+    }
+
+    @Override
+    public void upload(String path, Path file) throws IOException {
+        replicated(FILE, path, () -> {
+            delegate.upload(path, file);
+            return null;
+        });
+    }
+
+    @Override
+    public ImageHolder download(String path) throws IOException {
+        int copies = replicas.size() + 1;
+        int first = Math.floorMod(reads.getAndIncrement(), copies);
+        IOException failure = null;
+        for (int copy = 0; copy < copies; copy++) {
+            int index = (first + copy) % copies;
+            Replica replica = index == 0 ? null : replicas.get(index - 1);
+            if (replica != null && !replica.isReadable(path)) {
+                continue;
+            }
+            try {
+                return replica == null ? delegate.download(path) : replica.handler.download(path);
+            } catch (FileNotFoundException exception) {
+                if (failure == null) {
+                    failure = exception;
+                }
+            } catch (IOException exception) {
+                log.warn("Reading: {} from {} failed, trying another copy", path,
+                        replica == null ? "the primary" : "replica " + replica.index, exception);
+                if (replica != null) {
+                    replica.unavailable();
+                }
+                failure = exception;
+            }
+        }
+        throw failure == null ? new FileNotFoundException(path) : failure;
+    }
+
+    @Override
+    public void setLastModified(String path, long lastModified) throws IOException {
+        replicated(FILE, path, () -> {
+            delegate.setLastModified(path, lastModified);
+            return null;
+        });
+    }
+
+    @Override
+    public void createDirectory(String path) throws IOException {
+        replicated(DIRECTORY, path, () -> {
+            delegate.createDirectory(path);
+            return null;
+        });
+    }
+
+    @Override
+    public boolean delete(String path) {
+        try {
+            return replicated(FILE, path, () -> delegate.delete(path));
+        } catch (IOException exception) {
+            throw new InternalError(exception);
+        }
+    }
+
+    @Override
+    public void deleteDirectory(String path) throws IOException {
+        replicated(DIRECTORY, path, () -> {
+            delegate.deleteDirectory(path);
+            return null;
+        });
+    }
+
+    /**
+     * Replicas repeat the move when they still have the source and not the target yet.
+     */
+    @Override
+    public void move(String source, String target) throws IOException {
+        replicated(MOVE, target, source, () -> {
+            delegate.move(source, target);
+            return null;
+        });
+    }
+
+    public void shutdown() throws IOException {
+        for (Replica replica : replicas) {
+            replica.executor.shutdownNow();
+        }
+        replicationLog.close();
+    }
+
+    /**
+     * Logs the change before making it on the primary, then hands it to every replica and waits for as many of them
+     * as the acknowledgement policy requires. Replicas mirror the primary even when the change failed there; when
+     * they don't acknowledge it in time, the change stands on the primary and a {@link ReplicationTimeoutException}
+     * reports it, so callers can record it before failing.
+     */
+    private <T> T replicated(byte kind, String path, StorageOperation<T> operation) throws IOException {
+        return replicated(kind, path, null, operation);
+    }
+
+    private <T> T replicated(byte kind, String path, String source, StorageOperation<T> operation)
+            throws IOException {
+        Change change = replicationLog.append(kind, path, source);
+        T result;
+        try {
+            result = operation.run();
+        } catch (IOException | RuntimeException exception) {
+            replicas.forEach(replica -> replica.submit(change));
+            throw exception;
+        }
+        int required = acknowledgement.getRequiredCopies(replicas.size() + 1) - 1;
+        CompletableFuture<Void> acknowledged = new CompletableFuture<>();
+        AtomicInteger remaining = new AtomicInteger(required);
+        if (required <= 0) {
+            acknowledged.complete(null);
+        }
+        for (Replica replica : replicas) {
+            replica.submit(change).thenRun(() -> {
+                if (remaining.decrementAndGet() == 0) {
+                    acknowledged.complete(null);
+                }
+            });
+        }
+        try {
+            acknowledged.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException exception) {
+            throw new ReplicationTimeoutException(String.format("%s was not replicated to %d replicas within %d ms, "
+                    + "it will be when they are available", change.path, required, timeout), exception);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while replicating: " + change.path, exception);
+        }
+        return result;
+    }
+
+    private interface StorageOperation<T> {
+        T run() throws IOException;
+    }
+
+    /**
+     * How many copies, the primary included, a write waits for.
+     */
+    public enum Acknowledgement {
+        ONE, QUORUM, ALL;
+
+        int getRequiredCopies(int copies) {
+            switch (this) {
+                case ONE:
+                    return 1;
+                case QUORUM:
+                    return copies / 2 + 1;
+                default:
+                    return copies;
+            }
+        }
+    }
+
+    private class Replica {
+        private final int index;
+        private final ImageHandler handler;
+        private final ScheduledExecutorService executor;
+        private final Map<String, Integer> pendingPaths = new ConcurrentHashMap<>();
+        private final Map<String, Integer> pendingDirectories = new ConcurrentHashMap<>();
+        private final Queue<Synchronization> queue = new ConcurrentLinkedQueue<>();
+        private volatile long unavailableUntil;
+        private volatile boolean failing;
+        private boolean paused;
+
+        Replica(int index, ImageHandler handler) {
+            this.index = index;
+            this.handler = handler;
+            this.executor = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "photos-replica-" + index);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        CompletableFuture<Void> submit(Change change) {
+            pending(change).merge(change.path, 1, Integer::sum);
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            queue.add(new Synchronization(change, done));
+            executor.execute(this::synchronize);
+            return done;
+        }
+
+        /**
+         * A replica is read only when it is available and no change under the path is waiting for it.
+         */
+        boolean isReadable(String path) {
+            if (failing || System.currentTimeMillis() < unavailableUntil || pendingPaths.containsKey(path)) {
+                return false;
+            }
+            for (String directory : pendingDirectories.keySet()) {
+                if (path.equals(directory) || path.startsWith(directory + "/")) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void unavailable() {
+            unavailableUntil = System.currentTimeMillis() + retryDelay;
+        }
+
+        /**
+         * Runs on the thread of the replica and synchronizes the queued changes in turn. The first failure pauses
+         * the replica and is logged once; while it is paused, only the change at the head of the queue is retried
+         * once per retry delay, and the rest wait behind it.
+         */
+        private void synchronize() {
+            Synchronization synchronization;
+            while (!paused && (synchronization = queue.peek()) != null) {
+                Change change = synchronization.change;
+                try {
+                    if (change.kind == FILE) {
+                        synchronizeFile(change.path);
+                    } else if (change.kind == MOVE) {
+                        synchronizeMove(change.source, change.path);
+                    } else {
+                        synchronizeDirectory(change.path);
+                    }
+                    pending(change).computeIfPresent(change.path, (path, count) -> count == 1 ? null : count - 1);
+                    replicationLog.acknowledge(change.sequence, index);
+                } catch (IOException | RuntimeException exception) {
+                    if (failing) {
+                        log.debug("Replica {} is still unavailable: {}", index, exception.getMessage());
+                    } else {
+                        log.warn("Replicating: {} to replica {} failed, pausing it and retrying every {} ms",
+                                change.path, index, retryDelay, exception);
+                        failing = true;
+                    }
+                    unavailable();
+                    paused = true;
+                    executor.schedule(() -> {
+                        paused = false;
+                        synchronize();
+                    }, retryDelay, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                queue.remove();
+                synchronization.done.complete(null);
+                if (failing) {
+                    log.info("Replica {} is available again, {} changes are queued for it", index, queue.size());
+                    failing = false;
+                }
+            }
+        }
+
+        private void synchronizeFile(String path) throws IOException {
+            if (!delegate.exists(path)) {
+                handler.delete(path);
+                return;
+            }
+            copy(path);
+        }
+
+        private void synchronizeDirectory(String path) throws IOException {
+            if (delegate.exists(path)) {
+                handler.createDirectory(path);
+            } else {
+                handler.deleteDirectory(path);
+            }
+        }
+
+        /**
+         * Repeats the move, then copies what the replica is still missing under the target: files whose own
+         * changes were replayed after they had been moved away are deleted from the source by then. Leaves the
+         * primary can't download as files are empty directories.
+         */
+        private void synchronizeMove(String source, String target) throws IOException {
+            if (handler.exists(source) && !handler.exists(target)) {
+                handler.move(source, target);
+            }
+            copyMissing(target);
+        }
+
+        private void copyMissing(String path) throws IOException {
+            Collection<String> children = delegate.list(path);
+            if (children.isEmpty()) {
+                if (delegate.exists(path) && !handler.exists(path)) {
+                    try {
+                        copy(path);
+                    } catch (FileNotFoundException exception) {
+                        handler.createDirectory(path);
+                    }
+                }
+                return;
+            }
+            for (String child : children) {
+                copyMissing(path + '/' + child);
+            }
+        }
+
+        private void copy(String path) throws IOException {
+            ImageHolder original = delegate.download(path);
+            try (InputStream input = original.getResource().getInputStream()) {
+                handler.upload(path, input);
+            }
+            handler.setLastModified(path, original.getLastModified());
+        }
+
+        private Map<String, Integer> pending(Change change) {
+            return change.kind == FILE ? pendingPaths : pendingDirectories;
+        }
+    }
+
+    private static class Synchronization {
+        private final Change change;
+        private final CompletableFuture<Void> done;
+
+        Synchronization(Change change, CompletableFuture<Void> done) {
+            this.change = change;
+            this.done = done;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.vitalsport.photos.io;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Durable record of the paths that replicas still have to catch up with. A change is appended and synced to disk
+ * before it is made, and every replica acknowledges it once synchronized, so a restart resumes whatever was pending.
+ * The log is compacted to the pending changes on open and once it has grown past the threshold and past their
+ * number, so a replica that stays behind doesn't let it grow without bound nor get it rewritten on every record.
+ */
+@Slf4j
+final class ReplicationLog implements Closeable {
+
+    private static final int MAGIC = 0x56505231;
+    private static final byte CHANGE = 1;
+    private static final byte ACKNOWLEDGEMENT = 2;
+    private static final byte MOVE = 3;
+    private static final int COMPACTION_THRESHOLD = 10000;
+
+    private final Path path;
+    private final int replicas;
+    private final Map<Long, Change> pending = new LinkedHashMap<>();
+    private FileOutputStream file;
+    private DataOutputStream journal;
+    private long sequence;
+    private int records;
+
+    ReplicationLog(Path path, int replicas) throws IOException {
+        this.path = path;
+        this.replicas = replicas;
+        if (Files.exists(path)) {
+            replay();
+        }
+        compact();
+    }
+
+    /**
+     * Records a change of the path before it is made and returns its sequence number.
+     */
+    synchronized Change append(byte kind, String changedPath) throws IOException {
+        return append(kind, changedPath, null);
+    }
+
+    /**
+     * Records a change of the path that moves the source there, or a plain change when the source is null.
+     */
+    synchronized Change append(byte kind, String changedPath, String source) throws IOException {
+        Change change = new Change(++sequence, kind, changedPath, source, replicas);
+        write(journal, change);
+        journal.flush();
+        file.getChannel().force(false);
+        pending.put(change.sequence, change);
+        records++;
+        return change;
+    }
+
+    /**
+     * Acknowledges a change on a replica. It isn't synced: a lost acknowledgement only repeats a synchronization.
+     */
+    synchronized void acknowledge(long changeSequence, int replica) throws IOException {
+        journal.writeByte(ACKNOWLEDGEMENT);
+        journal.writeLong(changeSequence);
+        journal.writeInt(replica);
+        journal.flush();
+        records++;
+        Change change = pending.get(changeSequence);
+        if (change != null) {
+            change.replicas.clear(replica);
+            if (change.replicas.isEmpty()) {
+                pending.remove(changeSequence);
+            }
+        }
+        if (records >= COMPACTION_THRESHOLD && records >= pending.size()) {
+            compact();
+        }
+    }
+
+    synchronized List<Change> getPending() {
+        return new ArrayList<>(pending.values());
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+
+    private void replay() throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (input.readInt() != MAGIC) {
+                throw new IOException("Unknown replication log format: " + path);
+            }
+            while (true) {
+                byte record = input.readByte();
+                long changeSequence = input.readLong();
+                if (record == CHANGE || record == MOVE) {
+                    byte kind = input.readByte();
+                    String changedPath = input.readUTF();
+                    String source = record == MOVE ? input.readUTF() : null;
+                    pending.put(changeSequence, new Change(changeSequence, kind, changedPath, source, replicas));
+                    sequence = Math.max(sequence, changeSequence);
+                } else if (record == ACKNOWLEDGEMENT) {
+                    int replica = input.readInt();
+                    Change change = pending.get(changeSequence);
+                    if (change != null) {
+                        change.replicas.clear(replica);
+                        if (change.replicas.isEmpty()) {
+                            pending.remove(changeSequence);
+                        }
+                    }
+                } else {
+                    throw new IOException("Unknown replication log record: " + record);
+                }
+            }
+        } catch (EOFException exception) {
+            log.info("{} changes are pending replication in: {}", pending.size(), path);
+        }
+    }
+
+    private void compact() throws IOException {
+        close();
+        Path directory = path.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path snapshot = Files.createTempFile(directory, ".replication-", ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(snapshot)))) {
+            output.writeInt(MAGIC);
+            for (Change change : pending.values()) {
+                write(output, change);
+                for (int replica = 0; replica < replicas; replica++) {
+                    if (!change.replicas.get(replica)) {
+                        output.writeByte(ACKNOWLEDGEMENT);
+                        output.writeLong(change.sequence);
+                        output.writeInt(replica);
+                    }
+                }
+            }
+        }
+        Files.move(snapshot, path, ATOMIC_MOVE, REPLACE_EXISTING);
+        file = new FileOutputStream(path.toFile(), true);
+        journal = new DataOutputStream(new BufferedOutputStream(file));
+        records = 0;
+    }
+
+    /**
+     * Moves are written as a record of their own, so logs without them keep the original format.
+     */
+    private void write(DataOutputStream output, Change change) throws IOException {
+        output.writeByte(change.source == null ? CHANGE : MOVE);
+        output.writeLong(change.sequence);
+        output.writeByte(change.kind);
+        output.writeUTF(change.path);
+        if (change.source != null) {
+            output.writeUTF(change.source);
+        }
+    }
+
+    /**
+     * A changed path, the path moved there if any, and the replicas that haven't acknowledged it yet.
+     */
+    static final class Change {
+        final long sequence;
+        final byte kind;
+        final String path;
+        final String source;
+        private final BitSet replicas;
+
+        Change(long sequence, byte kind, String path, String source, int replicas) {
+            this.sequence = sequence;
+            this.kind = kind;
+            this.path = path;
+            this.source = source;
+            this.replicas = new BitSet(replicas);
+            this.replicas.set(0, replicas);
+        }
+
+        boolean isPendingOn(int replica) {
+            return replicas.get(replica);
+        }
+    }
+}
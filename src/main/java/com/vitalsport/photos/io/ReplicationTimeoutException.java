@@ -0,0 +1,16 @@
+package com.vitalsport.photos.io;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a change was made on the primary storage but not enough replicas acknowledged it in time. The change
+ * stands: the replicas still copy it once they are available.
+ */
+public class ReplicationTimeoutException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ReplicationTimeoutException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,92 @@
+package com.vitalsport.photos.io;
+
+import com.vitalsport.photos.model.ImageHolder;
+import com.vitalsport.photos.model.ImageMetadata;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+
+/**
+ * Keeps the paths of another handler under a root directory, e.g. a replica on another disk mirroring the layout
+ * of the primary storage.
+ */
+public class RootedImageHandler extends DelegatingImageHandler {
+
+    private final Path root;
+
+    public RootedImageHandler(ImageHandler delegate, String root) {
+        super(delegate);
+        this.root = Paths.get(root);
+    }
+
+    @Override
+    public void upload(String path, byte[] bytes) throws IOException {
+        delegate.upload(rooted(path), bytes);
+    }
+
+    @Override
+    public void upload(String path, InputStream input) throws IOException {
+        delegate.upload(rooted(path), input);
+    }
+
+    @Override
+    public void upload(String path, Path file) throws IOException {
+        delegate.upload(rooted(path), file);
+    }
+
+    @Override
+    public ImageHolder download(String path) throws IOException {
+        return delegate.download(rooted(path));
+    }
+
+    @Override
+    public ImageMetadata readMetadata(String path) throws IOException {
+        return delegate.readMetadata(rooted(path));
+    }
+
+    @Override
+    public Collection<String> list(String path) throws IOException {
+        return delegate.list(rooted(path));
+    }
+
+    @Override
+    public boolean exists(String path) {
+        return delegate.exists(rooted(path));
+    }
+
+    @Override
+    public void setLastModified(String path, long lastModified) throws IOException {
+        delegate.setLastModified(rooted(path), lastModified);
+    }
+
+    @Override
+    public void createDirectory(String path) throws IOException {
+        delegate.createDirectory(rooted(path));
+    }
+
+    @Override
+    public boolean delete(String path) {
+        return delegate.delete(rooted(path));
+    }
+
+    @Override
+    public void deleteDirectory(String path) throws IOException {
+        delegate.deleteDirectory(rooted(path));
+    }
+
+    @Override
+    public void move(String source, String target) throws IOException {
+        delegate.move(rooted(source), rooted(target));
+    }
+
+    private String rooted(String path) {
+        int start = 0;
+        while (start < path.length() && path.charAt(start) == '/') {
+            start++;
+        }
+        return root.resolve(path.substring(start)).toString();
+    }
+}
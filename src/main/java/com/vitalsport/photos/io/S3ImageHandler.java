@@ -0,0 +1,383 @@
+package com.vitalsport.photos.io;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
+import com.vitalsport.photos.model.ImageHolder;
+import com.vitalsport.photos.model.ImageMetadata;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.http.HttpStatus;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Storage in a bucket of an S3 compatible object store: a path is an object key and a directory is a key prefix,
+ * marked by an empty object so that empty albums exist. Files are uploaded in parts of the configured size, in
+ * parallel, and ranges of an image are fetched with ranged GETs instead of downloading the whole object.
+ */
+public class S3ImageHandler implements ImageHandler {
+
+    private static final String DELIMITER = "/";
+    private static final String TEMPORARY_PREFIX = ".upload-";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final int DELETE_BATCH_SIZE = 1000;
+
+    private final AmazonS3 s3;
+    private final String bucket;
+    private final TransferManager transferManager;
+
+    public S3ImageHandler(AmazonS3 s3, String bucket, long partSize, int uploadThreads) {
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.transferManager = TransferManagerBuilder.standard()
+                .withS3Client(s3)
+                .withMinimumUploadPartSize(partSize)
+                .withMultipartUploadThreshold(partSize)
+                .withExecutorFactory(() -> Executors.newFixedThreadPool(uploadThreads))
+                .build();
+    }
+
+    @Override
+    public void upload(String path, byte[] bytes) throws IOException {
+        ObjectMetadata metadata = metadata(path);
+        metadata.setContentLength(bytes.length);
+        try {
+            s3.putObject(new PutObjectRequest(bucket, key(path), new ByteArrayInputStream(bytes), metadata));
+        } catch (AmazonClientException exception) {
+            throw new IOException("Upload of: " + path + " failed", exception);
+        }
+    }
+
+    /**
+     * The length of a stream is unknown, so it is spooled to a file first and uploaded in parts from there.
+     */
+    @Override
+    public void upload(String path, InputStream input) throws IOException {
+        Path spool = Files.createTempFile(TEMPORARY_PREFIX, TEMPORARY_SUFFIX);
+        try {
+            Files.copy(input, spool, REPLACE_EXISTING);
+            upload(path, spool);
+        } finally {
+            Files.deleteIfExists(spool);
+        }
+    }
+
+    /**
+     * The file is only deleted once the upload completes, a failed upload can be retried from it.
+     */
+    @Override
+    public void upload(String path, Path file) throws IOException {
+        PutObjectRequest request = new PutObjectRequest(bucket, key(path), file.toFile()).withMetadata(metadata(path));
+        try {
+            transferManager.upload(request).waitForCompletion();
+        } catch (AmazonClientException exception) {
+            throw new IOException("Upload of: " + path + " failed", exception);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Upload of: " + path + " was interrupted");
+        }
+        Files.deleteIfExists(file);
+    }
+
+    @Override
+    public ImageHolder download(String path) throws IOException {
+        ObjectMetadata metadata = head(path);
+        long length = metadata.getContentLength();
+        long lastModified = metadata.getLastModified().getTime();
+        return new ImageHolder(ImageFormats.mediaType(path), new ObjectResource(key(path), length, lastModified),
+                length, lastModified, '"' + metadata.getETag() + '"');
+    }
+
+    /**
+     * Only the header is read: the object stream is aborted once the dimensions are known.
+     */
+    @Override
+    public ImageMetadata readMetadata(String path) throws IOException {
+        ObjectMetadata metadata = head(path);
+        long lastModified = metadata.getLastModified().getTime();
+        try (S3ObjectInputStream content = s3.getObject(new GetObjectRequest(bucket, key(path))).getObjectContent()) {
+            try (ImageInputStream input = ImageIO.createImageInputStream(content)) {
+                return ImageFormats.metadata(name(path), metadata.getContentLength(), lastModified, lastModified,
+                        input);
+            } finally {
+                content.abort();
+            }
+        } catch (AmazonClientException exception) {
+            throw new IOException("Metadata of: " + path + " can't be read", exception);
+        }
+    }
+
+    @Override
+    public Collection<String> list(String path) throws IOException {
+        String prefix = prefix(path);
+        Collection<String> names = new ArrayList<>();
+        try {
+            ObjectListing listing = s3.listObjects(new ListObjectsRequest()
+                    .withBucketName(bucket).withPrefix(prefix).withDelimiter(DELIMITER));
+            while (true) {
+                for (String directory : listing.getCommonPrefixes()) {
+                    names.add(directory.substring(prefix.length(), directory.length() - DELIMITER.length()));
+                }
+                for (S3ObjectSummary object : listing.getObjectSummaries()) {
+                    if (!object.getKey().equals(prefix)) {
+                        names.add(object.getKey().substring(prefix.length()));
+                    }
+                }
+                if (!listing.isTruncated()) {
+                    return names;
+                }
+                listing = s3.listNextBatchOfObjects(listing);
+            }
+        } catch (AmazonClientException exception) {
+            throw new IOException("Listing of: " + path + " failed", exception);
+        }
+    }
+
+    /**
+     * A failing request can't tell whether the path exists, so it is rethrown unchecked rather than answered.
+     */
+    @Override
+    public boolean exists(String path) {
+        try {
+            if (find(key(path)) != null) {
+                return true;
+            }
+            return !s3.listObjects(new ListObjectsRequest()
+                    .withBucketName(bucket).withPrefix(prefix(path)).withMaxKeys(1)).getObjectSummaries().isEmpty();
+        } catch (AmazonClientException exception) {
+            throw new InternalError("Existence of: " + path + " can't be checked", exception);
+        }
+    }
+
+    @Override
+    public void setLastModified(String path, long lastModified) {
+    }
+
+    @Override
+    public void createDirectory(String path) throws IOException {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(0);
+        try {
+            s3.putObject(new PutObjectRequest(bucket, prefix(path), new ByteArrayInputStream(new byte[0]), metadata));
+        } catch (AmazonClientException exception) {
+            throw new IOException("Directory: " + path + " can't be created", exception);
+        }
+    }
+
+    @Override
+    public boolean delete(String path) {
+        String key = key(path);
+        try {
+            if (find(key) == null) {
+                return false;
+            }
+            s3.deleteObject(new DeleteObjectRequest(bucket, key));
+            return true;
+        } catch (AmazonClientException exception) {
+            throw new InternalError("Deletion of: " + path + " failed", exception);
+        }
+    }
+
+    @Override
+    public void deleteDirectory(String path) throws IOException {
+        try {
+            ObjectListing listing = s3.listObjects(new ListObjectsRequest()
+                    .withBucketName(bucket).withPrefix(prefix(path)).withMaxKeys(DELETE_BATCH_SIZE));
+            while (true) {
+                List<KeyVersion> keys = new ArrayList<>();
+                for (S3ObjectSummary object : listing.getObjectSummaries()) {
+                    keys.add(new KeyVersion(object.getKey()));
+                }
+                if (!keys.isEmpty()) {
+                    s3.deleteObjects(new DeleteObjectsRequest(bucket).withKeys(keys).withQuiet(true));
+                }
+                if (!listing.isTruncated()) {
+                    return;
+                }
+                listing = s3.listNextBatchOfObjects(listing);
+            }
+        } catch (AmazonClientException exception) {
+            throw new IOException("Directory: " + path + " can't be deleted", exception);
+        }
+    }
+
+    /**
+     * Copies the object at the path, or every object under it, to the target keys and deletes the originals. Unlike
+     * a rename this takes a request per object and isn't atomic: a failure leaves some objects at either place.
+     */
+    @Override
+    public void move(String source, String target) throws IOException {
+        try {
+            String key = key(source);
+            if (find(key) != null) {
+                s3.copyObject(bucket, key, bucket, key(target));
+                s3.deleteObject(new DeleteObjectRequest(bucket, key));
+            }
+            String prefix = prefix(source);
+            ObjectListing listing = s3.listObjects(new ListObjectsRequest()
+                    .withBucketName(bucket).withPrefix(prefix).withMaxKeys(DELETE_BATCH_SIZE));
+            while (true) {
+                for (S3ObjectSummary object : listing.getObjectSummaries()) {
+                    s3.copyObject(bucket, object.getKey(), bucket,
+                            prefix(target) + object.getKey().substring(prefix.length()));
+                }
+                if (!listing.isTruncated()) {
+                    break;
+                }
+                listing = s3.listNextBatchOfObjects(listing);
+            }
+            deleteDirectory(source);
+        } catch (AmazonClientException exception) {
+            throw new IOException("Moving of: " + source + " to: " + target + " failed", exception);
+        }
+    }
+
+    /**
+     * Stops the upload threads of the transfer manager and the client, called by the container when the bean is
+     * destroyed.
+     */
+    public void shutdown() {
+        transferManager.shutdownNow(true);
+    }
+
+    private ObjectMetadata head(String path) throws IOException {
+        ObjectMetadata metadata;
+        try {
+            metadata = find(key(path));
+        } catch (AmazonClientException exception) {
+            throw new IOException("Metadata of: " + path + " can't be read", exception);
+        }
+        if (metadata == null) {
+            throw new FileNotFoundException(path);
+        }
+        return metadata;
+    }
+
+    private ObjectMetadata find(String key) {
+        try {
+            return s3.getObjectMetadata(new GetObjectMetadataRequest(bucket, key));
+        } catch (AmazonServiceException exception) {
+            if (exception.getStatusCode() == HttpStatus.NOT_FOUND.value()) {
+                return null;
+            }
+            throw exception;
+        }
+    }
+
+    private ObjectMetadata metadata(String path) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentType(ImageFormats.mediaType(path).toString());
+        return metadata;
+    }
+
+    private String key(String path) {
+        String key = path.replace('\\', '/');
+        while (key.startsWith(DELIMITER)) {
+            key = key.substring(DELIMITER.length());
+        }
+        return key;
+    }
+
+    private String prefix(String path) {
+        String key = key(path);
+        return key.isEmpty() || key.endsWith(DELIMITER) ? key : key + DELIMITER;
+    }
+
+    private String name(String path) {
+        String key = key(path);
+        return key.substring(key.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * An object read lazily: nothing is fetched until the response body is written.
+     */
+    private class ObjectResource extends AbstractResource implements RangedResource {
+
+        private final String key;
+        private final long length;
+        private final long lastModified;
+
+        ObjectResource(String key, long length, long lastModified) {
+            this.key = key;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return open(new GetObjectRequest(bucket, key));
+        }
+
+        @Override
+        public InputStream getInputStream(long start, long length) throws IOException {
+            return open(new GetObjectRequest(bucket, key).withRange(start, start + length - 1));
+        }
+
+        @Override
+        public long contentLength() {
+            return length;
+        }
+
+        @Override
+        public long lastModified() {
+            return lastModified;
+        }
+
+        @Override
+        public boolean exists() {
+            return true;
+        }
+
+        @Override
+        public String getFilename() {
+            return key.substring(key.lastIndexOf('/') + 1);
+        }
+
+        @Override
+        public String getDescription() {
+            return "s3://" + bucket + "/" + key;
+        }
+
+        private InputStream open(GetObjectRequest request) throws IOException {
+            try {
+                S3Object object = s3.getObject(request);
+                return object.getObjectContent();
+            } catch (AmazonServiceException exception) {
+                if (exception.getStatusCode() == HttpStatus.NOT_FOUND.value()) {
+                    throw new FileNotFoundException(getDescription());
+                }
+                throw new IOException("Object: " + getDescription() + " can't be read", exception);
+            } catch (AmazonClientException exception) {
+                throw new IOException("Object: " + getDescription() + " can't be read", exception);
+            }
+        }
+    }
+}
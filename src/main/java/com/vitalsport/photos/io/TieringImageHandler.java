@@ -0,0 +1,247 @@
+package com.vitalsport.photos.io;
+
+import com.vitalsport.photos.model.ImageHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.COPY_ATTRIBUTES;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Keeps rarely read images on a cheaper cold volume. A demoted image is moved under the cold root, mirroring its
+ * path under a name of its own, and replaced by a symbolic link, so reads, metadata, listings and moves keep working
+ * unchanged. Cold files are only ever reached through their links: another image demoted from the same path later,
+ * e.g. after the album was moved to the trash and created again, gets a file of its own instead of replacing one.
+ * Every read is recorded in the access time of the file; a demoted image read again within the promotion window is
+ * copied back in the background, swapping the link for the file at once.
+ */
+@Slf4j
+public class TieringImageHandler extends DelegatingImageHandler {
+
+    private static final String TEMPORARY_PREFIX = ".upload-";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final long ACCESS_RESOLUTION = TimeUnit.HOURS.toMillis(1);
+    private static final int LOCKS = 64;
+    private static final int PROMOTION_QUEUE_SIZE = 1000;
+
+    private final Path coldRoot;
+    private final long promotionWindow;
+    private final Object[] locks = new Object[LOCKS];
+    private final ThreadPoolExecutor promotions;
+
+    public TieringImageHandler(ImageHandler delegate, String coldPath, long promotionWindow) {
+        super(delegate);
+        this.coldRoot = StringUtils.isEmpty(coldPath) ? null : Paths.get(coldPath).toAbsolutePath();
+        this.promotionWindow = promotionWindow;
+        for (int i = 0; i < LOCKS; i++) {
+            locks[i] = new Object();
+        }
+        this.promotions = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(PROMOTION_QUEUE_SIZE), task -> {
+            Thread thread = new Thread(task, "photos-promotion");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public boolean isEnabled() {
+        return coldRoot != null;
+    }
+
+    @Override
+    public void upload(String path, byte[] bytes) throws IOException {
+        synchronized (lock(path)) {
+            Path cold = coldTarget(path);
+            delegate.upload(path, bytes);
+            deleteCold(cold);
+        }
+    }
+
+    @Override
+    public void upload(String path, InputStream input) throws IOException {
+        synchronized (lock(path)) {
+            Path cold = coldTarget(path);
+            delegate.upload(path, input);
+            deleteCold(cold);
+        }
+    }
+
+    @Override
+    public void upload(String path, Path file) throws IOException {
+        synchronized (lock(path)) {
+            Path cold = coldTarget(path);
+            delegate.upload(path, file);
+            deleteCold(cold);
+        }
+    }
+
+    @Override
+    public ImageHolder download(String path) throws IOException {
+        ImageHolder imageHolder = delegate.download(path);
+        try {
+            accessed(path);
+        } catch (IOException exception) {
+            log.debug("Failed to record access to: {}", path, exception);
+        }
+        return imageHolder;
+    }
+
+    @Override
+    public boolean delete(String path) {
+        synchronized (lock(path)) {
+            try {
+                Path cold = coldTarget(path);
+                boolean deleted = delegate.delete(path);
+                deleteCold(cold);
+                return deleted;
+            } catch (IOException exception) {
+                throw new InternalError(exception);
+            }
+        }
+    }
+
+    @Override
+    public void deleteDirectory(String path) throws IOException {
+        if (isEnabled() && Files.isDirectory(Paths.get(path))) {
+            List<Path> links;
+            try (Stream<Path> files = Files.walk(Paths.get(path))) {
+                links = files.filter(Files::isSymbolicLink).collect(toList());
+            }
+            for (Path link : links) {
+                synchronized (lock(link.toString())) {
+                    deleteCold(coldTarget(link.toString()));
+                    Files.deleteIfExists(link);
+                }
+            }
+        }
+        delegate.deleteDirectory(path);
+    }
+
+    /**
+     * Moves an image to the cold volume. Returns false when the image is gone or has been demoted already.
+     */
+    public boolean demote(String path) throws IOException {
+        synchronized (lock(path)) {
+            Path hot = Paths.get(path);
+            if (!Files.isRegularFile(hot) || Files.isSymbolicLink(hot)) {
+                return false;
+            }
+            Path cold = coldPath(path);
+            cold = cold.resolveSibling(cold.getFileName() + "." + UUID.randomUUID());
+            Files.createDirectories(cold.getParent());
+            Path temporary = Files.createTempFile(cold.getParent(), TEMPORARY_PREFIX, TEMPORARY_SUFFIX);
+            try {
+                Files.copy(hot, temporary, REPLACE_EXISTING, COPY_ATTRIBUTES);
+                Files.move(temporary, cold);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+            Path link = Files.createTempFile(hot.getParent(), TEMPORARY_PREFIX, TEMPORARY_SUFFIX);
+            Files.delete(link);
+            try {
+                Files.createSymbolicLink(link, cold);
+                Files.move(link, hot, ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(link);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Copies a demoted image back in place of its link. Returns false when the image isn't on the cold volume.
+     */
+    public boolean promote(String path) throws IOException {
+        synchronized (lock(path)) {
+            Path cold = coldTarget(path);
+            if (cold == null) {
+                return false;
+            }
+            FileTime lastModified = Files.getLastModifiedTime(cold);
+            try (InputStream input = Files.newInputStream(cold)) {
+                delegate.upload(path, input);
+            }
+            Files.setLastModifiedTime(Paths.get(path), lastModified);
+            Files.delete(cold);
+            return true;
+        }
+    }
+
+    public void shutdown() {
+        promotions.shutdownNow();
+    }
+
+    /**
+     * The first read of a demoted image only records the access; a second read within the promotion window shows
+     * the image is in use again. Reads of other images update the access time at most once per hour.
+     */
+    private void accessed(String path) throws IOException {
+        if (!isEnabled()) {
+            return;
+        }
+        Path file = Paths.get(path);
+        boolean demoted = Files.isSymbolicLink(file);
+        long now = System.currentTimeMillis();
+        long lastAccess = ((FileTime) Files.getAttribute(file, "lastAccessTime")).toMillis();
+        if (demoted && now - lastAccess < promotionWindow) {
+            schedulePromotion(path);
+        } else if (demoted || now - lastAccess > ACCESS_RESOLUTION) {
+            Files.setAttribute(file, "lastAccessTime", FileTime.fromMillis(now));
+        }
+    }
+
+    private void schedulePromotion(String path) {
+        try {
+            promotions.execute(() -> {
+                try {
+                    if (promote(path)) {
+                        log.debug("Image: {} has been promoted from the cold volume.", path);
+                    }
+                } catch (IOException exception) {
+                    log.warn("Failed to promote image: {}", path, exception);
+                }
+            });
+        } catch (RejectedExecutionException exception) {
+            log.debug("Promotion queue is full, skipping: {}", path);
+        }
+    }
+
+    /**
+     * Returns the cold copy a path links to, or null when the path isn't a link.
+     */
+    private Path coldTarget(String path) throws IOException {
+        Path file = Paths.get(path);
+        return isEnabled() && Files.isSymbolicLink(file) ? file.resolveSibling(Files.readSymbolicLink(file)) : null;
+    }
+
+    private void deleteCold(Path cold) throws IOException {
+        if (cold != null) {
+            Files.deleteIfExists(cold);
+        }
+    }
+
+    private Path coldPath(String path) {
+        Path hot = Paths.get(path).toAbsolutePath().normalize();
+        return coldRoot.resolve(hot.getRoot().relativize(hot));
+    }
+
+    private Object lock(String path) {
+        return locks[Math.floorMod(Paths.get(path).toAbsolutePath().normalize().hashCode(), LOCKS)];
+    }
+}
@@ -0,0 +1,60 @@
+package com.vitalsport.photos.io;
+
+import com.vitalsport.photos.model.ImageHolder;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StreamUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes images into a ZIP stream one at a time. Already compressed formats are STORED, which needs their CRC
+ * up front: it is computed by a first pass over the image, so nothing is buffered beyond a copy buffer.
+ */
+@Component
+public class ZipArchiveWriter {
+
+    private static final List<String> COMPRESSED_SUBTYPES = Arrays.asList("jpeg", "png", "gif", "webp");
+    private static final int BUFFER_SIZE = 8192;
+
+    public void write(ZipOutputStream zip, String name, ImageHolder imageHolder) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setTime(imageHolder.getLastModified());
+        if (isCompressed(imageHolder.getMediaType())) {
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(imageHolder.getContentLength());
+            entry.setCompressedSize(imageHolder.getContentLength());
+            entry.setCrc(crc(imageHolder));
+        } else {
+            entry.setMethod(ZipEntry.DEFLATED);
+        }
+        zip.putNextEntry(entry);
+        try (InputStream input = imageHolder.getResource().getInputStream()) {
+            StreamUtils.copy(input, zip);
+        }
+        zip.closeEntry();
+    }
+
+    private boolean isCompressed(MediaType mediaType) {
+        return mediaType != null && "image".equals(mediaType.getType())
+                && COMPRESSED_SUBTYPES.contains(mediaType.getSubtype());
+    }
+
+    private long crc(ImageHolder imageHolder) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream input = imageHolder.getResource().getInputStream()) {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        }
+        return crc.getValue();
+    }
+}
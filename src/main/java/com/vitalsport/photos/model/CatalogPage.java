@@ -0,0 +1,11 @@
+package com.vitalsport.photos.model;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class CatalogPage {
+    private final List<CatalogPhoto> photos;
+    private final String next;
+}
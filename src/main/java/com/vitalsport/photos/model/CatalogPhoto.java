@@ -0,0 +1,17 @@
+package com.vitalsport.photos.model;
+
+import lombok.Data;
+
+/**
+ * A catalog entry. The taken time is the capture time, or the modification time for images without one.
+ */
+@Data
+public class CatalogPhoto {
+    private final String album;
+    private final String name;
+    private final int width;
+    private final int height;
+    private final long taken;
+    private final int orientation;
+    private final String camera;
+}
@@ -0,0 +1,21 @@
+package com.vitalsport.photos.model;
+
+import lombok.Data;
+
+/**
+ * Filters of a catalog search; null bounds are open. Capture times are epoch milliseconds, from inclusive and
+ * to exclusive, dimensions are inclusive.
+ */
+@Data
+public class CatalogQuery {
+    private final String album;
+    private final Long from;
+    private final Long to;
+    private final Integer minWidth;
+    private final Integer maxWidth;
+    private final Integer minHeight;
+    private final Integer maxHeight;
+    private final String camera;
+    private final String after;
+    private final int limit;
+}
@@ -1,10 +1,14 @@
 package com.vitalsport.photos.model;
 
 import lombok.Data;
+import org.springframework.core.io.Resource;
 import org.springframework.http.MediaType;
 
 @Data
 public class ImageHolder {
     private final MediaType mediaType;
-    private final byte[] data;
+    private final Resource resource;
+    private final long contentLength;
+    private final long lastModified;
+    private final String entityTag;
 }
@@ -0,0 +1,39 @@
+package com.vitalsport.photos.model;
+
+import lombok.Data;
+
+/**
+ * File attributes and header fields of an image. Capture time and camera are null when the image has no EXIF data
+ * for them; the orientation is the EXIF one, 1 meaning the pixels are stored upright.
+ */
+@Data
+public class ImageMetadata {
+    private final String name;
+    private final long size;
+    private final String mimeType;
+    private final int width;
+    private final int height;
+    private final long created;
+    private final long modified;
+    private final Long captured;
+    private final int orientation;
+    private final String camera;
+
+    public ImageMetadata(String name, long size, String mimeType, int width, int height, long created, long modified) {
+        this(name, size, mimeType, width, height, created, modified, null, 1, null);
+    }
+
+    public ImageMetadata(String name, long size, String mimeType, int width, int height, long created, long modified,
+                         Long captured, int orientation, String camera) {
+        this.name = name;
+        this.size = size;
+        this.mimeType = mimeType;
+        this.width = width;
+        this.height = height;
+        this.created = created;
+        this.modified = modified;
+        this.captured = captured;
+        this.orientation = orientation;
+        this.camera = camera;
+    }
+}
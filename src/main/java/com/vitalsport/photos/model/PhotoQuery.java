@@ -0,0 +1,12 @@
+package com.vitalsport.photos.model;
+
+import lombok.Data;
+
+@Data
+public class PhotoQuery {
+    private final PhotoSort sort;
+    private final boolean descending;
+    private final String after;
+    private final String mimeType;
+    private final int limit;
+}
@@ -0,0 +1,51 @@
+package com.vitalsport.photos.model;
+
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.function.ToLongFunction;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Orders of an album listing. Every order falls back to the name so that positions are unique
+ * and can be used as pagination cursors.
+ */
+public enum PhotoSort {
+    NAME(metadata -> 0),
+    DATE(ImageMetadata::getModified),
+    SIZE(ImageMetadata::getSize);
+
+    private static final char SEPARATOR = '/';
+
+    private final ToLongFunction<ImageMetadata> key;
+    private final Comparator<ImageMetadata> comparator;
+
+    PhotoSort(ToLongFunction<ImageMetadata> key) {
+        this.key = key;
+        this.comparator = Comparator.comparingLong(key).thenComparing(ImageMetadata::getName);
+    }
+
+    public Comparator<ImageMetadata> comparator() {
+        return comparator;
+    }
+
+    public String toCursor(ImageMetadata metadata) {
+        String position = key.applyAsLong(metadata) + String.valueOf(SEPARATOR) + metadata.getName();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(position.getBytes(UTF_8));
+    }
+
+    /**
+     * Returns a probe that sorts at the position encoded in the cursor.
+     */
+    public ImageMetadata fromCursor(String cursor) {
+        try {
+            String position = new String(Base64.getUrlDecoder().decode(cursor), UTF_8);
+            int separator = position.indexOf(SEPARATOR);
+            long value = Long.parseLong(position.substring(0, separator));
+            String name = position.substring(separator + 1);
+            return new ImageMetadata(name, this == SIZE ? value : 0, null, 0, 0, 0, this == DATE ? value : 0);
+        } catch (IllegalArgumentException | StringIndexOutOfBoundsException exception) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor, exception);
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.vitalsport.photos.model;
+
+import lombok.Data;
+
+@Data
+public class SimilarImage {
+    private final String album;
+    private final String name;
+    private final int distance;
+}
@@ -0,0 +1,14 @@
+package com.vitalsport.photos.model;
+
+import lombok.Data;
+
+/**
+ * A deleted album kept in the trash until it expires, when its files are reclaimed for good.
+ */
+@Data
+public class TrashedAlbum {
+    private final String id;
+    private final String album;
+    private final long deleted;
+    private final long expires;
+}
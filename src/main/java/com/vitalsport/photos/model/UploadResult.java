@@ -0,0 +1,10 @@
+package com.vitalsport.photos.model;
+
+import lombok.Data;
+
+@Data
+public class UploadResult {
+    private final String fileName;
+    private final int status;
+    private final String message;
+}
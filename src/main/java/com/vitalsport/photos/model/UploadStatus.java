@@ -0,0 +1,14 @@
+package com.vitalsport.photos.model;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class UploadStatus {
+    private final String id;
+    private final String fileName;
+    private final long length;
+    private final List<String> received;
+    private final boolean complete;
+}
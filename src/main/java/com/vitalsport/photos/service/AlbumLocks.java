@@ -0,0 +1,153 @@
+package com.vitalsport.photos.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Read-write locks for albums, striped by the hash of user and album so that memory stays fixed however many
+ * albums there are. Work on single images shares the lock of its album, while creating and deleting the album
+ * takes it exclusively; albums that share a stripe only wait for each other's album changes. Writes and deletes
+ * of one image are further serialised by an image lock, taken while holding the shared album lock and never the
+ * other way round. An album lock can't be upgraded from shared to exclusive.
+ * <p>
+ * Every album lock also shares the fence of its user, which moving the directory of the user to another location
+ * takes exclusively, so that nothing writes the user while it moves, whatever the album. Fences are striped by user
+ * as well, so a move also holds up the users sharing its stripe. Downloads take no lock at all.
+ */
+@Component
+public class AlbumLocks {
+
+    private final ReentrantReadWriteLock[] locks;
+    private final ReentrantLock[] imageLocks;
+    private final ReentrantReadWriteLock[] fences;
+
+    @Autowired
+    public AlbumLocks(@Value("${photos.locks.stripes}") int stripes) {
+        int size = Integer.highestOneBit(Math.max(stripes - 1, 1)) << 1;
+        locks = new ReentrantReadWriteLock[size];
+        imageLocks = new ReentrantLock[size];
+        fences = new ReentrantReadWriteLock[size];
+        for (int i = 0; i < size; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+            imageLocks[i] = new ReentrantLock();
+            fences[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    public Lock shared(String userId, String album) {
+        return new FencedLock(fence(userId).readLock(), lock(userId, album).readLock());
+    }
+
+    public Lock exclusive(String userId, String album) {
+        return new FencedLock(fence(userId).readLock(), lock(userId, album).writeLock());
+    }
+
+    public Lock image(String userId, String album, String name) {
+        return imageLocks[stripe(31 * (31 * userId.hashCode() + album.hashCode()) + name.hashCode())];
+    }
+
+    /**
+     * Returns the lock that keeps every album of the user unused while its directory moves.
+     */
+    public Lock user(String userId) {
+        return fence(userId).writeLock();
+    }
+
+    private ReentrantReadWriteLock lock(String userId, String album) {
+        return locks[stripe(31 * userId.hashCode() + album.hashCode())];
+    }
+
+    private ReentrantReadWriteLock fence(String userId) {
+        return fences[stripe(userId.hashCode())];
+    }
+
+    private int stripe(int hash) {
+        return (hash ^ hash >>> 16) & (locks.length - 1);
+    }
+
+    /**
+     * Takes the fence of the user before the album lock and releases it after.
+     */
+    private static final class FencedLock implements Lock {
+        private final Lock fence;
+        private final Lock album;
+
+        FencedLock(Lock fence, Lock album) {
+            this.fence = fence;
+            this.album = album;
+        }
+
+        @Override
+        public void lock() {
+            fence.lock();
+            try {
+                album.lock();
+            } catch (RuntimeException | Error exception) {
+                fence.unlock();
+                throw exception;
+            }
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            fence.lockInterruptibly();
+            try {
+                album.lockInterruptibly();
+            } catch (InterruptedException | RuntimeException | Error exception) {
+                fence.unlock();
+                throw exception;
+            }
+        }
+
+        @Override
+        public boolean tryLock() {
+            if (!fence.tryLock()) {
+                return false;
+            }
+            if (!album.tryLock()) {
+                fence.unlock();
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(time);
+            if (!fence.tryLock(time, unit)) {
+                return false;
+            }
+            try {
+                if (!album.tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    fence.unlock();
+                    return false;
+                }
+            } catch (InterruptedException | RuntimeException | Error exception) {
+                fence.unlock();
+                throw exception;
+            }
+            return true;
+        }
+
+        @Override
+        public void unlock() {
+            try {
+                album.unlock();
+            } finally {
+                fence.unlock();
+            }
+        }
+
+        @Override
+        public Condition newCondition() {
+            throw new UnsupportedOperationException("Album locks have no conditions.");
+        }
+    }
+}
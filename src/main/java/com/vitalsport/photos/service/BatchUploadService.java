@@ -0,0 +1,72 @@
+package com.vitalsport.photos.service;
+
+import com.vitalsport.photos.model.UploadResult;
+import com.vitalsport.photos.validator.Validator;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import static java.util.stream.Collectors.toList;
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
+import static org.springframework.http.HttpStatus.CREATED;
+import static org.springframework.http.HttpStatus.INTERNAL_SERVER_ERROR;
+import static org.springframework.http.HttpStatus.PAYLOAD_TOO_LARGE;
+import static org.springframework.http.HttpStatus.TOO_MANY_REQUESTS;
+
+/**
+ * Uploads many files into one album in parallel, reporting an outcome per file instead of failing the batch. Like
+ * a single upload, the album only comes into being with its first stored image, so a batch that stores nothing
+ * leaves no album behind.
+ */
+@Slf4j
+@Service
+public class BatchUploadService {
+
+    private PhotoLoader photoService;
+    private Validator validator;
+    private Executor uploadExecutor;
+
+    @Autowired
+    public BatchUploadService(PhotoLoader photoService,
+                              Validator validator,
+                              @Qualifier("uploadExecutor") Executor uploadExecutor) {
+        this.photoService = photoService;
+        this.validator = validator;
+        this.uploadExecutor = uploadExecutor;
+    }
+
+    public List<UploadResult> uploadImages(String userId, String album, List<MultipartFile> files) {
+
+        validator.validate(StringUtils::isEmpty, userId, "userId is null or empty.");
+        validator.validate(parts -> parts == null || parts.isEmpty(), files, "No files to upload.");
+
+        List<CompletableFuture<UploadResult>> uploads = files.stream()
+                .map(file -> CompletableFuture.supplyAsync(() -> upload(userId, album, file), uploadExecutor))
+                .collect(toList());
+        return uploads.stream().map(CompletableFuture::join).collect(toList());
+    }
+
+    private UploadResult upload(String userId, String album, MultipartFile file) {
+        String fileName = file.getOriginalFilename();
+        try {
+            photoService.uploadImage(userId, album, fileName, file);
+            return new UploadResult(fileName, CREATED.value(), null);
+        } catch (IllegalArgumentException exception) {
+            return new UploadResult(fileName, BAD_REQUEST.value(), exception.getMessage());
+        } catch (QuotaExceededException exception) {
+            return new UploadResult(fileName, PAYLOAD_TOO_LARGE.value(), exception.getMessage());
+        } catch (RateLimitExceededException exception) {
+            return new UploadResult(fileName, TOO_MANY_REQUESTS.value(), exception.getMessage());
+        } catch (RuntimeException | InternalError exception) {
+            log.warn("Upload of: {} for user: {} failed", fileName, userId, exception);
+            return new UploadResult(fileName, INTERNAL_SERVER_ERROR.value(), exception.getMessage());
+        }
+    }
+}
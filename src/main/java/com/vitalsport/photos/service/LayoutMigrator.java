@@ -0,0 +1,114 @@
+package com.vitalsport.photos.service;
+
+import com.vitalsport.photos.builder.DirectoryPathBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.locks.Lock;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+
+/**
+ * Moves user directories from the flat legacy layout into the sharded one while the service keeps running.
+ * Every user is moved with a single rename under its {@link AlbumLocks#user fence}, so requests of the user wait for
+ * the move and then resolve the new location, and an interrupted migration simply resumes with the users still left
+ * in the legacy roots.
+ */
+@Slf4j
+@Service
+public class LayoutMigrator {
+
+    private DirectoryPathBuilder directoryPathBuilder;
+    private AlbumLocks albumLocks;
+    private int batchSize;
+
+    @Autowired
+    public LayoutMigrator(DirectoryPathBuilder directoryPathBuilder,
+                          AlbumLocks albumLocks,
+                          @Value("${photos.layout.migrationBatch}") int batchSize) {
+        this.directoryPathBuilder = directoryPathBuilder;
+        this.albumLocks = albumLocks;
+        this.batchSize = batchSize;
+    }
+
+    @Scheduled(fixedDelayString = "${photos.layout.migrationInterval}")
+    public void migrateBatch() throws IOException {
+        migrate();
+    }
+
+    /**
+     * Migrates up to one batch of users and returns how many were moved.
+     */
+    public synchronized int migrate() throws IOException {
+        if (!directoryPathBuilder.isSharded()) {
+            return 0;
+        }
+        int moved = 0;
+        boolean remaining = false;
+        for (Path legacyRoot : directoryPathBuilder.getLegacyRoots()) {
+            if (!Files.isDirectory(legacyRoot)) {
+                continue;
+            }
+            try (DirectoryStream<Path> users = Files.newDirectoryStream(legacyRoot, Files::isDirectory)) {
+                for (Path user : users) {
+                    if (user.getFileName().toString().startsWith(".")) {
+                        continue;
+                    }
+                    if (moved == batchSize) {
+                        remaining = true;
+                        break;
+                    }
+                    move(legacyRoot, user);
+                    moved++;
+                }
+            }
+        }
+        if (moved > 0) {
+            log.info("Migrated {} user directories into the sharded layout", moved);
+        }
+        directoryPathBuilder.setLegacyLayoutMigrated(!remaining && moved == 0);
+        return moved;
+    }
+
+    private void move(Path legacyRoot, Path user) throws IOException {
+        String userId = user.getFileName().toString();
+        Path target = directoryPathBuilder.getShardedUserPath(legacyRoot, userId);
+        Lock fence = albumLocks.user(userId);
+        fence.lock();
+        try {
+            if (Files.isDirectory(target)) {
+                merge(user, target);
+            } else {
+                Files.createDirectories(target.getParent());
+                Files.move(user, target, ATOMIC_MOVE);
+            }
+        } finally {
+            fence.unlock();
+        }
+    }
+
+    /**
+     * A user found in both layouts, e.g. written by a version of the service that wrote without the fence, is
+     * merged into the sharded one; the files left in the legacy layout are the newer ones and replace theirs.
+     */
+    private void merge(Path source, Path target) throws IOException {
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(source)) {
+            for (Path child : children) {
+                Path destination = target.resolve(child.getFileName());
+                if (Files.isDirectory(child) && Files.isDirectory(destination)) {
+                    merge(child, destination);
+                } else {
+                    Files.move(child, destination, ATOMIC_MOVE);
+                }
+            }
+        }
+        Files.delete(source);
+    }
+}
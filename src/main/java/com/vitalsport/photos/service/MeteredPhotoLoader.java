@@ -0,0 +1,176 @@
+package com.vitalsport.photos.service;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.vitalsport.photos.io.CountingResource;
+import com.vitalsport.photos.model.CatalogPage;
+import com.vitalsport.photos.model.CatalogQuery;
+import com.vitalsport.photos.model.ImageHolder;
+import com.vitalsport.photos.model.ImageMetadata;
+import com.vitalsport.photos.model.PhotoQuery;
+import com.vitalsport.photos.model.SimilarImage;
+import com.vitalsport.photos.model.TrashedAlbum;
+import org.springframework.http.MediaType;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Times every operation of another loader as {@code timer.photos.<operation>.<outcome>}, the outcome being
+ * {@code success}, {@code rejected} for invalid requests and requests over a quota, or {@code failed}. Listing
+ * sizes are recorded as {@code histogram.photos.<operation>.entries}, and the image bytes uploaded and read by
+ * clients are counted.
+ * Timers are updated on the registry directly since {@code GaugeService} only takes whole milliseconds.
+ */
+public class MeteredPhotoLoader implements PhotoLoader {
+
+    private final PhotoLoader delegate;
+    private final MetricRegistry metricRegistry;
+
+    private final Counter bytesRead;
+    private final Counter bytesWritten;
+
+    public MeteredPhotoLoader(PhotoLoader delegate, MetricRegistry metricRegistry) {
+        this.delegate = delegate;
+        this.metricRegistry = metricRegistry;
+        this.bytesRead = metricRegistry.counter("counter.photos.bytes.read");
+        this.bytesWritten = metricRegistry.counter("counter.photos.bytes.written");
+    }
+
+    @Override
+    public void uploadImage(String userId, String album, String fileName, MultipartFile file) {
+        timed("upload", () -> delegate.uploadImage(userId, album, fileName, file));
+        bytesWritten.inc(file.getSize());
+    }
+
+    @Override
+    public void uploadImage(String userId, String album, String fileName, Path file) {
+        long size = size(file);
+        timed("upload", () -> delegate.uploadImage(userId, album, fileName, file));
+        bytesWritten.inc(size);
+    }
+
+    @Override
+    public ImageHolder downloadImage(String userId, String album, String fileName) {
+        return counted(timed("download", () -> delegate.downloadImage(userId, album, fileName)));
+    }
+
+    @Override
+    public ImageHolder downloadImage(String userId, String album, String fileName, Integer size) {
+        return counted(timed("download", () -> delegate.downloadImage(userId, album, fileName, size)));
+    }
+
+    @Override
+    public ImageHolder downloadImage(String userId, String album, String fileName, Integer size,
+                                     List<MediaType> accepted) {
+        return counted(timed("download", () -> delegate.downloadImage(userId, album, fileName, size, accepted)));
+    }
+
+    @Override
+    public Collection<String> getUserAlbums(String userId) {
+        return listed("albums", timed("albums", () -> delegate.getUserAlbums(userId)));
+    }
+
+    @Override
+    public Collection<String> getUserPhotos(String userId, String album) {
+        return listed("photos", timed("photos", () -> delegate.getUserPhotos(userId, album)));
+    }
+
+    /**
+     * Only validation and positioning are timed: the page itself is produced while the response is written.
+     */
+    @Override
+    public Stream<ImageMetadata> getUserPhotos(String userId, String album, PhotoQuery query) {
+        return timed("photos", () -> delegate.getUserPhotos(userId, album, query));
+    }
+
+    @Override
+    public Collection<String> getArchiveImages(String userId, String album, Collection<String> images) {
+        return listed("archive", timed("archive", () -> delegate.getArchiveImages(userId, album, images)));
+    }
+
+    @Override
+    public CatalogPage findPhotos(String userId, CatalogQuery query) {
+        CatalogPage page = timed("catalog", () -> delegate.findPhotos(userId, query));
+        listed("catalog", page.getPhotos());
+        return page;
+    }
+
+    @Override
+    public List<SimilarImage> getSimilarPhotos(String userId, String album, String image, int distance) {
+        return listed("similar", timed("similar", () -> delegate.getSimilarPhotos(userId, album, image, distance)));
+    }
+
+    @Override
+    public void createAlbum(String userId, String album) {
+        timed("createAlbum", () -> delegate.createAlbum(userId, album));
+    }
+
+    @Override
+    public void deleteImage(String userId, String album, String image) {
+        timed("deleteImage", () -> delegate.deleteImage(userId, album, image));
+    }
+
+    @Override
+    public void deleteAlbum(String userId, String album) {
+        timed("deleteAlbum", () -> delegate.deleteAlbum(userId, album));
+    }
+
+    @Override
+    public List<TrashedAlbum> getTrash(String userId) {
+        return listed("trash", timed("trash", () -> delegate.getTrash(userId)));
+    }
+
+    @Override
+    public void restoreAlbum(String userId, String trashId) {
+        timed("restoreAlbum", () -> delegate.restoreAlbum(userId, trashId));
+    }
+
+    private void timed(String operation, Runnable call) {
+        timed(operation, () -> {
+            call.run();
+            return null;
+        });
+    }
+
+    private <T> T timed(String operation, Supplier<T> call) {
+        long start = System.nanoTime();
+        String outcome = "failed";
+        try {
+            T result = call.get();
+            outcome = "success";
+            return result;
+        } catch (IllegalArgumentException | QuotaExceededException | RateLimitExceededException exception) {
+            outcome = "rejected";
+            throw exception;
+        } finally {
+            metricRegistry.timer("timer.photos." + operation + "." + outcome)
+                    .update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private <T extends Collection<?>> T listed(String operation, T entries) {
+        metricRegistry.histogram("histogram.photos." + operation + ".entries").update(entries.size());
+        return entries;
+    }
+
+    private ImageHolder counted(ImageHolder imageHolder) {
+        return new ImageHolder(imageHolder.getMediaType(), new CountingResource(imageHolder.getResource(), bytesRead::inc),
+                imageHolder.getContentLength(), imageHolder.getLastModified(), imageHolder.getEntityTag());
+    }
+
+    private long size(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException exception) {
+            return 0;
+        }
+    }
+}
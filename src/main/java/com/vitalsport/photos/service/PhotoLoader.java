@@ -1,23 +1,51 @@
 package com.vitalsport.photos.service;
 
+import com.vitalsport.photos.model.CatalogPage;
+import com.vitalsport.photos.model.CatalogQuery;
 import com.vitalsport.photos.model.ImageHolder;
+import com.vitalsport.photos.model.ImageMetadata;
+import com.vitalsport.photos.model.PhotoQuery;
+import com.vitalsport.photos.model.SimilarImage;
+import com.vitalsport.photos.model.TrashedAlbum;
+import org.springframework.http.MediaType;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Collection;
+import java.util.List;
+import java.util.stream.Stream;
 
 public interface PhotoLoader {
     void uploadImage(String userId, String album, String fileName, MultipartFile file);
 
+    void uploadImage(String userId, String album, String fileName, Path file);
+
     ImageHolder downloadImage(String userId, String album, String fileName);
 
+    ImageHolder downloadImage(String userId, String album, String fileName, Integer size);
+
+    ImageHolder downloadImage(String userId, String album, String fileName, Integer size, List<MediaType> accepted);
+
     Collection<String> getUserAlbums(String userId);
 
     Collection<String> getUserPhotos(String userId, String album);
 
+    Stream<ImageMetadata> getUserPhotos(String userId, String album, PhotoQuery query);
+
+    Collection<String> getArchiveImages(String userId, String album, Collection<String> images);
+
+    CatalogPage findPhotos(String userId, CatalogQuery query);
+
+    List<SimilarImage> getSimilarPhotos(String userId, String album, String image, int distance);
+
     void createAlbum(String userId, String album);
 
     void deleteImage(String userId, String album, String image);
 
     void deleteAlbum(String userId, String album);
+
+    List<TrashedAlbum> getTrash(String userId);
+
+    void restoreAlbum(String userId, String trashId);
 }
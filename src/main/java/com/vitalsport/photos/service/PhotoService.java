@@ -1,23 +1,42 @@
 package com.vitalsport.photos.service;
 
+import com.vitalsport.photos.index.MetadataIndex;
+import com.vitalsport.photos.index.SimilarityIndex;
 import com.vitalsport.photos.io.ImageHandler;
+import com.vitalsport.photos.io.ReplicationTimeoutException;
 import com.vitalsport.photos.builder.DirectoryPathBuilder;
+import com.vitalsport.photos.model.CatalogPage;
+import com.vitalsport.photos.model.CatalogQuery;
 import com.vitalsport.photos.model.ImageHolder;
+import com.vitalsport.photos.model.ImageMetadata;
+import com.vitalsport.photos.model.PhotoQuery;
+import com.vitalsport.photos.model.SimilarImage;
+import com.vitalsport.photos.model.TrashedAlbum;
 import com.vitalsport.photos.validator.Validator;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.*;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Stream;
 
 import static java.lang.String.format;
-import static java.nio.file.Paths.get;
-import static org.apache.commons.io.FileUtils.deleteDirectory;
+import static java.util.stream.Collectors.toList;
 import static org.apache.commons.io.IOUtils.toByteArray;
 import static org.springframework.http.MediaType.valueOf;
 
@@ -25,17 +44,43 @@ import static org.springframework.http.MediaType.valueOf;
 @Service
 public class PhotoService implements PhotoLoader {
 
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    /**
+     * Path segments taken by the fixed routes under /{userId}, which would shadow an album of the same name.
+     */
+    private static final Set<String> RESERVED_ALBUMS =
+            new HashSet<>(Arrays.asList("albums", "catalog", "image", "similar", "trash", "uploads"));
+
     private DirectoryPathBuilder directoryPathBuilder;
     private Validator validator;
     private ImageHandler imageHandler;
+    private RenditionService renditionService;
+    private MetadataIndex metadataIndex;
+    private SimilarityIndex similarityIndex;
+    private QuotaService quotaService;
+    private AlbumLocks albumLocks;
+    private TrashService trashService;
 
     @Autowired
     public PhotoService(DirectoryPathBuilder directoryPathBuilder,
                         Validator validator,
-                        ImageHandler basicImageHandler) {
+                        ImageHandler basicImageHandler,
+                        RenditionService renditionService,
+                        MetadataIndex metadataIndex,
+                        SimilarityIndex similarityIndex,
+                        QuotaService quotaService,
+                        AlbumLocks albumLocks,
+                        TrashService trashService) {
         this.directoryPathBuilder = directoryPathBuilder;
         this.validator = validator;
         this.imageHandler = basicImageHandler;
+        this.renditionService = renditionService;
+        this.metadataIndex = metadataIndex;
+        this.similarityIndex = similarityIndex;
+        this.quotaService = quotaService;
+        this.albumLocks = albumLocks;
+        this.trashService = trashService;
     }
 
     @Override
@@ -43,25 +88,159 @@ public class PhotoService implements PhotoLoader {
 
         validator.validate(StringUtils::isEmpty, userId, "userId is null or empty.");
         validator.validate(StringUtils::isEmpty, fileName, "fileName is null or empty.");
+        validateAlbumName(album);
         validator.validate(file -> file.isEmpty(), multipartFile, "Uploading an empty file.");
         validator.validate(file -> !file.getContentType().startsWith("image"), multipartFile,
                 format("ContentType: %s is not supported.", multipartFile.getContentType()));
+        quotaService.acquireUpload(userId);
+
+        Lock albumLock = albumLocks.shared(userId, directoryPathBuilder.getAlbumName(album));
+        Lock imageLock = albumLocks.image(userId, directoryPathBuilder.getAlbumName(album), fileName);
+        albumLock.lock();
+        imageLock.lock();
+        try (InputStream input = multipartFile.getInputStream()) {
+            long reserved = quotaService.reserve(userId, multipartFile.getSize(), storedSize(userId, album, fileName));
+            store(userId, album, fileName, reserved, imagePath -> imageHandler.upload(imagePath, input));
+        } catch (IOException exception) {
+            throw new InternalError(exception);
+        } finally {
+            imageLock.unlock();
+            albumLock.unlock();
+        }
+    }
+
+    @Override
+    public void uploadImage(String userId, String album, String fileName, Path file) {
+
+        validator.validate(StringUtils::isEmpty, userId, "userId is null or empty.");
+        validator.validate(StringUtils::isEmpty, fileName, "fileName is null or empty.");
+        validateAlbumName(album);
 
+        Lock albumLock = albumLocks.shared(userId, directoryPathBuilder.getAlbumName(album));
+        Lock imageLock = albumLocks.image(userId, directoryPathBuilder.getAlbumName(album), fileName);
+        albumLock.lock();
+        imageLock.lock();
         try {
-            imageHandler.upload(directoryPathBuilder.getImagePath(userId, album, fileName),
-                    multipartFile.getBytes());
-            log.debug("File: {} has been successfully uploaded.", fileName);
+            long reserved = quotaService.reserve(userId, Files.size(file), storedSize(userId, album, fileName));
+            store(userId, album, fileName, reserved, imagePath -> imageHandler.upload(imagePath, file));
         } catch (IOException exception) {
             throw new InternalError(exception);
+        } finally {
+            imageLock.unlock();
+            albumLock.unlock();
         }
     }
 
+    /**
+     * Stores and indexes the image, whose bytes were reserved in the quota. A write the replicas didn't acknowledge
+     * in time is on the primary storage all the same, so the image is indexed and counted against the quota before
+     * the failure is reported; any other failure releases the reservation.
+     */
+    private void store(String userId, String album, String fileName, long reserved, ImageWrite write)
+            throws IOException {
+        String imagePath = directoryPathBuilder.getImagePath(userId, album, fileName);
+        try {
+            write.to(imagePath);
+        } catch (ReplicationTimeoutException exception) {
+            uploaded(userId, album, fileName, imagePath, reserved);
+            throw exception;
+        } catch (IOException | RuntimeException | Error exception) {
+            quotaService.release(userId, reserved);
+            throw exception;
+        }
+        uploaded(userId, album, fileName, imagePath, reserved);
+    }
+
+    /**
+     * Indexes the stored image, corrects its reservation to the stored size and schedules its renditions. Those of an
+     * image it replaced are deleted at once, so that they aren't served in its place meanwhile, or at all when the
+     * rendition queue is full.
+     */
+    private void uploaded(String userId, String album, String fileName, String imagePath, long reserved)
+            throws IOException {
+        ImageMetadata metadata;
+        try {
+            metadata = imageHandler.readMetadata(imagePath);
+        } catch (IOException | RuntimeException exception) {
+            quotaService.release(userId, reserved);
+            throw exception;
+        }
+        ImageMetadata replaced = metadataIndex.getImage(userId, directoryPathBuilder.getAlbumName(album), fileName);
+        if (replaced != null) {
+            renditionService.deleteRenditions(userId, album, fileName);
+        }
+        metadataIndex.putImage(userId, directoryPathBuilder.getAlbumName(album), metadata);
+        quotaService.stored(userId, metadata.getSize() - (replaced == null ? 0 : replaced.getSize()) - reserved);
+        log.debug("File: {} has been successfully uploaded.", fileName);
+        renditionService.schedule(userId, album, fileName);
+    }
+
+    private void validateAlbumName(String album) {
+        validateVisible(album);
+        validator.validate(RESERVED_ALBUMS::contains, directoryPathBuilder.getAlbumName(album),
+                format("Album name: %s is reserved.", album));
+    }
+
+    /**
+     * Names starting with a dot are kept for the directories of the service next to the albums, such as the trash.
+     */
+    private void validateVisible(String album) {
+        validator.validate(name -> name.startsWith("."), directoryPathBuilder.getAlbumName(album),
+                format("Album name: %s can't start with a dot.", album));
+    }
+
+    private long storedSize(String userId, String album, String image) {
+        ImageMetadata metadata = metadataIndex.getImage(userId, directoryPathBuilder.getAlbumName(album), image);
+        return metadata == null ? 0 : metadata.getSize();
+    }
+
+    /**
+     * Returns the original as it was uploaded, never a variant, e.g. for archives.
+     */
     @Override
     public ImageHolder downloadImage(String userId, String album, String image) {
+        return downloadImage(userId, album, image, null);
+    }
+
+    @Override
+    public ImageHolder downloadImage(String userId, String album, String image, Integer size) {
+        return downloadImage(userId, album, image, size, Collections.emptyList());
+    }
+
+    /**
+     * Serves the best available encoding: a transcoded variant the client accepts, then the plain rendition for
+     * the requested size, then a full-size variant and finally the original.
+     * <p>
+     * Downloads take no lock, by design: the body is streamed after this returns, on another thread, so a lock
+     * would only cover the lookup, and holding one for a slow client would hold up every change to the album.
+     * Images are replaced by atomic moves, so a lookup sees either the old or the new file; one that is deleted or
+     * moved to another volume before its body is streamed fails that response, which the client retries.
+     */
+    @Override
+    public ImageHolder downloadImage(String userId, String album, String image, Integer size,
+                                     List<MediaType> accepted) {
 
         validator.validate(StringUtils::isEmpty, userId, "userId is null or empty.");
         validator.validate(StringUtils::isEmpty, album, "album is null or empty.");
         validator.validate(StringUtils::isEmpty, image, "fileName is null or empty.");
+        validator.validate(requested -> requested != null && requested <= 0, size, "size should be positive.");
+
+        String renditionPath = size == null ? null : renditionService.getRenditionPath(userId, album, image, size);
+        if (renditionPath != null) {
+            ImageHolder rendition = firstAvailable(renditionService.getTranscodedPaths(userId, album, image, size, accepted));
+            if (rendition == null) {
+                rendition = firstAvailable(Collections.singletonList(renditionPath));
+            }
+            if (rendition != null) {
+                return rendition;
+            }
+            log.debug("Rendition: {} is not available, serving original.", renditionPath);
+        }
+
+        ImageHolder variant = firstAvailable(renditionService.getTranscodedPaths(userId, album, image, null, accepted));
+        if (variant != null) {
+            return variant;
+        }
 
         try {
             return imageHandler.download(directoryPathBuilder.getImagePath(userId, album, image));
@@ -72,6 +251,19 @@ public class PhotoService implements PhotoLoader {
         }
     }
 
+    private ImageHolder firstAvailable(List<String> paths) {
+        for (String path : paths) {
+            try {
+                return imageHandler.download(path);
+            } catch (FileNotFoundException exception) {
+                log.trace("Image: {} is not available.", path);
+            } catch (IOException exception) {
+                throw new InternalError(exception);
+            }
+        }
+        return null;
+    }
+
     @Override
     public void deleteImage(String userId, String album, String image) {
 
@@ -79,55 +271,223 @@ public class PhotoService implements PhotoLoader {
         validator.validate(StringUtils::isEmpty, album, "album is null or empty.");
         validator.validate(StringUtils::isEmpty, image, "fileName is null or empty.");
 
-        File file = imageHandler.prepareFile(directoryPathBuilder.getImagePath(userId, album, image));
-        file.delete();
+        Lock albumLock = albumLocks.shared(userId, directoryPathBuilder.getAlbumName(album));
+        Lock imageLock = albumLocks.image(userId, directoryPathBuilder.getAlbumName(album), image);
+        albumLock.lock();
+        imageLock.lock();
+        try {
+            long size = storedSize(userId, album, image);
+            imageHandler.delete(directoryPathBuilder.getImagePath(userId, album, image));
+            metadataIndex.removeImage(userId, directoryPathBuilder.getAlbumName(album), image);
+            quotaService.stored(userId, -size);
+            similarityIndex.removeImage(userId, directoryPathBuilder.getAlbumName(album), image);
+            renditionService.deleteRenditions(userId, album, image);
+        } finally {
+            imageLock.unlock();
+            albumLock.unlock();
+        }
     }
 
     @Override
     public void createAlbum(String userId, String album) {
-        File file = imageHandler.prepareFile(directoryPathBuilder.getAlbumPath(userId, album));
-
-        validator.validate(f -> f.exists(), file,
-                format("Album: %s is already exists.", album));
+        validateAlbumName(album);
+        Lock lock = albumLocks.exclusive(userId, directoryPathBuilder.getAlbumName(album));
+        lock.lock();
         try {
-            //TODO: create a userId folder if it doesn't exist
-            file.mkdir();
-        } catch (SecurityException exception) {
+            String albumPath = directoryPathBuilder.getAlbumPath(userId, album);
+            validator.validate(imageHandler::exists, albumPath,
+                    format("Album: %s is already exists.", album));
+            imageHandler.createDirectory(albumPath);
+            metadataIndex.putAlbum(userId, directoryPathBuilder.getAlbumName(album));
+        } catch (IOException | SecurityException exception) {
             throw new InternalError(exception);
+        } finally {
+            lock.unlock();
         }
     }
 
+    /**
+     * Moves the album to the trash of the user, from where it can be restored until the trash reclaims it.
+     * Its images stop counting against the quota at once.
+     */
     @Override
     public void deleteAlbum(String userId, String album) {
-        File file = imageHandler.prepareFile(directoryPathBuilder.getAlbumPath(userId, album));
-        validator.validate(f -> !f.exists(), file,
-                format("Album: %s does not exists.", album));
+        validateVisible(album);
+        String albumName = directoryPathBuilder.getAlbumName(album);
+        Lock lock = albumLocks.exclusive(userId, albumName);
+        lock.lock();
         try {
-            deleteDirectory(file);
+            String albumPath = directoryPathBuilder.getAlbumPath(userId, album);
+            validator.validate(path -> !imageHandler.exists(path), albumPath,
+                    format("Album: %s does not exists.", album));
+            long size = 0;
+            Map<String, Long> hashes = new HashMap<>();
+            for (ImageMetadata image : metadataIndex.getImages(userId, albumName)) {
+                size += image.getSize();
+                Long hash = similarityIndex.getHash(userId, albumName, image.getName());
+                if (hash != null) {
+                    hashes.put(image.getName(), hash);
+                }
+            }
+            trashService.trash(userId, albumName, hashes);
+            metadataIndex.removeAlbum(userId, albumName);
+            quotaService.stored(userId, -size);
+            similarityIndex.removeAlbum(userId, albumName);
         } catch (IOException exception) {
             throw new InternalError(exception);
+        } finally {
+            lock.unlock();
         }
     }
 
     @Override
-    public Collection<String> getUserAlbums(String userId) {
+    public List<TrashedAlbum> getTrash(String userId) {
+
+        validator.validate(StringUtils::isEmpty, userId, "userId is null or empty.");
+
         try {
-            Path allAlbums = get(directoryPathBuilder.getAllAlbumsPath(userId));
-            return imageHandler.getImageInfo(allAlbums,
-                    (path) -> path.getFileName().toString());
+            return trashService.list(userId);
         } catch (IOException exception) {
             throw new InternalError(exception);
         }
     }
 
+    /**
+     * Moves an album back from the trash and indexes its images again. Images whose similarity hashes weren't
+     * kept get their renditions, and with them their hashes, created again.
+     */
     @Override
-    public Collection<String> getUserPhotos(String userId, String album) {
+    public void restoreAlbum(String userId, String trashId) {
+
+        validator.validate(StringUtils::isEmpty, userId, "userId is null or empty.");
+        validator.validate(StringUtils::isEmpty, trashId, "trashId is null or empty.");
+
+        String albumName = trashService.getAlbum(trashId);
+        Lock lock = albumLocks.exclusive(userId, albumName);
+        lock.lock();
         try {
-            Path userAlbum = get(directoryPathBuilder.getAlbumPath(userId, album));
-            return imageHandler.getImageInfo(userAlbum,
-                    (path) -> path.getFileName().toString());
+            String albumPath = directoryPathBuilder.getAlbumPath(userId, albumName);
+            validator.validate(imageHandler::exists, albumPath,
+                    format("Album: %s is already exists.", albumName));
+            Map<String, Long> hashes = trashService.restore(userId, trashId);
+            metadataIndex.putAlbum(userId, albumName);
+            long size = 0;
+            for (String name : imageHandler.list(albumPath)) {
+                ImageMetadata metadata = imageHandler.readMetadata(directoryPathBuilder.getImagePath(userId, albumName, name));
+                metadataIndex.putImage(userId, albumName, metadata);
+                size += metadata.getSize();
+                Long hash = hashes.get(name);
+                if (hash != null) {
+                    similarityIndex.putImage(userId, albumName, name, hash);
+                } else {
+                    renditionService.schedule(userId, albumName, name);
+                }
+            }
+            quotaService.stored(userId, size);
         } catch (IOException exception) {
             throw new InternalError(exception);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Collection<String> getUserAlbums(String userId) {
+        return metadataIndex.getAlbums(userId);
+    }
+
+    @Override
+    public Collection<String> getUserPhotos(String userId, String album) {
+        return metadataIndex.getImages(userId, directoryPathBuilder.getAlbumName(album)).stream()
+                .map(ImageMetadata::getName)
+                .collect(toList());
+    }
+
+    @Override
+    public Stream<ImageMetadata> getUserPhotos(String userId, String album, PhotoQuery query) {
+
+        validator.validate(StringUtils::isEmpty, userId, "userId is null or empty.");
+        validator.validate(StringUtils::isEmpty, album, "album is null or empty.");
+        validator.validate(q -> q.getLimit() <= 0 || q.getLimit() > MAX_PAGE_SIZE, query,
+                format("limit should be between 1 and %d.", MAX_PAGE_SIZE));
+
+        ImageMetadata after = query.getAfter() == null ? null : query.getSort().fromCursor(query.getAfter());
+        Stream<ImageMetadata> photos = metadataIndex.getImages(userId, directoryPathBuilder.getAlbumName(album),
+                query.getSort(), query.isDescending(), after);
+        if (query.getMimeType() != null) {
+            photos = photos.filter(photo -> query.getMimeType().equals(photo.getMimeType()));
         }
+        return photos;
+    }
+
+    @Override
+    public Collection<String> getArchiveImages(String userId, String album, Collection<String> images) {
+
+        validator.validate(StringUtils::isEmpty, userId, "userId is null or empty.");
+        validator.validate(StringUtils::isEmpty, album, "album is null or empty.");
+
+        String albumName = directoryPathBuilder.getAlbumName(album);
+        if (images == null || images.isEmpty()) {
+            return getUserPhotos(userId, album);
+        }
+        for (String image : images) {
+            validator.validate(name -> metadataIndex.getImage(userId, albumName, name) == null, image,
+                    format("Image: %s wasn't found in album: %s for user: %s.", image, album, userId));
+        }
+        return images.stream().distinct().collect(toList());
+    }
+
+    /**
+     * Searches the photos of the user, in one album or all of them, by capture time, dimensions and camera.
+     * Only the metadata index is read.
+     */
+    @Override
+    public CatalogPage findPhotos(String userId, CatalogQuery query) {
+
+        validator.validate(StringUtils::isEmpty, userId, "userId is null or empty.");
+        validator.validate(q -> q.getLimit() <= 0 || q.getLimit() > MAX_PAGE_SIZE, query,
+                format("limit should be between 1 and %d.", MAX_PAGE_SIZE));
+        validator.validate(q -> q.getFrom() != null && q.getTo() != null && q.getFrom() > q.getTo(), query,
+                "from should not be after to.");
+        validator.validate(q -> q.getMinWidth() != null && q.getMaxWidth() != null
+                && q.getMinWidth() > q.getMaxWidth(), query, "minWidth should not exceed maxWidth.");
+        validator.validate(q -> q.getMinHeight() != null && q.getMaxHeight() != null
+                && q.getMinHeight() > q.getMaxHeight(), query, "minHeight should not exceed maxHeight.");
+
+        if (StringUtils.isEmpty(query.getAlbum())) {
+            return metadataIndex.findImages(userId, query);
+        }
+        return metadataIndex.findImages(userId, new CatalogQuery(directoryPathBuilder.getAlbumName(query.getAlbum()),
+                query.getFrom(), query.getTo(), query.getMinWidth(), query.getMaxWidth(), query.getMinHeight(),
+                query.getMaxHeight(), query.getCamera(), query.getAfter(), query.getLimit()));
+    }
+
+    /**
+     * Returns the photos of the user, in any album, that look like the given one. Images are hashed along with their
+     * renditions, so a photo that was just uploaded has no similar photos yet.
+     */
+    @Override
+    public List<SimilarImage> getSimilarPhotos(String userId, String album, String image, int distance) {
+
+        validator.validate(StringUtils::isEmpty, userId, "userId is null or empty.");
+        validator.validate(StringUtils::isEmpty, album, "album is null or empty.");
+        validator.validate(StringUtils::isEmpty, image, "fileName is null or empty.");
+        validator.validate(d -> d < 0 || d > SimilarityIndex.MAX_DISTANCE, distance,
+                format("distance should be between 0 and %d.", SimilarityIndex.MAX_DISTANCE));
+
+        String albumName = directoryPathBuilder.getAlbumName(album);
+        validator.validate(name -> metadataIndex.getImage(userId, albumName, name) == null, image,
+                format("Image: %s wasn't found in album: %s for user: %s.", image, album, userId));
+        Long hash = similarityIndex.getHash(userId, albumName, image);
+        if (hash == null) {
+            return Collections.emptyList();
+        }
+        return similarityIndex.findSimilar(userId, hash, distance).stream()
+                .filter(similar -> !similar.getAlbum().equals(albumName) || !similar.getName().equals(image))
+                .collect(toList());
+    }
+
+    private interface ImageWrite {
+        void to(String imagePath) throws IOException;
     }
 }
@@ -0,0 +1,13 @@
+package com.vitalsport.photos.service;
+
+/**
+ * Thrown when an upload would take a user over their storage quota.
+ */
+public class QuotaExceededException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public QuotaExceededException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,210 @@
+package com.vitalsport.photos.service;
+
+import com.vitalsport.photos.index.MetadataIndex;
+import com.vitalsport.photos.model.ImageMetadata;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Service;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.String.format;
+
+/**
+ * Per-user storage quotas and upload rate limits, checked before an upload is written.
+ * <p>
+ * Storage usage is an {@link AtomicLong} per user, seeded once from the sizes in the metadata index and then kept
+ * current as images are stored and deleted, so a check never touches the disk. An upload reserves its bytes with a
+ * compare-and-set before it is written, so concurrent uploads can't together take a user over the quota; the
+ * reservation is released when the upload fails and corrected to the stored size once it succeeds.
+ * <p>
+ * Upload rates are limited by a token bucket per user kept in a single {@link AtomicLong}: the time at which the
+ * bucket is full again, moved forward by one interval per upload with a compare-and-set. The bucket of a user who
+ * has been idle long enough is full and carries no state, so such buckets are dropped when the map reaches its
+ * bound; while it is still full of busy users, users without a bucket are throttled.
+ * <p>
+ * A limit of zero turns the respective check off.
+ */
+@Slf4j
+@Service
+public class QuotaService implements PublicMetrics {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final ConcurrentMap<String, AtomicLong> usage = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    private MetadataIndex metadataIndex;
+    private long maxBytes;
+    private long interval;
+    private long capacity;
+    private int maxUsers;
+
+    @Autowired
+    public QuotaService(MetadataIndex metadataIndex,
+                        @Value("${photos.quota.maxBytes}") long maxBytes,
+                        @Value("${photos.quota.uploadsPerSecond}") double uploadsPerSecond,
+                        @Value("${photos.quota.burst}") int burst,
+                        @Value("${photos.quota.maxUsers}") int maxUsers) {
+        this.metadataIndex = metadataIndex;
+        this.maxBytes = maxBytes;
+        this.interval = uploadsPerSecond <= 0 ? 0 : (long) (NANOS_PER_SECOND / uploadsPerSecond);
+        this.capacity = interval * Math.max(burst, 1);
+        this.maxUsers = maxUsers;
+    }
+
+    /**
+     * Takes one upload from the bucket of the user, throwing when it is empty.
+     */
+    public void acquireUpload(String userId) {
+        if (interval == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        AtomicLong bucket = bucket(userId, now);
+        if (bucket == null) {
+            throttle(userId, capacity);
+        }
+        while (true) {
+            long full = bucket.get();
+            long next = (full - now > 0 ? full : now) + interval;
+            if (next - now > capacity) {
+                throttle(userId, next - now - capacity);
+            }
+            if (bucket.compareAndSet(full, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Checks that storing the given number of bytes, in place of an image of the replaced size, keeps the user
+     * within their quota, without reserving them: for admitting uploads that are written later.
+     */
+    public void checkStorage(String userId, long incoming, long replaced) {
+        if (maxBytes <= 0) {
+            return;
+        }
+        long used = usage(userId).get();
+        if (used - replaced + incoming > maxBytes) {
+            reject(userId, used);
+        }
+    }
+
+    /**
+     * Reserves the given number of bytes, in place of an image of the replaced size, before they are written,
+     * throwing when that would take the user over their quota. Returns the reserved bytes, which are either
+     * {@link #release released} when the write fails or {@link #stored corrected} to the stored size.
+     */
+    public long reserve(String userId, long incoming, long replaced) {
+        if (maxBytes <= 0) {
+            return 0;
+        }
+        long reserved = incoming - replaced;
+        AtomicLong used = usage(userId);
+        while (true) {
+            long current = used.get();
+            if (current + reserved > maxBytes) {
+                reject(userId, current);
+            }
+            if (used.compareAndSet(current, current + reserved)) {
+                return reserved;
+            }
+        }
+    }
+
+    /**
+     * Gives back the bytes reserved for a write that failed.
+     */
+    public void release(String userId, long reserved) {
+        stored(userId, -reserved);
+    }
+
+    /**
+     * Records a change of the stored bytes of the user, negative for deletions. Users whose usage hasn't been
+     * seeded yet are skipped, since seeding reads the index which already has the change.
+     */
+    public void stored(String userId, long bytes) {
+        AtomicLong used = usage.get(userId);
+        if (used != null) {
+            used.addAndGet(bytes);
+        }
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        return Arrays.asList(
+                new Metric<>("photos.quota.users", usage.size()),
+                new Metric<>("photos.quota.buckets", buckets.size()),
+                new Metric<>("photos.quota.throttled", throttled.sum()),
+                new Metric<>("photos.quota.rejected", rejected.sum()));
+    }
+
+    private AtomicLong usage(String userId) {
+        AtomicLong used = usage.get(userId);
+        return used != null ? used : usage.computeIfAbsent(userId, this::indexedUsage);
+    }
+
+    private AtomicLong indexedUsage(String userId) {
+        long used = 0;
+        for (String album : metadataIndex.getAlbums(userId)) {
+            for (ImageMetadata image : metadataIndex.getImages(userId, album)) {
+                used += image.getSize();
+            }
+        }
+        log.debug("User: {} has {} bytes stored", userId, used);
+        return new AtomicLong(used);
+    }
+
+    private void reject(String userId, long used) {
+        rejected.increment();
+        throw new QuotaExceededException(format("Storage quota of user: %s is exceeded, %d of %d bytes are used.",
+                userId, used, maxBytes));
+    }
+
+    /**
+     * Returns the bucket of the user, creating a full one when there is room, or null when the map is full.
+     */
+    private AtomicLong bucket(String userId, long now) {
+        AtomicLong bucket = buckets.get(userId);
+        if (bucket != null) {
+            return bucket;
+        }
+        if (buckets.size() >= maxUsers) {
+            sweep(now);
+            if (buckets.size() >= maxUsers) {
+                return null;
+            }
+        }
+        return buckets.computeIfAbsent(userId, id -> new AtomicLong(now));
+    }
+
+    private void sweep(long now) {
+        if (sweeping.compareAndSet(false, true)) {
+            try {
+                buckets.values().removeIf(bucket -> bucket.get() - now <= 0);
+            } finally {
+                sweeping.set(false);
+            }
+        }
+    }
+
+    private void throttle(String userId, long wait) {
+        throttled.increment();
+        throw new RateLimitExceededException(format("Upload rate limit of user: %s is exceeded.", userId),
+                Math.max(1, TimeUnit.NANOSECONDS.toSeconds(wait + NANOS_PER_SECOND - 1)));
+    }
+}
@@ -0,0 +1,21 @@
+package com.vitalsport.photos.service;
+
+/**
+ * Thrown when a user sends uploads faster than their rate limit allows. Carries the number of seconds until the
+ * next upload would be accepted.
+ */
+public class RateLimitExceededException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long retryAfter;
+
+    public RateLimitExceededException(String message, long retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,330 @@
+package com.vitalsport.photos.service;
+
+import com.vitalsport.photos.builder.DirectoryPathBuilder;
+import com.vitalsport.photos.index.MetadataIndex;
+import com.vitalsport.photos.index.SimilarityIndex;
+import com.vitalsport.photos.io.ImageHandler;
+import com.vitalsport.photos.io.ImageScaler;
+import com.vitalsport.photos.model.ImageHolder;
+import com.vitalsport.photos.model.ImageMetadata;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import static java.net.URLConnection.guessContentTypeFromName;
+
+/**
+ * Produces pre-scaled copies of uploaded images on a bounded worker pool, turned upright according to the EXIF
+ * orientation of the original since the copies carry no metadata. Each size is also re-encoded into the
+ * configured transcoding formats that have an ImageIO writer, and the full size into the formats other than the
+ * one of the original, which is never replaced by a lossy copy of itself; a variant is kept only when it is smaller
+ * than the image it was made from. The perceptual hash of the image is computed from its smallest
+ * rendition and added to the {@link SimilarityIndex}. Images left without a hash, because their renditions were
+ * skipped while the queue was full or failed, are scheduled again in batches in the background.
+ */
+@Slf4j
+@Service
+public class RenditionService {
+
+    private static final String JPEG = "image/jpeg";
+
+    private final Set<String> undecodable = ConcurrentHashMap.newKeySet();
+
+    private DirectoryPathBuilder directoryPathBuilder;
+    private ImageHandler imageHandler;
+    private ImageScaler imageScaler;
+    private SimilarityIndex similarityIndex;
+    private MetadataIndex metadataIndex;
+    private AlbumLocks albumLocks;
+    private int[] sizes;
+    private List<String> formats;
+    private float quality;
+    private int backfillBatch;
+    private ThreadPoolExecutor executor;
+
+    @Autowired
+    public RenditionService(DirectoryPathBuilder directoryPathBuilder,
+                            ImageHandler basicImageHandler,
+                            ImageScaler imageScaler,
+                            SimilarityIndex similarityIndex,
+                            MetadataIndex metadataIndex,
+                            AlbumLocks albumLocks,
+                            @Value("${photos.renditions.sizes}") int[] sizes,
+                            @Value("${photos.renditions.threads}") int threads,
+                            @Value("${photos.renditions.queueSize}") int queueSize,
+                            @Value("${photos.renditions.backfillBatch}") int backfillBatch,
+                            @Value("${photos.transcoding.formats}") String[] formats,
+                            @Value("${photos.transcoding.quality}") float quality) {
+        this.directoryPathBuilder = directoryPathBuilder;
+        this.imageHandler = basicImageHandler;
+        this.imageScaler = imageScaler;
+        this.similarityIndex = similarityIndex;
+        this.metadataIndex = metadataIndex;
+        this.albumLocks = albumLocks;
+        this.backfillBatch = backfillBatch;
+        this.sizes = sizes.clone();
+        Arrays.sort(this.sizes);
+        this.formats = new ArrayList<>();
+        for (String format : formats) {
+            if (imageScaler.canWrite(format)) {
+                this.formats.add(format);
+            } else {
+                log.info("No ImageIO writer for: {}, images won't be transcoded into it.", format);
+            }
+        }
+        this.quality = quality;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize));
+    }
+
+    public void schedule(String userId, String album, String fileName) {
+        if (!submit(userId, album, fileName)) {
+            log.warn("Rendition queue is full, skipping renditions for: {}", fileName);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${photos.renditions.backfillInterval}")
+    public void backfillBatch() {
+        backfill();
+    }
+
+    /**
+     * Schedules the renditions, and with them the hash, of up to one batch of indexed images that have no hash,
+     * stopping early when the queue is full. Images that can't be decoded are left alone until they are replaced.
+     * Returns how many were scheduled.
+     */
+    public int backfill() {
+        int scheduled = 0;
+        for (String userId : metadataIndex.getUsers()) {
+            for (String album : metadataIndex.getAlbums(userId)) {
+                for (ImageMetadata image : metadataIndex.getImages(userId, album)) {
+                    if (scheduled == backfillBatch) {
+                        log.info("Scheduled renditions of {} images without a hash, more are left", scheduled);
+                        return scheduled;
+                    }
+                    if (similarityIndex.getHash(userId, album, image.getName()) != null
+                            || undecodable.contains(key(userId, album, image.getName()))) {
+                        continue;
+                    }
+                    if (!submit(userId, album, image.getName())) {
+                        return scheduled;
+                    }
+                    scheduled++;
+                }
+            }
+        }
+        if (scheduled > 0) {
+            log.info("Scheduled renditions of {} images without a hash", scheduled);
+        }
+        return scheduled;
+    }
+
+    /**
+     * Returns the path of the smallest rendition that is at least the requested size,
+     * or null when the original should be served.
+     */
+    public String getRenditionPath(String userId, String album, String fileName, int requestedSize) {
+        for (int size : sizes) {
+            if (size >= requestedSize) {
+                return directoryPathBuilder.getRenditionPath(userId, album, fileName, size);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the transcoded variants of the rendition for the requested size, or of the full-size image when
+     * the size is null or larger than all renditions, in the configured order of preference. Besides the format
+     * of the original, a format is only offered when the Accept header names it explicitly: clients that send
+     * {@code image/*} aren't assumed to decode every image format. The full-size image is only substituted when the
+     * client prefers the other format at least as much as the format of the original.
+     */
+    public List<String> getTranscodedPaths(String userId, String album, String fileName, Integer requestedSize,
+                                           List<MediaType> accepted) {
+        Integer size = null;
+        if (requestedSize != null) {
+            for (int candidate : sizes) {
+                if (candidate >= requestedSize) {
+                    size = candidate;
+                    break;
+                }
+            }
+        }
+        String originalType = guessContentTypeFromName(fileName);
+        List<String> paths = new ArrayList<>();
+        for (String format : formats) {
+            boolean offered = size == null
+                    ? !format.equals(originalType) && isAccepted(format, accepted)
+                    && quality(format, accepted) >= quality(originalType, accepted)
+                    : format.equals(originalType) || isAccepted(format, accepted);
+            if (isTranscodable(format, originalType) && offered) {
+                paths.add(directoryPathBuilder.getTranscodedPath(userId, album, fileName, size, extension(format)));
+            }
+        }
+        return paths;
+    }
+
+    public void deleteRenditions(String userId, String album, String fileName) {
+        undecodable.remove(key(userId, directoryPathBuilder.getAlbumName(album), fileName));
+        deleteTranscoded(userId, album, fileName, null);
+        for (int size : sizes) {
+            imageHandler.delete(directoryPathBuilder.getRenditionPath(userId, album, fileName, size));
+            deleteTranscoded(userId, album, fileName, size);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Runs under the same locks as uploads, so that renditions of an image aren't written while it or its album
+     * is being deleted.
+     */
+    void createRenditions(String userId, String album, String fileName) {
+        Lock albumLock = albumLocks.shared(userId, directoryPathBuilder.getAlbumName(album));
+        Lock imageLock = albumLocks.image(userId, directoryPathBuilder.getAlbumName(album), fileName);
+        albumLock.lock();
+        imageLock.lock();
+        try {
+            renderImage(userId, album, fileName);
+        } finally {
+            imageLock.unlock();
+            albumLock.unlock();
+        }
+    }
+
+    private void renderImage(String userId, String album, String fileName) {
+        try {
+            String imagePath = directoryPathBuilder.getImagePath(userId, album, fileName);
+            ImageHolder original = imageHandler.download(imagePath);
+            BufferedImage image;
+            try (InputStream input = original.getResource().getInputStream()) {
+                image = imageScaler.read(input);
+            }
+            if (image == null) {
+                log.debug("File: {} can't be decoded, no renditions created.", fileName);
+                undecodable.add(key(userId, directoryPathBuilder.getAlbumName(album), fileName));
+                return;
+            }
+            image = imageScaler.orient(image, imageHandler.readMetadata(imagePath).getOrientation());
+
+            String mimeType = original.getMediaType().toString();
+            transcode(image, mimeType, original.getContentLength(), userId, album, fileName, null);
+            for (int i = sizes.length - 1; i >= 0; i--) {
+                String renditionPath = directoryPathBuilder.getRenditionPath(userId, album, fileName, sizes[i]);
+                if (Math.max(image.getWidth(), image.getHeight()) <= sizes[i]) {
+                    imageHandler.delete(renditionPath);
+                    deleteTranscoded(userId, album, fileName, sizes[i]);
+                    continue;
+                }
+                image = imageScaler.scale(image, sizes[i]);
+                byte[] rendition = imageScaler.write(image, mimeType);
+                imageHandler.upload(renditionPath, rendition);
+                transcode(image, mimeType, rendition.length, userId, album, fileName, sizes[i]);
+            }
+            similarityIndex.putImage(userId, directoryPathBuilder.getAlbumName(album), fileName,
+                    imageScaler.differenceHash(image));
+            log.debug("Renditions for file: {} have been created.", fileName);
+        } catch (IOException | RuntimeException exception) {
+            log.warn("Failed to create renditions for file: {}", fileName, exception);
+        }
+    }
+
+    private void transcode(BufferedImage image, String sourceType, long sourceLength,
+                           String userId, String album, String fileName, Integer size) throws IOException {
+        for (String format : formats) {
+            if (!isTranscodable(format, sourceType)) {
+                continue;
+            }
+            String path = directoryPathBuilder.getTranscodedPath(userId, album, fileName, size, extension(format));
+            if (size == null && format.equals(sourceType)) {
+                imageHandler.delete(path);
+                continue;
+            }
+            byte[] encoded = imageScaler.write(image, format, quality);
+            if (encoded.length < sourceLength) {
+                imageHandler.upload(path, encoded);
+            } else {
+                imageHandler.delete(path);
+            }
+        }
+    }
+
+    private boolean submit(String userId, String album, String fileName) {
+        try {
+            executor.execute(() -> createRenditions(userId, album, fileName));
+            return true;
+        } catch (RejectedExecutionException exception) {
+            return false;
+        }
+    }
+
+    private static String key(String userId, String album, String fileName) {
+        return userId + '/' + album + '/' + fileName;
+    }
+
+    private void deleteTranscoded(String userId, String album, String fileName, Integer size) {
+        for (String format : formats) {
+            imageHandler.delete(directoryPathBuilder.getTranscodedPath(userId, album, fileName, size, extension(format)));
+        }
+    }
+
+    /**
+     * Lossy JPEG is only used to re-encode JPEG sources: graphics and transparency in other formats would suffer.
+     */
+    private boolean isTranscodable(String format, String sourceType) {
+        return !JPEG.equals(format) || JPEG.equals(sourceType);
+    }
+
+    private boolean isAccepted(String format, List<MediaType> accepted) {
+        MediaType type = MediaType.valueOf(format);
+        for (MediaType acceptedType : accepted) {
+            if (!acceptedType.isWildcardType() && !acceptedType.isWildcardSubtype()
+                    && acceptedType.includes(type) && acceptedType.getQualityValue() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the highest quality the Accept header gives the type, wildcards included.
+     */
+    private double quality(String format, List<MediaType> accepted) {
+        if (format == null) {
+            return 0;
+        }
+        MediaType type = MediaType.valueOf(format);
+        double quality = 0;
+        for (MediaType acceptedType : accepted) {
+            if (acceptedType.includes(type)) {
+                quality = Math.max(quality, acceptedType.getQualityValue());
+            }
+        }
+        return quality;
+    }
+
+    private String extension(String format) {
+        return MediaType.valueOf(format).getSubtype();
+    }
+}
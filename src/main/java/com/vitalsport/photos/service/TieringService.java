@@ -0,0 +1,171 @@
+package com.vitalsport.photos.service;
+
+import com.vitalsport.photos.builder.DirectoryPathBuilder;
+import com.vitalsport.photos.index.MetadataIndex;
+import com.vitalsport.photos.io.ImageHandler;
+import com.vitalsport.photos.io.ImageScaler;
+import com.vitalsport.photos.io.TieringImageHandler;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.locks.Lock;
+
+import static java.net.URLConnection.guessContentTypeFromName;
+
+/**
+ * Demotes originals that haven't been read or written for a while to the cold volume of the
+ * {@link TieringImageHandler}, optionally recompressing JPEG originals on the way when that makes them smaller.
+ * A recompressed original keeps the metadata segments of the old one and is written through the storage chain
+ * like an upload, so replicas, caches, the index and the quota all see it. Renditions stay where they are: they
+ * are small and they are what albums are browsed with.
+ */
+@Slf4j
+@Service
+public class TieringService {
+
+    private static final String JPEG = "image/jpeg";
+
+    private DirectoryPathBuilder directoryPathBuilder;
+    private TieringImageHandler tieringImageHandler;
+    private ImageHandler imageHandler;
+    private ImageScaler imageScaler;
+    private MetadataIndex metadataIndex;
+    private QuotaService quotaService;
+    private AlbumLocks albumLocks;
+    private long coldAfter;
+    private boolean recompress;
+    private float quality;
+    private int batchSize;
+
+    @Autowired
+    public TieringService(DirectoryPathBuilder directoryPathBuilder,
+                          TieringImageHandler tieringImageHandler,
+                          ImageHandler imageHandler,
+                          ImageScaler imageScaler,
+                          MetadataIndex metadataIndex,
+                          QuotaService quotaService,
+                          AlbumLocks albumLocks,
+                          @Value("${photos.tiering.coldAfter}") long coldAfter,
+                          @Value("${photos.tiering.recompress}") boolean recompress,
+                          @Value("${photos.tiering.quality}") float quality,
+                          @Value("${photos.tiering.demotionBatch}") int batchSize) {
+        this.directoryPathBuilder = directoryPathBuilder;
+        this.tieringImageHandler = tieringImageHandler;
+        this.imageHandler = imageHandler;
+        this.imageScaler = imageScaler;
+        this.metadataIndex = metadataIndex;
+        this.quotaService = quotaService;
+        this.albumLocks = albumLocks;
+        this.coldAfter = coldAfter;
+        this.recompress = recompress;
+        this.quality = quality;
+        this.batchSize = batchSize;
+    }
+
+    @Scheduled(fixedDelayString = "${photos.tiering.demotionInterval}")
+    public void demoteBatch() throws IOException {
+        demote();
+    }
+
+    /**
+     * Demotes up to one batch of cold originals and returns how many were moved.
+     */
+    public synchronized int demote() throws IOException {
+        if (!tieringImageHandler.isEnabled()) {
+            return 0;
+        }
+        long threshold = System.currentTimeMillis() - coldAfter;
+        int demoted = 0;
+        for (Path user : directoryPathBuilder.getUserPaths()) {
+            try (DirectoryStream<Path> albums = Files.newDirectoryStream(user, Files::isDirectory)) {
+                for (Path album : albums) {
+                    try (DirectoryStream<Path> images = Files.newDirectoryStream(album)) {
+                        for (Path image : images) {
+                            if (demoted == batchSize) {
+                                log.info("Demoted {} images to the cold volume, more are left", demoted);
+                                return demoted;
+                            }
+                            if (isCold(image, threshold) && demote(user, album, image, threshold)) {
+                                demoted++;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        if (demoted > 0) {
+            log.info("Demoted {} images to the cold volume", demoted);
+        }
+        return demoted;
+    }
+
+    private boolean isCold(Path image, long threshold) throws IOException {
+        if (image.getFileName().toString().startsWith(".")) {
+            return false;
+        }
+        BasicFileAttributes attributes = Files.readAttributes(image, BasicFileAttributes.class,
+                LinkOption.NOFOLLOW_LINKS);
+        return attributes.isRegularFile() && attributes.lastAccessTime().toMillis() < threshold
+                && attributes.lastModifiedTime().toMillis() < threshold;
+    }
+
+    /**
+     * Demotes the image under the same locks as uploads take, checking again that it is still cold.
+     */
+    private boolean demote(Path user, Path album, Path image, long threshold) {
+        String userId = user.getFileName().toString();
+        String albumName = album.getFileName().toString();
+        String path = image.toString();
+        Lock albumLock = albumLocks.shared(userId, albumName);
+        Lock imageLock = albumLocks.image(userId, albumName, image.getFileName().toString());
+        albumLock.lock();
+        imageLock.lock();
+        try {
+            if (!isCold(image, threshold)) {
+                return false;
+            }
+            byte[] content = recompress ? recompressed(image) : null;
+            if (content != null) {
+                long replaced = Files.size(image);
+                imageHandler.upload(path, content);
+                metadataIndex.putImage(userId, albumName, imageHandler.readMetadata(path));
+                quotaService.stored(userId, content.length - replaced);
+            }
+            return tieringImageHandler.demote(path);
+        } catch (IOException | RuntimeException exception) {
+            log.warn("Failed to demote image: {}", image, exception);
+            return false;
+        } finally {
+            imageLock.unlock();
+            albumLock.unlock();
+        }
+    }
+
+    /**
+     * Re-encodes a JPEG original at the configured quality with its metadata carried over, returning null when
+     * that doesn't make it smaller.
+     */
+    private byte[] recompressed(Path image) throws IOException {
+        if (!JPEG.equals(guessContentTypeFromName(image.getFileName().toString()))) {
+            return null;
+        }
+        byte[] original = Files.readAllBytes(image);
+        BufferedImage decoded = imageScaler.read(new ByteArrayInputStream(original));
+        if (decoded == null) {
+            return null;
+        }
+        byte[] encoded = imageScaler.copyJpegMetadata(original, imageScaler.write(decoded, JPEG, quality));
+        return encoded != null && encoded.length < original.length ? encoded : null;
+    }
+}
@@ -0,0 +1,234 @@
+package com.vitalsport.photos.service;
+
+import com.vitalsport.photos.builder.DirectoryPathBuilder;
+import com.vitalsport.photos.io.ImageHandler;
+import com.vitalsport.photos.model.TrashedAlbum;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.lang.String.format;
+
+/**
+ * Keeps deleted albums in a hidden trash directory of the user until their retention runs out. Deleting an album
+ * only renames its directory and its renditions into the trash, together with a manifest of the similarity hashes
+ * of its images, so it takes the same time however many images the album holds and can be undone by renaming it
+ * back. The trash id of an album is its deletion time followed by its name.
+ * <p>
+ * Expired albums are reclaimed in the background one file at a time, at a number of unlinks per second so that a
+ * large album doesn't flood the disk with metadata writes. Rather than sleeping between unlinks, which would hold up
+ * the other scheduled jobs sharing the scheduler thread, every run unlinks the files of one reclaim interval and
+ * stops. An album is first claimed by renaming it to a hidden id, which makes it disappear from the trash at once and
+ * lets the next run, or the first one after a restart, carry on where the last one stopped. A rate of zero reclaims
+ * everything that has expired in one run.
+ */
+@Slf4j
+@Service
+public class TrashService {
+
+    private static final char SEPARATOR = '~';
+    private static final String CLAIMED = ".";
+    private static final String MANIFEST = ".hashes";
+
+    private DirectoryPathBuilder directoryPathBuilder;
+    private ImageHandler imageHandler;
+    private long retention;
+    private int batchSize;
+
+    @Autowired
+    public TrashService(DirectoryPathBuilder directoryPathBuilder,
+                        ImageHandler imageHandler,
+                        @Value("${photos.trash.retention}") long retention,
+                        @Value("${photos.trash.reclaimRate}") double reclaimRate,
+                        @Value("${photos.trash.reclaimInterval}") long reclaimInterval) {
+        this.directoryPathBuilder = directoryPathBuilder;
+        this.imageHandler = imageHandler;
+        this.retention = retention;
+        this.batchSize = reclaimRate <= 0 ? Integer.MAX_VALUE
+                : (int) Math.max(1, Math.min(Integer.MAX_VALUE, reclaimRate * reclaimInterval / 1000));
+    }
+
+    /**
+     * Moves an existing album and its renditions to the trash, keeping the given similarity hashes of its images,
+     * and returns its trash id.
+     */
+    public synchronized String trash(String userId, String album, Map<String, Long> hashes) throws IOException {
+        long deleted = System.currentTimeMillis();
+        while (imageHandler.exists(directoryPathBuilder.getTrashedAlbumPath(userId, id(deleted, album)))) {
+            deleted++;
+        }
+        String trashId = id(deleted, album);
+        String trashedPath = directoryPathBuilder.getTrashedAlbumPath(userId, trashId);
+        imageHandler.move(directoryPathBuilder.getAlbumPath(userId, album), trashedPath);
+        imageHandler.upload(trashedPath + '/' + MANIFEST, manifest(hashes));
+        String renditionsPath = directoryPathBuilder.getAlbumRenditionsPath(userId, album);
+        if (imageHandler.exists(renditionsPath)) {
+            imageHandler.move(renditionsPath, directoryPathBuilder.getTrashedRenditionsPath(userId, trashId));
+        }
+        log.debug("Album: {} of user: {} has been moved to the trash as: {}", album, userId, trashId);
+        return trashId;
+    }
+
+    /**
+     * Returns the albums in the trash of the user, most recently deleted first.
+     */
+    public List<TrashedAlbum> list(String userId) throws IOException {
+        List<TrashedAlbum> albums = new ArrayList<>();
+        for (String trashId : imageHandler.list(directoryPathBuilder.getTrashPath(userId))) {
+            int separator = trashId.indexOf(SEPARATOR);
+            if (!trashId.startsWith(CLAIMED) && separator > 0) {
+                long deleted = Long.parseLong(trashId.substring(0, separator));
+                albums.add(new TrashedAlbum(trashId, trashId.substring(separator + 1), deleted, deleted + retention));
+            }
+        }
+        albums.sort(Comparator.comparingLong(TrashedAlbum::getDeleted).reversed());
+        return albums;
+    }
+
+    /**
+     * Returns the name of the album a trash id stands for.
+     */
+    public String getAlbum(String trashId) {
+        int separator = trashId.indexOf(SEPARATOR);
+        if (trashId.startsWith(CLAIMED) || separator <= 0 || trashId.indexOf('/') >= 0) {
+            throw new IllegalArgumentException(format("Invalid trash id: %s.", trashId));
+        }
+        return trashId.substring(separator + 1);
+    }
+
+    /**
+     * Moves an album back from the trash under its own name, which must be free, and returns the similarity hashes
+     * kept for its images.
+     */
+    public synchronized Map<String, Long> restore(String userId, String trashId) throws IOException {
+        String album = getAlbum(trashId);
+        String trashedPath = directoryPathBuilder.getTrashedAlbumPath(userId, trashId);
+        if (!imageHandler.exists(trashedPath)) {
+            throw new IllegalArgumentException(format("Album: %s wasn't found in the trash of user: %s.",
+                    trashId, userId));
+        }
+        Map<String, Long> hashes = readManifest(trashedPath + '/' + MANIFEST);
+        imageHandler.delete(trashedPath + '/' + MANIFEST);
+        imageHandler.move(trashedPath, directoryPathBuilder.getAlbumPath(userId, album));
+        String renditionsPath = directoryPathBuilder.getTrashedRenditionsPath(userId, trashId);
+        if (imageHandler.exists(renditionsPath)) {
+            imageHandler.move(renditionsPath, directoryPathBuilder.getAlbumRenditionsPath(userId, album));
+        }
+        log.debug("Album: {} of user: {} has been restored from the trash", album, userId);
+        return hashes;
+    }
+
+    @Scheduled(fixedDelayString = "${photos.trash.reclaimInterval}")
+    public void reclaimBatch() throws IOException {
+        reclaim();
+    }
+
+    /**
+     * Unlinks up to the files of one reclaim interval from expired albums and returns how many were unlinked.
+     */
+    public int reclaim() throws IOException {
+        long expired = System.currentTimeMillis() - retention;
+        int unlinked = 0;
+        for (String userId : directoryPathBuilder.getUserIds(imageHandler)) {
+            for (String trashId : imageHandler.list(directoryPathBuilder.getTrashPath(userId))) {
+                String claimed = trashId.startsWith(CLAIMED) ? trashId : claim(userId, trashId, expired);
+                if (claimed != null) {
+                    unlinked += reclaim(directoryPathBuilder.getTrashedRenditionsPath(userId, claimed),
+                            batchSize - unlinked);
+                    unlinked += reclaim(directoryPathBuilder.getTrashedAlbumPath(userId, claimed),
+                            batchSize - unlinked);
+                }
+                if (unlinked >= batchSize) {
+                    log.info("Reclaimed {} files from the trash, more are left", unlinked);
+                    return unlinked;
+                }
+            }
+        }
+        if (unlinked > 0) {
+            log.info("Reclaimed {} files from the trash", unlinked);
+        }
+        return unlinked;
+    }
+
+    /**
+     * Renames an expired album to a hidden id so that it can no longer be restored, returning null when it hasn't
+     * expired or has just been restored.
+     */
+    private synchronized String claim(String userId, String trashId, long expired) throws IOException {
+        int separator = trashId.indexOf(SEPARATOR);
+        String trashedPath = directoryPathBuilder.getTrashedAlbumPath(userId, trashId);
+        if (separator <= 0 || Long.parseLong(trashId.substring(0, separator)) >= expired
+                || !imageHandler.exists(trashedPath)) {
+            return null;
+        }
+        String claimed = CLAIMED + trashId;
+        String renditionsPath = directoryPathBuilder.getTrashedRenditionsPath(userId, trashId);
+        if (imageHandler.exists(renditionsPath)) {
+            imageHandler.move(renditionsPath, directoryPathBuilder.getTrashedRenditionsPath(userId, claimed));
+        }
+        imageHandler.move(trashedPath, directoryPathBuilder.getTrashedAlbumPath(userId, claimed));
+        log.debug("Reclaiming album: {} of user: {}", trashId, userId);
+        return claimed;
+    }
+
+    /**
+     * Unlinks the entries under the path depth first, then the path itself, stopping once the budget is spent.
+     * Returns how many were unlinked, which is nothing for a path that is already gone.
+     */
+    private int reclaim(String path, int budget) throws IOException {
+        int unlinked = 0;
+        for (String name : imageHandler.list(path)) {
+            if (unlinked >= budget) {
+                return unlinked;
+            }
+            unlinked += reclaim(path + '/' + name, budget - unlinked);
+        }
+        if (unlinked >= budget) {
+            return unlinked;
+        }
+        return imageHandler.delete(path) ? unlinked + 1 : unlinked;
+    }
+
+    private String id(long deleted, String album) {
+        return String.valueOf(deleted) + SEPARATOR + album;
+    }
+
+    private byte[] manifest(Map<String, Long> hashes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            output.writeInt(hashes.size());
+            for (Map.Entry<String, Long> hash : hashes.entrySet()) {
+                output.writeUTF(hash.getKey());
+                output.writeLong(hash.getValue());
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private Map<String, Long> readManifest(String path) throws IOException {
+        Map<String, Long> hashes = new LinkedHashMap<>();
+        try (InputStream stream = imageHandler.download(path).getResource().getInputStream();
+             DataInputStream input = new DataInputStream(stream)) {
+            for (int count = input.readInt(); count > 0; count--) {
+                hashes.put(input.readUTF(), input.readLong());
+            }
+        } catch (FileNotFoundException exception) {
+            log.warn("Album: {} has no manifest in the trash, its images will be hashed again", path);
+        }
+        return hashes;
+    }
+}
@@ -0,0 +1,379 @@
+package com.vitalsport.photos.service;
+
+import com.vitalsport.photos.model.UploadStatus;
+import com.vitalsport.photos.validator.Validator;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.lang.String.format;
+import static java.nio.file.Paths.get;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.SPARSE;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Resumable uploads: a session owns a sparse file that chunks are written into at their offsets, in any order
+ * and any number of times. The received ranges are tracked so that a client can ask what is missing after a
+ * dropped connection. Committing a complete session moves the file into the album.
+ * <p>
+ * A descriptor of the session and its received ranges is kept next to the file and rewritten after every chunk, so
+ * sessions survive a restart. A commit or an abort claims the session: it waits for no chunk, but is refused while
+ * one is being written, and chunks are refused once the session is claimed.
+ */
+@Slf4j
+@Service
+public class UploadSessionService {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String SESSION_SUFFIX = ".part";
+    private static final String DESCRIPTOR_SUFFIX = ".session";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+
+    private PhotoLoader photoService;
+    private Validator validator;
+    private QuotaService quotaService;
+    private Path sessionsPath;
+    private long maxSize;
+    private long timeToLive;
+
+    @Autowired
+    public UploadSessionService(PhotoLoader photoService,
+                                Validator validator,
+                                QuotaService quotaService,
+                                @Value("${photos.upload.sessions.path}") String sessionsPath,
+                                @Value("${photos.upload.sessions.maxSize}") long maxSize,
+                                @Value("${photos.upload.sessions.timeToLive}") long timeToLive) {
+        this.photoService = photoService;
+        this.validator = validator;
+        this.quotaService = quotaService;
+        this.sessionsPath = get(sessionsPath);
+        this.maxSize = maxSize;
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Restores the sessions whose descriptor and file are both left from before a restart.
+     */
+    @PostConstruct
+    public void open() throws IOException {
+        if (!Files.isDirectory(sessionsPath)) {
+            return;
+        }
+        try (DirectoryStream<Path> descriptors = Files.newDirectoryStream(sessionsPath, "*" + DESCRIPTOR_SUFFIX)) {
+            for (Path descriptor : descriptors) {
+                String id = descriptor.getFileName().toString().replace(DESCRIPTOR_SUFFIX, "");
+                Path file = sessionsPath.resolve(id + SESSION_SUFFIX);
+                if (Files.exists(file)) {
+                    sessions.put(id, UploadSession.read(id, file, descriptor));
+                } else {
+                    Files.delete(descriptor);
+                }
+            }
+        }
+        log.info("Restored {} upload sessions", sessions.size());
+    }
+
+    public UploadStatus initiate(String userId, String album, String fileName, String contentType, long length) {
+
+        validator.validate(StringUtils::isEmpty, userId, "userId is null or empty.");
+        validator.validate(StringUtils::isEmpty, fileName, "fileName is null or empty.");
+        validator.validate(type -> type == null || !type.startsWith("image"), contentType,
+                format("ContentType: %s is not supported.", contentType));
+        validator.validate(size -> size <= 0 || size > maxSize, length,
+                format("length should be between 1 and %d.", maxSize));
+        quotaService.acquireUpload(userId);
+        quotaService.checkStorage(userId, length, 0);
+
+        String id = UUID.randomUUID().toString();
+        try {
+            Files.createDirectories(sessionsPath);
+            Path file = sessionsPath.resolve(id + SESSION_SUFFIX);
+            Files.newByteChannel(file, CREATE_NEW, WRITE, SPARSE).close();
+            UploadSession session = new UploadSession(id, userId, album, fileName, length, file,
+                    System.currentTimeMillis());
+            session.save(descriptor(id));
+            sessions.put(id, session);
+            log.debug("Upload session: {} started for: {} of {} bytes", id, fileName, length);
+            return session.status();
+        } catch (IOException exception) {
+            throw new InternalError(exception);
+        }
+    }
+
+    /**
+     * Writes a chunk at the given offset. Whatever arrived before a failure is kept, made durable and reported as
+     * received.
+     */
+    public UploadStatus write(String userId, String id, long offset, InputStream input) {
+        UploadSession session = session(userId, id);
+        validator.validate(position -> position < 0 || position >= session.length, offset,
+                format("offset should be between 0 and %d.", session.length - 1));
+        validator.validate(s -> !s.startWrite(), session, format("Upload session: %s is being committed.", id));
+
+        long position = offset;
+        try (FileChannel channel = FileChannel.open(session.file, WRITE)) {
+            try {
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                byte[] bytes = buffer.array();
+                int read;
+                while ((read = input.read(bytes)) != -1) {
+                    validator.validate(end -> end > session.length, position + read,
+                            format("Chunk exceeds the upload length: %d.", session.length));
+                    buffer.clear().limit(read);
+                    while (buffer.hasRemaining()) {
+                        position += channel.write(buffer, position);
+                    }
+                }
+            } finally {
+                channel.force(false);
+            }
+        } catch (IOException exception) {
+            throw new InternalError(exception);
+        } finally {
+            session.endWrite(offset, position);
+            save(session);
+        }
+        return session.status();
+    }
+
+    public UploadStatus status(String userId, String id) {
+        return session(userId, id).status();
+    }
+
+    /**
+     * Stores the complete file as an image. A failed commit leaves the session for another attempt, unless the file
+     * has been moved into the album already.
+     */
+    public void commit(String userId, String id) {
+        UploadSession session = claim(userId, id);
+        boolean committed = false;
+        try {
+            validator.validate(s -> !s.isComplete(), session,
+                    format("Upload session: %s is missing bytes.", id));
+            try (FileChannel channel = FileChannel.open(session.file, WRITE)) {
+                channel.force(true);
+            } catch (IOException exception) {
+                throw new InternalError(exception);
+            }
+            photoService.uploadImage(session.userId, session.album, session.fileName, session.file);
+            committed = true;
+        } finally {
+            if (committed || !Files.exists(session.file)) {
+                remove(session);
+            } else {
+                session.release();
+            }
+        }
+        log.debug("Upload session: {} committed as: {}", id, session.fileName);
+    }
+
+    public void abort(String userId, String id) {
+        remove(claim(userId, id));
+    }
+
+    /**
+     * Removes sessions that have not received data within their time to live, and files no session owns, such as
+     * the leftovers of an interrupted initiation.
+     */
+    @Scheduled(fixedDelayString = "${photos.upload.sessions.sweepInterval}")
+    public void sweep() throws IOException {
+        long expired = System.currentTimeMillis() - timeToLive;
+        for (UploadSession session : sessions.values()) {
+            if (session.updated < expired && session.claim()) {
+                log.info("Removing stale upload session: {}", session.id);
+                remove(session);
+            }
+        }
+        if (Files.isDirectory(sessionsPath)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(sessionsPath)) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    String id = name.substring(0, name.indexOf('.') < 0 ? name.length() : name.indexOf('.'));
+                    if (!sessions.containsKey(id) && Files.getLastModifiedTime(file).toMillis() < expired) {
+                        Files.deleteIfExists(file);
+                    }
+                }
+            }
+        }
+    }
+
+    private UploadSession session(String userId, String id) {
+        UploadSession session = id == null ? null : sessions.get(id);
+        validator.validate(s -> s == null || !s.userId.equals(userId), session,
+                format("Upload session: %s wasn't found.", id));
+        return session;
+    }
+
+    private UploadSession claim(String userId, String id) {
+        UploadSession session = session(userId, id);
+        validator.validate(s -> !s.claim(), session,
+                format("Upload session: %s is receiving a chunk or being committed.", id));
+        return session;
+    }
+
+    private Path descriptor(String id) {
+        return sessionsPath.resolve(id + DESCRIPTOR_SUFFIX);
+    }
+
+    /**
+     * Rewrites the descriptor of the session. Failing that only loses the session on a restart, so it is logged.
+     */
+    private void save(UploadSession session) {
+        try {
+            session.save(descriptor(session.id));
+        } catch (IOException exception) {
+            log.warn("Upload session descriptor: {} can't be written", descriptor(session.id), exception);
+        }
+    }
+
+    private void remove(UploadSession session) {
+        sessions.remove(session.id);
+        try {
+            Files.deleteIfExists(descriptor(session.id));
+            Files.deleteIfExists(session.file);
+        } catch (IOException exception) {
+            log.warn("Upload session file: {} can't be deleted", session.file, exception);
+        }
+    }
+
+    private static class UploadSession {
+        private final String id;
+        private final String userId;
+        private final String album;
+        private final String fileName;
+        private final long length;
+        private final Path file;
+        private final NavigableMap<Long, Long> received = new TreeMap<>();
+        private volatile long updated;
+        private int writing;
+        private boolean claimed;
+
+        UploadSession(String id, String userId, String album, String fileName, long length, Path file,
+                      long updated) {
+            this.id = id;
+            this.userId = userId;
+            this.album = album;
+            this.fileName = fileName;
+            this.length = length;
+            this.file = file;
+            this.updated = updated;
+        }
+
+        static UploadSession read(String id, Path file, Path descriptor) throws IOException {
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(
+                    Files.newInputStream(descriptor)))) {
+                String userId = input.readUTF();
+                String album = input.readUTF();
+                UploadSession session = new UploadSession(id, userId, album.isEmpty() ? null : album,
+                        input.readUTF(), input.readLong(), file, Files.getLastModifiedTime(descriptor).toMillis());
+                for (int ranges = input.readInt(); ranges > 0; ranges--) {
+                    session.received.put(input.readLong(), input.readLong());
+                }
+                return session;
+            }
+        }
+
+        /**
+         * Writes the descriptor to a temporary file first and moves it into place, so a crash leaves either version.
+         */
+        synchronized void save(Path descriptor) throws IOException {
+            Path temporary = descriptor.resolveSibling(descriptor.getFileName() + TEMPORARY_SUFFIX);
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(temporary)))) {
+                output.writeUTF(userId);
+                output.writeUTF(album == null ? "" : album);
+                output.writeUTF(fileName);
+                output.writeLong(length);
+                output.writeInt(received.size());
+                for (Map.Entry<Long, Long> range : received.entrySet()) {
+                    output.writeLong(range.getKey());
+                    output.writeLong(range.getValue());
+                }
+            }
+            Files.move(temporary, descriptor, REPLACE_EXISTING, ATOMIC_MOVE);
+        }
+
+        synchronized boolean startWrite() {
+            if (claimed) {
+                return false;
+            }
+            writing++;
+            return true;
+        }
+
+        /**
+         * Adds [start, end) to the received ranges, merging it with the ranges it touches.
+         */
+        synchronized void endWrite(long start, long end) {
+            writing--;
+            updated = System.currentTimeMillis();
+            if (end <= start) {
+                return;
+            }
+            Map.Entry<Long, Long> before = received.floorEntry(start);
+            if (before != null && before.getValue() >= start) {
+                start = before.getKey();
+                end = Math.max(end, before.getValue());
+            }
+            Map.Entry<Long, Long> next;
+            while ((next = received.ceilingEntry(start)) != null && next.getKey() <= end) {
+                end = Math.max(end, next.getValue());
+                received.remove(next.getKey());
+            }
+            received.put(start, end);
+        }
+
+        synchronized boolean claim() {
+            if (claimed || writing > 0) {
+                return false;
+            }
+            claimed = true;
+            return true;
+        }
+
+        synchronized void release() {
+            claimed = false;
+        }
+
+        synchronized boolean isComplete() {
+            Map.Entry<Long, Long> first = received.firstEntry();
+            return first != null && first.getKey() == 0 && first.getValue() == length;
+        }
+
+        synchronized UploadStatus status() {
+            List<String> ranges = new ArrayList<>();
+            for (Map.Entry<Long, Long> range : received.entrySet()) {
+                ranges.add(range.getKey() + "-" + (range.getValue() - 1));
+            }
+            return new UploadStatus(id, fileName, length, ranges, isComplete());
+        }
+    }
+}
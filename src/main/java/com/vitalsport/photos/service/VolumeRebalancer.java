@@ -0,0 +1,125 @@
+package com.vitalsport.photos.service;
+
+import com.vitalsport.photos.builder.DirectoryPathBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.COPY_ATTRIBUTES;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Moves user directories to the volume owning them after volumes were added or removed, while the service keeps
+ * running. Until a user is moved its paths resolve to the previous volume, so reads and writes keep working there.
+ * Between file systems a user is copied into a hidden staging directory and renamed into place, which switches
+ * readers over at once. Each user is moved under its {@link AlbumLocks#user fence}, so no request writes any of its
+ * albums, or its trash, until the move is over and its paths resolve to the new volume. Downloads don't wait: they
+ * read the previous volume until the switch.
+ */
+@Slf4j
+@Service
+public class VolumeRebalancer {
+
+    private static final String STAGING_PREFIX = ".rebalance-";
+    private static final String TEMPORARY_PREFIX = ".upload-";
+
+    private DirectoryPathBuilder directoryPathBuilder;
+    private AlbumLocks albumLocks;
+    private int batchSize;
+
+    @Autowired
+    public VolumeRebalancer(DirectoryPathBuilder directoryPathBuilder,
+                            AlbumLocks albumLocks,
+                            @Value("${photos.volumes.rebalanceBatch}") int batchSize) {
+        this.directoryPathBuilder = directoryPathBuilder;
+        this.albumLocks = albumLocks;
+        this.batchSize = batchSize;
+    }
+
+    @Scheduled(fixedDelayString = "${photos.volumes.rebalanceInterval}")
+    public void rebalanceBatch() throws IOException {
+        rebalance();
+    }
+
+    /**
+     * Moves up to one batch of user directories and returns how many were moved.
+     */
+    public synchronized int rebalance() throws IOException {
+        if (!directoryPathBuilder.isDistributed()) {
+            return 0;
+        }
+        Map<Path, Path> misplaced = directoryPathBuilder.getMisplacedUserPaths();
+        int moved = 0;
+        for (Map.Entry<Path, Path> user : misplaced.entrySet()) {
+            if (moved == batchSize) {
+                break;
+            }
+            Lock fence = albumLocks.user(user.getKey().getFileName().toString());
+            fence.lock();
+            try {
+                move(user.getKey(), user.getValue());
+            } finally {
+                fence.unlock();
+            }
+            moved++;
+        }
+        if (moved > 0) {
+            log.info("Moved {} user directories to their volumes, {} left", moved, misplaced.size() - moved);
+        }
+        directoryPathBuilder.setVolumesBalanced(misplaced.isEmpty());
+        return moved;
+    }
+
+    private void move(Path source, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        if (!Files.exists(target)) {
+            try {
+                Files.move(source, target, ATOMIC_MOVE);
+                return;
+            } catch (AtomicMoveNotSupportedException exception) {
+                Path staging = target.resolveSibling(STAGING_PREFIX + target.getFileName());
+                FileUtils.deleteDirectory(staging.toFile());
+                copy(source, staging);
+                Files.move(staging, target, ATOMIC_MOVE);
+            }
+        }
+        copy(source, target);
+        FileUtils.deleteDirectory(source.toFile());
+    }
+
+    /**
+     * Copies the files missing in the target or newer than their copies there, skipping uploads in progress.
+     * Links to images on the cold volume are copied as links.
+     */
+    private void copy(Path source, Path target) throws IOException {
+        Files.createDirectories(target);
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(source)) {
+            for (Path child : children) {
+                if (child.getFileName().toString().startsWith(TEMPORARY_PREFIX)) {
+                    continue;
+                }
+                Path destination = target.resolve(child.getFileName().toString());
+                if (Files.isDirectory(child, NOFOLLOW_LINKS)) {
+                    copy(child, destination);
+                } else if (!Files.exists(destination, NOFOLLOW_LINKS)
+                        || Files.getLastModifiedTime(child, NOFOLLOW_LINKS)
+                        .compareTo(Files.getLastModifiedTime(destination, NOFOLLOW_LINKS)) > 0) {
+                    Files.copy(child, destination, REPLACE_EXISTING, COPY_ATTRIBUTES, NOFOLLOW_LINKS);
+                }
+            }
+        }
+    }
+}
@@ -1,20 +1,33 @@
 package com.vitalsport.photos.web;
 
+import com.vitalsport.photos.service.QuotaExceededException;
+import com.vitalsport.photos.service.RateLimitExceededException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.metrics.CounterService;
 import org.springframework.hateoas.VndErrors;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.ControllerAdvice;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.ResponseStatus;
 
 import java.util.Optional;
+import java.util.concurrent.RejectedExecutionException;
 
 import static org.springframework.http.HttpStatus.BAD_REQUEST;
 import static org.springframework.http.HttpStatus.INTERNAL_SERVER_ERROR;
+import static org.springframework.http.HttpStatus.PAYLOAD_TOO_LARGE;
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
+import static org.springframework.http.HttpStatus.TOO_MANY_REQUESTS;
 
 @ControllerAdvice
 @ResponseBody
 public class ExceptionControllerAdvice {
 
+    @Autowired(required = false)
+    private CounterService counterService;
+
     @ResponseStatus(BAD_REQUEST)
     @ExceptionHandler(IllegalArgumentException.class)
     public VndErrors.VndError illegalArgumentExceptionHandler(IllegalArgumentException exception) {
@@ -27,7 +40,29 @@ public class ExceptionControllerAdvice {
         return prepareVndError(exception);
     }
 
+    @ResponseStatus(SERVICE_UNAVAILABLE)
+    @ExceptionHandler(RejectedExecutionException.class)
+    public VndErrors.VndError rejectedExecutionHandler(RejectedExecutionException exception) {
+        return prepareVndError(exception);
+    }
+
+    @ResponseStatus(PAYLOAD_TOO_LARGE)
+    @ExceptionHandler(QuotaExceededException.class)
+    public VndErrors.VndError quotaExceededHandler(QuotaExceededException exception) {
+        return prepareVndError(exception);
+    }
+
+    @ExceptionHandler(RateLimitExceededException.class)
+    public ResponseEntity<VndErrors.VndError> rateLimitExceededHandler(RateLimitExceededException exception) {
+        return ResponseEntity.status(TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(exception.getRetryAfter()))
+                .body(prepareVndError(exception));
+    }
+
     private VndErrors.VndError prepareVndError(Throwable exception) {
+        if (counterService != null) {
+            counterService.increment("photos.errors." + exception.getClass().getSimpleName());
+        }
         String message = Optional.ofNullable(exception.getCause()).map(Throwable::getMessage).orElse(exception.getClass().getSimpleName());
         return new VndErrors.VndError(exception.getLocalizedMessage(), message);
     }
@@ -0,0 +1,89 @@
+package com.vitalsport.photos.web;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts requests that are being processed. Asynchronous requests stay in flight until their response completes,
+ * not just until the container thread is released. The peak is kept per window of photos.requests.peakWindow
+ * milliseconds, so that reading the metrics doesn't change it.
+ */
+@Component
+public class InFlightRequestsFilter extends OncePerRequestFilter implements PublicMetrics {
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger peak = new AtomicInteger();
+    private volatile int previousPeak;
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        int current = inFlight.incrementAndGet();
+        peak.accumulateAndGet(current, Math::max);
+        boolean async = false;
+        try {
+            chain.doFilter(request, response);
+            if (request.isAsyncStarted()) {
+                request.getAsyncContext().addListener(new CompletionListener());
+                async = true;
+            }
+        } finally {
+            if (!async) {
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Starts a new peak window with the requests in flight now.
+     */
+    @Scheduled(fixedRateString = "${photos.requests.peakWindow}")
+    public void rollPeak() {
+        previousPeak = peak.getAndSet(inFlight.get());
+    }
+
+    /**
+     * Reports the requests in flight and the peak over the current and the previous window.
+     */
+    @Override
+    public Collection<Metric<?>> metrics() {
+        return Arrays.asList(
+                new Metric<>("photos.requests.inflight", inFlight.get()),
+                new Metric<>("photos.requests.inflight.peak", Math.max(previousPeak, peak.get())));
+    }
+
+    private class CompletionListener implements AsyncListener {
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            inFlight.decrementAndGet();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            event.getAsyncContext().addListener(this);
+        }
+    }
+}
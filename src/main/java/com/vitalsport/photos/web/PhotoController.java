@@ -1,77 +1,211 @@
 package com.vitalsport.photos.web;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.vitalsport.photos.builder.ImageResponseBuilder;
+import com.vitalsport.photos.io.ZipArchiveWriter;
+import com.vitalsport.photos.model.CatalogQuery;
 import com.vitalsport.photos.model.ImageHolder;
-import com.vitalsport.photos.service.PhotoService;
+import com.vitalsport.photos.model.ImageMetadata;
+import com.vitalsport.photos.model.PhotoQuery;
+import com.vitalsport.photos.model.PhotoSort;
+import com.vitalsport.photos.model.UploadStatus;
+import com.vitalsport.photos.service.BatchUploadService;
+import com.vitalsport.photos.service.PhotoLoader;
+import com.vitalsport.photos.service.UploadSessionService;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.io.Resource;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
+import org.springframework.util.StreamUtils;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
+import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+import java.util.zip.ZipOutputStream;
 
 import static org.springframework.http.ResponseEntity.*;
 import static org.springframework.web.bind.annotation.RequestMethod.DELETE;
 import static org.springframework.web.bind.annotation.RequestMethod.GET;
 import static org.springframework.web.bind.annotation.RequestMethod.POST;
+import static org.springframework.web.bind.annotation.RequestMethod.PUT;
 
 @Slf4j
 @Controller
 @CrossOrigin(origins = "*")
 public class PhotoController {
 
+    private static final MediaType APPLICATION_ZIP = MediaType.valueOf("application/zip");
+
+    private static final int DEFAULT_PAGE_SIZE = 100;
+
     @Autowired
-    private PhotoService photoService;
+    private PhotoLoader photoService;
+
+    @Autowired
+    private BatchUploadService batchUploadService;
+
+    @Autowired
+    private UploadSessionService uploadSessionService;
+
+    @Autowired
+    private ImageResponseBuilder imageResponseBuilder;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private ZipArchiveWriter zipArchiveWriter;
+
+    @Autowired
+    @Qualifier("ioExecutor")
+    private Executor ioExecutor;
 
     @RequestMapping(value = "/{userId}/upload", method = POST)
-    public ResponseEntity<?> uploadImage(@PathVariable String userId,
-                                              @RequestParam String album,
-                                              @RequestParam(value = "file") MultipartFile file) {
+    public CompletableFuture<ResponseEntity<?>> uploadImage(@PathVariable String userId,
+                                                            @RequestParam String album,
+                                                            @RequestParam(value = "file") MultipartFile file) {
         log.debug("User: {} uploading photo: {}", userId, file.getOriginalFilename());
 
-        photoService.uploadImage(userId, album, file.getOriginalFilename(), file);
+        return async(() -> {
+            photoService.uploadImage(userId, album, file.getOriginalFilename(), file);
+            return noContent().build();
+        });
+    }
+
+    @RequestMapping(value = "/{userId}/upload/batch", method = POST)
+    public CompletableFuture<ResponseEntity<?>> uploadImages(@PathVariable String userId,
+                                                             @RequestParam String album,
+                                                             @RequestParam(value = "files") List<MultipartFile> files) {
+        log.debug("User: {} uploading {} photos", userId, files.size());
+
+        return async(() -> ok(batchUploadService.uploadImages(userId, album, files)));
+    }
+
+    @RequestMapping(value = "/{userId}/uploads", method = POST)
+    public ResponseEntity<UploadStatus> initiateUpload(@PathVariable String userId,
+                                                       @RequestParam String album,
+                                                       @RequestParam String fileName,
+                                                       @RequestParam String contentType,
+                                                       @RequestParam long length) {
+        log.debug("User: {} starting resumable upload of: {}", userId, fileName);
+
+        UploadStatus status = uploadSessionService.initiate(userId, album, fileName, contentType, length);
+        URI location = ServletUriComponentsBuilder.fromCurrentRequestUri().path("/{id}").buildAndExpand(status.getId()).toUri();
+        return created(location).body(status);
+    }
+
+    @RequestMapping(value = "/{userId}/uploads/{id}", method = PUT)
+    public CompletableFuture<ResponseEntity<?>> uploadChunk(@PathVariable String userId,
+                                                            @PathVariable String id,
+                                                            @RequestParam long offset,
+                                                            HttpServletRequest request) {
+        log.debug("User: {} uploading chunk of session: {} at: {}", userId, id, offset);
+
+        return async(() -> {
+            try (InputStream input = request.getInputStream()) {
+                return ok(uploadSessionService.write(userId, id, offset, input));
+            } catch (IOException exception) {
+                throw new InternalError(exception);
+            }
+        });
+    }
+
+    @RequestMapping(value = "/{userId}/uploads/{id}", method = GET)
+    public ResponseEntity<UploadStatus> getUploadStatus(@PathVariable String userId, @PathVariable String id) {
+        return ok(uploadSessionService.status(userId, id));
+    }
+
+    @RequestMapping(value = "/{userId}/uploads/{id}/commit", method = POST)
+    public CompletableFuture<ResponseEntity<?>> commitUpload(@PathVariable String userId, @PathVariable String id) {
+        log.debug("User: {} committing upload session: {}", userId, id);
+
+        return async(() -> {
+            uploadSessionService.commit(userId, id);
+            return noContent().build();
+        });
+    }
+
+    @RequestMapping(value = "/{userId}/uploads/{id}", method = DELETE)
+    public ResponseEntity<?> abortUpload(@PathVariable String userId, @PathVariable String id) {
+        uploadSessionService.abort(userId, id);
         return noContent().build();
     }
 
     @RequestMapping(value = "/{userId}/album", method = POST)
-    public ResponseEntity<?> createAlbum(@PathVariable String userId,
-                                              @RequestParam String album) {
+    public CompletableFuture<ResponseEntity<?>> createAlbum(@PathVariable String userId,
+                                                            @RequestParam String album) {
         log.debug("User: {} creating an album: {}", userId, album);
 
-        photoService.createAlbum(userId, album);
-
-        return noContent().build();
+        return async(() -> {
+            photoService.createAlbum(userId, album);
+            return noContent().build();
+        });
     }
 
     @RequestMapping(value = "/{userId}/image", method = DELETE)
-    public ResponseEntity<?> deleteImage(@PathVariable String userId,
-                                              @RequestParam String album,
-                                              @RequestParam String image) {
+    public CompletableFuture<ResponseEntity<?>> deleteImage(@PathVariable String userId,
+                                                            @RequestParam String album,
+                                                            @RequestParam String image) {
         log.debug("User: {} deleting an image: {} from album: {}", userId, image, album);
 
-        photoService.deleteImage(userId, album, image);
-
-        return noContent().build();
+        return async(() -> {
+            photoService.deleteImage(userId, album, image);
+            return noContent().build();
+        });
     }
 
     @RequestMapping(value = "/{userId}/album", method = DELETE)
-    public ResponseEntity<?> deleteAlbum(@PathVariable String userId,
-                                              @RequestParam String album) {
+    public CompletableFuture<ResponseEntity<?>> deleteAlbum(@PathVariable String userId,
+                                                            @RequestParam String album) {
         log.debug("User: {} deleting an album: {}", userId, album);
 
-        //TODO: provide a possibility to keep images
-        photoService.deleteAlbum(userId, album);
+        return async(() -> {
+            photoService.deleteAlbum(userId, album);
+            return noContent().build();
+        });
+    }
 
-        return noContent().build();
+    @RequestMapping(value = "/{userId}/trash", method = GET)
+    public ResponseEntity<?> getTrash(@PathVariable String userId) {
+        log.debug("Retrieving the trash of user: {}", userId);
+
+        return ok(photoService.getTrash(userId));
+    }
+
+    @RequestMapping(value = "/{userId}/trash/restore", method = POST)
+    public CompletableFuture<ResponseEntity<?>> restoreAlbum(@PathVariable String userId,
+                                                             @RequestParam String id) {
+        log.debug("User: {} restoring an album: {} from the trash", userId, id);
+
+        return async(() -> {
+            photoService.restoreAlbum(userId, id);
+            return noContent().build();
+        });
     }
 
-    //TODO: create meta-data server for clustering
     @RequestMapping(value = "/{userId}/albums", method = GET)
     public ResponseEntity<?> getUserAlbums(@PathVariable String userId) {
         log.debug("Retrieving info about albums for user: {}", userId);
@@ -79,22 +213,166 @@ public class PhotoController {
         return ok(photoService.getUserAlbums(userId));
     }
 
+    @RequestMapping(value = "/{userId}/catalog", method = GET)
+    public ResponseEntity<?> findImages(@PathVariable String userId,
+                                        @RequestParam(required = false) String album,
+                                        @RequestParam(required = false) Long from,
+                                        @RequestParam(required = false) Long to,
+                                        @RequestParam(required = false) Integer minWidth,
+                                        @RequestParam(required = false) Integer maxWidth,
+                                        @RequestParam(required = false) Integer minHeight,
+                                        @RequestParam(required = false) Integer maxHeight,
+                                        @RequestParam(required = false) String camera,
+                                        @RequestParam(required = false) String after,
+                                        @RequestParam(defaultValue = "100") int limit) {
+        log.debug("Searching the catalog of user: {}", userId);
+
+        return ok(photoService.findPhotos(userId, new CatalogQuery(album, from, to, minWidth, maxWidth,
+                minHeight, maxHeight, camera, after, limit)));
+    }
+
+    @RequestMapping(value = "/{userId}/similar", method = GET)
+    public ResponseEntity<?> getSimilarImages(@PathVariable String userId,
+                                              @RequestParam String album,
+                                              @RequestParam String image,
+                                              @RequestParam(defaultValue = "10") int distance) {
+        log.debug("Retrieving images similar to: {} for user: {}, album: {}", image, userId, album);
+
+        return ok(photoService.getSimilarPhotos(userId, album, image, distance));
+    }
+
+    /**
+     * Lists the names of the album's images; once any paging parameter is given, streams one page of their
+     * metadata with the cursor of the next page instead.
+     */
     @RequestMapping(value = "/{userId}/{album}", method = GET)
-    public ResponseEntity<?> getAlbumsImageList(@PathVariable String userId, @PathVariable String album) {
+    public ResponseEntity<StreamingResponseBody> getAlbumsImageList(@PathVariable String userId,
+                                                                    @PathVariable String album,
+                                                                    @RequestParam(required = false) Integer limit,
+                                                                    @RequestParam(required = false) String after,
+                                                                    @RequestParam(required = false) String sort,
+                                                                    @RequestParam(required = false) Boolean desc,
+                                                                    @RequestParam(required = false) String mimeType) {
         log.debug("Retrieving info about photo for user: {}, album: {}", userId, album);
 
-        return ok(photoService.getUserPhotos(userId, album));
+        if (limit == null && after == null && sort == null && desc == null && mimeType == null) {
+            Collection<String> names = photoService.getUserPhotos(userId, album);
+            return ok().contentType(MediaType.APPLICATION_JSON)
+                    .body((StreamingResponseBody) output -> writePhotoNames(output, names));
+        }
+
+        PhotoQuery query = new PhotoQuery(sort == null ? PhotoSort.NAME : PhotoSort.valueOf(sort.toUpperCase(Locale.ROOT)),
+                Boolean.TRUE.equals(desc), after, mimeType, limit == null ? DEFAULT_PAGE_SIZE : limit);
+        Iterator<ImageMetadata> photos = photoService.getUserPhotos(userId, album, query).iterator();
+
+        return ok().contentType(MediaType.APPLICATION_JSON)
+                .body((StreamingResponseBody) output -> writePhotoPage(output, photos, query));
     }
 
-    @RequestMapping(value = "/{userId}/image", method = GET)
-    public ResponseEntity<?> getImage(@PathVariable String userId,
-                                      @RequestParam String album, @RequestParam String image) throws IOException {
-        log.debug("Retrieving image: {} for user: {}, album: {}", image, userId, album);
+    @RequestMapping(value = "/{userId}/{album}/archive", method = GET)
+    public ResponseEntity<StreamingResponseBody> getAlbumArchive(@PathVariable String userId,
+                                                                 @PathVariable String album,
+                                                                 @RequestParam(value = "image", required = false)
+                                                                 List<String> images) {
+        log.debug("Archiving album: {} for user: {}", album, userId);
+
+        Collection<String> archived = photoService.getArchiveImages(userId, album, images);
 
-        ImageHolder imageHolder = photoService.downloadImage(userId, album, image);
         HttpHeaders httpHeaders = new HttpHeaders();
-        httpHeaders.setContentType(imageHolder.getMediaType());
+        httpHeaders.setContentType(APPLICATION_ZIP);
+        httpHeaders.set(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + album.replace("\"", "") + ".zip\"");
+        return new ResponseEntity<>(output -> writeArchive(output, userId, album, archived), httpHeaders, HttpStatus.OK);
+    }
+
+    @RequestMapping(value = "/{userId}/image", method = GET)
+    public CompletableFuture<ResponseEntity<StreamingResponseBody>> getImage(@PathVariable String userId,
+                                                                             @RequestParam String album,
+                                                                             @RequestParam String image,
+                                                                             @RequestParam(required = false) Integer size,
+                                                                             @RequestHeader HttpHeaders requestHeaders) {
+        log.debug("Retrieving image: {} for user: {}, album: {}, size: {}", image, userId, album, size);
+
+        return async(() -> {
+            ImageHolder imageHolder = photoService.downloadImage(userId, album, image, size,
+                    requestHeaders.getAccept());
+            return streaming(imageResponseBuilder.build(imageHolder, requestHeaders));
+        });
+    }
+
+    /**
+     * Runs the handler on the I/O executor. Failures complete the future with the original exception
+     * so that {@link ExceptionControllerAdvice} can map it.
+     */
+    private <T> CompletableFuture<T> async(Supplier<T> handler) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        ioExecutor.execute(() -> {
+            try {
+                result.complete(handler.get());
+            } catch (RuntimeException | Error exception) {
+                result.completeExceptionally(exception);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Streams the resource body from the I/O executor as well. Bodiless responses get an empty body
+     * so that their headers are still written.
+     */
+    private ResponseEntity<StreamingResponseBody> streaming(ResponseEntity<?> response) {
+        Resource resource = (Resource) response.getBody();
+        StreamingResponseBody body = output -> {
+            if (resource != null) {
+                try (InputStream input = resource.getInputStream()) {
+                    StreamUtils.copy(input, output);
+                }
+            }
+        };
+        return new ResponseEntity<>(body, response.getHeaders(), response.getStatusCode());
+    }
+
+    private void writeArchive(OutputStream output, String userId, String album, Collection<String> images)
+            throws IOException {
+        ZipOutputStream zip = new ZipOutputStream(output);
+        for (String image : images) {
+            ImageHolder imageHolder;
+            try {
+                imageHolder = photoService.downloadImage(userId, album, image);
+            } catch (IllegalArgumentException exception) {
+                log.debug("Image: {} disappeared while archiving album: {}", image, album);
+                continue;
+            }
+            zipArchiveWriter.write(zip, image, imageHolder);
+        }
+        zip.finish();
+    }
+
+    private void writePhotoNames(OutputStream output, Collection<String> names) throws IOException {
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(output)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.writeStartArray();
+            for (String name : names) {
+                generator.writeString(name);
+            }
+            generator.writeEndArray();
+        }
+    }
 
-        return new ResponseEntity<>(imageHolder.getData(), httpHeaders, HttpStatus.OK);
+    private void writePhotoPage(OutputStream output, Iterator<ImageMetadata> photos, PhotoQuery query)
+            throws IOException {
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(output)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.writeStartObject();
+            generator.writeArrayFieldStart("photos");
+            ImageMetadata last = null;
+            for (int count = 0; count < query.getLimit() && photos.hasNext(); count++) {
+                last = photos.next();
+                generator.writeObject(last);
+            }
+            generator.writeEndArray();
+            generator.writeStringField("next", last != null && photos.hasNext()
+                    ? query.getSort().toCursor(last) : null);
+            generator.writeEndObject();
+        }
     }
 }
@@ -0,0 +1,44 @@
+package com.vitalsport.photos.builder;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class VolumeRingTest {
+
+    private static final int users = 10000;
+
+    @Test
+    public void usersSpreadEvenlyOverVolumes() {
+        VolumeRing volumeRing = new VolumeRing(asList("a", "b/", "c"), 128);
+        Map<String, Integer> owned = new HashMap<>();
+        for (int user = 0; user < users; user++) {
+            owned.merge(volumeRing.getOwner("user" + user), 1, Integer::sum);
+        }
+
+        assertThat(owned.keySet()).containsOnly("a/", "b/", "c/");
+        for (int count : owned.values()) {
+            assertThat(count).isBetween(users / 4, users * 5 / 12);
+        }
+    }
+
+    @Test
+    public void addedVolumeOnlyTakesOverItsShare() {
+        VolumeRing before = new VolumeRing(asList("a", "b", "c"), 128);
+        VolumeRing after = new VolumeRing(asList("a", "b", "c", "d"), 128);
+        int moved = 0;
+        for (int user = 0; user < users; user++) {
+            String owner = after.getOwner("user" + user);
+            if (!owner.equals(before.getOwner("user" + user))) {
+                assertThat(owner).isEqualTo("d/");
+                moved++;
+            }
+        }
+
+        assertThat(moved).isBetween(users / 6, users / 3);
+    }
+}
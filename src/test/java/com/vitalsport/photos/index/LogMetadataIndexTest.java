@@ -0,0 +1,161 @@
+package com.vitalsport.photos.index;
+
+import com.vitalsport.photos.builder.DirectoryPathBuilder;
+import com.vitalsport.photos.io.BaseImageHandler;
+import com.vitalsport.photos.model.CatalogPage;
+import com.vitalsport.photos.model.CatalogQuery;
+import com.vitalsport.photos.model.ImageMetadata;
+import com.vitalsport.photos.model.PhotoSort;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LogMetadataIndexTest {
+
+    private static final String userId = "userId";
+    private static final String album = "album";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private String photosPath;
+    private String logPath;
+    private DirectoryPathBuilder directoryPathBuilder;
+    private LogMetadataIndex metadataIndex;
+
+    @Before
+    public void setUp() throws IOException {
+        photosPath = temporaryFolder.newFolder("photos").getPath() + "/";
+        logPath = new File(temporaryFolder.getRoot(), "index/metadata.log").getPath();
+        directoryPathBuilder = new DirectoryPathBuilder(photosPath, "all/",
+                temporaryFolder.newFolder("renditions").getPath() + "/");
+        metadataIndex = open();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        metadataIndex.close();
+    }
+
+    @Test
+    public void replaysChangesAfterReopening() throws IOException {
+        metadataIndex.putImage(userId, album, metadata("first.png"));
+        metadataIndex.putImage(userId, album, metadata("second.png"));
+        metadataIndex.removeImage(userId, album, "first.png");
+        metadataIndex.putAlbum(userId, "empty");
+        metadataIndex.putAlbum(userId, "removed");
+        metadataIndex.removeAlbum(userId, "removed");
+        metadataIndex.close();
+
+        metadataIndex = open();
+
+        assertThat(metadataIndex.getAlbums(userId)).containsExactly(album, "empty");
+        assertThat(metadataIndex.getImages(userId, album)).containsExactly(metadata("second.png"));
+    }
+
+    @Test
+    public void rebuildsFromDiskWithoutLog() throws IOException {
+        metadataIndex.close();
+        Files.delete(new File(logPath).toPath());
+        File albumDirectory = new File(directoryPathBuilder.getAlbumPath(userId, album));
+        albumDirectory.mkdirs();
+        Files.write(new File(albumDirectory, "image.png").toPath(), new byte[]{1, 2, 3});
+        Files.write(new File(albumDirectory, ".upload-1.tmp").toPath(), new byte[]{1});
+
+        metadataIndex = open();
+
+        assertThat(metadataIndex.getAlbums(userId)).containsExactly(album);
+        ImageMetadata image = metadataIndex.getImage(userId, album, "image.png");
+        assertThat(image.getSize()).isEqualTo(3);
+        assertThat(image.getMimeType()).isEqualTo("image/png");
+        assertThat(metadataIndex.getImages(userId, album)).hasSize(1);
+    }
+
+    @Test
+    public void listsImagesInRequestedOrderAfterCursor() {
+        metadataIndex.putImage(userId, album, new ImageMetadata("a.png", 30, "image/png", 4, 3, 1L, 2L));
+        metadataIndex.putImage(userId, album, new ImageMetadata("b.png", 10, "image/png", 4, 3, 1L, 2L));
+        metadataIndex.putImage(userId, album, new ImageMetadata("c.png", 20, "image/png", 4, 3, 1L, 2L));
+        metadataIndex.putImage(userId, album, new ImageMetadata("b.png", 40, "image/png", 4, 3, 1L, 2L));
+
+        ImageMetadata after = PhotoSort.SIZE.fromCursor(
+                PhotoSort.SIZE.toCursor(metadataIndex.getImage(userId, album, "b.png")));
+
+        assertThat(metadataIndex.getImages(userId, album, PhotoSort.SIZE, true, after).collect(toList()))
+                .extracting("name").containsExactly("a.png", "c.png");
+        assertThat(metadataIndex.getImages(userId, album, PhotoSort.NAME, false, null).collect(toList()))
+                .extracting("name").containsExactly("a.png", "b.png", "c.png");
+    }
+
+    @Test
+    public void findsImagesByCaptureTimeAndDimensionsAcrossPages() throws IOException {
+        metadataIndex.putImage(userId, album, new ImageMetadata("a.jpg", 10, "image/jpeg", 4000, 3000, 1L, 2L,
+                300L, 1, "Canon EOS 5D"));
+        metadataIndex.putImage(userId, album, new ImageMetadata("b.jpg", 10, "image/jpeg", 4000, 3000, 1L, 2L,
+                100L, 6, "Canon EOS 5D"));
+        metadataIndex.putImage(userId, "other", new ImageMetadata("c.jpg", 10, "image/jpeg", 4000, 3000, 1L, 2L,
+                200L, 1, null));
+        metadataIndex.putImage(userId, album, new ImageMetadata("small.jpg", 10, "image/jpeg", 40, 30, 1L, 2L,
+                150L, 1, "Canon EOS 5D"));
+        metadataIndex.putImage(userId, album, new ImageMetadata("late.png", 10, "image/png", 4000, 3000, 1L, 900L));
+        metadataIndex.close();
+        metadataIndex = open();
+
+        CatalogPage first = metadataIndex.findImages(userId, query(null, 1000, null, null));
+        CatalogPage second = metadataIndex.findImages(userId, query(null, 1000, null, first.getNext()));
+
+        assertThat(first.getPhotos()).extracting("name").containsExactly("b.jpg", "c.jpg");
+        assertThat(first.getPhotos().get(0).getOrientation()).isEqualTo(6);
+        assertThat(second.getPhotos()).extracting("name").containsExactly("a.jpg");
+        assertThat(second.getNext()).isNull();
+
+        metadataIndex.removeImage(userId, album, "b.jpg");
+        assertThat(metadataIndex.findImages(userId, query(album, null, "Canon EOS 5D", null)).getPhotos())
+                .extracting("name").containsExactly("small.jpg", "a.jpg");
+    }
+
+    private CatalogQuery query(String album, Integer minWidth, String camera, String after) {
+        return new CatalogQuery(album, null, 500L, minWidth, null, null, null, camera, after, 2);
+    }
+
+    @Test
+    public void compactsLogOnceAppendsOutgrowSnapshot() throws IOException {
+        metadataIndex.close();
+        metadataIndex = open(3);
+        metadataIndex.putImage(userId, album, metadata("image.png"));
+        long single = Files.size(new File(logPath).toPath());
+
+        for (int size = 1; size <= 100; size++) {
+            metadataIndex.putImage(userId, album, new ImageMetadata("image.png", size, "image/png", 4, 3, 1L, 2L));
+        }
+        metadataIndex.close();
+
+        assertThat(Files.size(new File(logPath).toPath())).isLessThan(5 * single);
+        metadataIndex = open();
+        assertThat(metadataIndex.getImage(userId, album, "image.png").getSize()).isEqualTo(100);
+    }
+
+    private LogMetadataIndex open() throws IOException {
+        return open(10000);
+    }
+
+    private LogMetadataIndex open(int compactionThreshold) throws IOException {
+        LogMetadataIndex index = new LogMetadataIndex(directoryPathBuilder, new BaseImageHandler(), logPath,
+                compactionThreshold, true);
+        index.open();
+        return index;
+    }
+
+    private ImageMetadata metadata(String name) {
+        return new ImageMetadata(name, 10, "image/png", 4, 3, 1L, 2L);
+    }
+}
@@ -0,0 +1,116 @@
+package com.vitalsport.photos.index;
+
+import com.vitalsport.photos.model.SimilarImage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SimilarityIndexTest {
+
+    private static final String userId = "userId";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private String logPath;
+    private SimilarityIndex index;
+
+    @Before
+    public void setUp() throws IOException {
+        logPath = new File(temporaryFolder.getRoot(), "similarity.log").getPath();
+        index = new SimilarityIndex(logPath, 10000);
+        index.open();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        index.close();
+    }
+
+    @Test
+    public void findSimilarReturnsExactlyTheHashesWithinTheDistance() {
+        Random random = new Random(42);
+        long query = random.nextLong();
+        long[] hashes = new long[2000];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = i % 2 == 0 ? random.nextLong() : flip(query, random, i % 20);
+            index.putImage(userId, "album", "image" + i, hashes[i]);
+            index.putImage("otherUser", "album", "image" + i, hashes[i]);
+        }
+
+        for (int distance : new int[]{0, 3, 4, 10, SimilarityIndex.MAX_DISTANCE}) {
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < hashes.length; i++) {
+                if (Long.bitCount(hashes[i] ^ query) <= distance) {
+                    expected.add("image" + i);
+                }
+            }
+            List<SimilarImage> similar = index.findSimilar(userId, query, distance);
+
+            assertThat(similar).extracting(SimilarImage::getName).containsOnlyElementsOf(expected)
+                    .hasSameSizeAs(expected);
+            for (int i = 1; i < similar.size(); i++) {
+                assertThat(similar.get(i).getDistance()).isGreaterThanOrEqualTo(similar.get(i - 1).getDistance());
+            }
+        }
+    }
+
+    @Test
+    public void changesSurviveReopening() throws IOException {
+        index.putImage(userId, "album", "kept.jpg", 1L);
+        index.putImage(userId, "album", "replaced.jpg", 2L);
+        index.putImage(userId, "album", "replaced.jpg", 3L);
+        index.putImage(userId, "album", "removed.jpg", 1L);
+        index.removeImage(userId, "album", "removed.jpg");
+        index.putImage(userId, "other", "removed.jpg", 1L);
+        index.removeAlbum(userId, "other");
+        index.close();
+
+        index = new SimilarityIndex(logPath, 10000);
+        index.open();
+
+        assertThat(index.getHash(userId, "album", "replaced.jpg")).isEqualTo(3L);
+        assertThat(index.getHash(userId, "album", "removed.jpg")).isNull();
+        assertThat(index.findSimilar(userId, 1L, 1)).containsExactly(
+                new SimilarImage("album", "kept.jpg", 0), new SimilarImage("album", "replaced.jpg", 1));
+    }
+
+    @Test
+    public void removedEntriesAreCompactedAwayOnceTheyOutnumberLiveOnes() throws IOException {
+        index = new SimilarityIndex(logPath, 4);
+        index.open();
+        for (int i = 0; i < 10; i++) {
+            index.putImage(userId, "album", "image" + i, i);
+        }
+        for (int i = 0; i < 6; i++) {
+            index.removeImage(userId, "album", "image" + i);
+        }
+
+        assertThat(index.metrics()).containsExactly(
+                new Metric<>("photos.similarity.images", 4), new Metric<>("photos.similarity.removed", 0));
+        assertThat(index.findSimilar(userId, 8L, 0)).containsExactly(new SimilarImage("album", "image8", 0));
+        index.close();
+        index = new SimilarityIndex(logPath, 4);
+        index.open();
+        assertThat(index.getHash(userId, "album", "image9")).isEqualTo(9L);
+        assertThat(index.getHash(userId, "album", "image5")).isNull();
+    }
+
+    private long flip(long hash, Random random, int bits) {
+        for (int i = 0; i < bits; i++) {
+            hash ^= 1L << random.nextInt(64);
+        }
+        return hash;
+    }
+}
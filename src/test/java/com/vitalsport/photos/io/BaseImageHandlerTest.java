@@ -0,0 +1,143 @@
+package com.vitalsport.photos.io;
+
+import com.vitalsport.photos.model.ImageMetadata;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+public class BaseImageHandlerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private BaseImageHandler imageHandler = new BaseImageHandler();
+
+    @Test
+    public void uploadStreamsIntoNewAlbumDirectory() throws IOException {
+        File album = new File(temporaryFolder.getRoot(), "userId/album");
+        String path = new File(album, "image.png").getPath();
+
+        imageHandler.upload(path, new ByteArrayInputStream(new byte[]{1, 2, 3}));
+
+        assertThat(Files.readAllBytes(new File(path).toPath())).isEqualTo(new byte[]{1, 2, 3});
+        assertThat(album.list()).containsOnly("image.png");
+    }
+
+    @Test
+    public void uploadReplacesExistingImage() throws IOException {
+        String path = temporaryFolder.newFile("image.png").getPath();
+
+        imageHandler.upload(path, new byte[]{1, 2, 3});
+        imageHandler.upload(path, new byte[]{4});
+
+        assertThat(Files.readAllBytes(new File(path).toPath())).isEqualTo(new byte[]{4});
+    }
+
+    @Test
+    public void uploadCopiesFilesFromAnotherFileSystem() throws IOException {
+        Path sessions = Paths.get("/dev/shm");
+        Path album = temporaryFolder.newFolder("album").toPath();
+        assumeTrue(Files.isWritable(sessions)
+                && !Files.getFileStore(sessions).equals(Files.getFileStore(album)));
+        Path session = Files.createTempFile(sessions, "session-", ".tmp");
+        Files.write(session, new byte[]{1, 2, 3});
+
+        imageHandler.upload(album.resolve("image.png").toString(), session);
+
+        assertThat(Files.readAllBytes(album.resolve("image.png"))).isEqualTo(new byte[]{1, 2, 3});
+        assertThat(album.toFile().list()).containsOnly("image.png");
+        assertThat(session).doesNotExist();
+    }
+
+    @Test
+    public void listSkipsUploadsInProgress() throws IOException {
+        Path album = temporaryFolder.newFolder("album").toPath();
+        Files.createFile(album.resolve("image.png"));
+        Files.createFile(album.resolve(".upload-123.tmp"));
+
+        assertThat(imageHandler.list(album.toString()))
+                .containsOnly("image.png");
+    }
+
+    @Test
+    public void readMetadataReadsExifFieldsFromTheHeader() throws IOException {
+        File image = temporaryFolder.newFile("image.jpg");
+        Files.write(image.toPath(), jpegWithExif());
+
+        ImageMetadata metadata = imageHandler.readMetadata(image.getPath());
+
+        assertThat(metadata.getWidth()).isEqualTo(4);
+        assertThat(metadata.getHeight()).isEqualTo(3);
+        assertThat(metadata.getCaptured()).isEqualTo(Instant.parse("2019-05-04T10:20:30Z").toEpochMilli());
+        assertThat(metadata.getOrientation()).isEqualTo(6);
+        assertThat(metadata.getCamera()).isEqualTo("Canon EOS 5D");
+    }
+
+    @Test
+    public void readMetadataLeavesExifFieldsUnknownWithoutExif() throws IOException {
+        File image = temporaryFolder.newFile("image.png");
+        ImageIO.write(new BufferedImage(4, 3, BufferedImage.TYPE_INT_RGB), "png", image);
+
+        ImageMetadata metadata = imageHandler.readMetadata(image.getPath());
+
+        assertThat(metadata.getWidth()).isEqualTo(4);
+        assertThat(metadata.getCaptured()).isNull();
+        assertThat(metadata.getOrientation()).isEqualTo(1);
+        assertThat(metadata.getCamera()).isNull();
+    }
+
+    /**
+     * A 4x3 JPEG with an APP1 segment holding a little-endian TIFF structure: IFD0 with the make, model,
+     * orientation and a pointer to the EXIF IFD, which holds the capture time.
+     */
+    private byte[] jpegWithExif() throws IOException {
+        ByteBuffer tiff = ByteBuffer.allocate(120).order(ByteOrder.LITTLE_ENDIAN);
+        tiff.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(8);
+        tiff.putShort((short) 4);
+        entry(tiff, 0x010F, 2, 6, 62);
+        entry(tiff, 0x0110, 2, 13, 68);
+        entry(tiff, 0x0112, 3, 1, 6);
+        entry(tiff, 0x8769, 4, 1, 82);
+        tiff.putInt(0);
+        tiff.put("Canon\0".getBytes(US_ASCII)).put("Canon EOS 5D\0".getBytes(US_ASCII));
+        tiff.position(82);
+        tiff.putShort((short) 1);
+        entry(tiff, 0x9003, 2, 20, 100);
+        tiff.putInt(0);
+        tiff.put("2019:05:04 10:20:30\0".getBytes(US_ASCII));
+
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(4, 3, BufferedImage.TYPE_INT_RGB), "jpg", jpeg);
+        byte[] image = jpeg.toByteArray();
+        int length = 2 + 6 + tiff.capacity();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        output.write(image, 0, 2);
+        output.write(new byte[]{(byte) 0xFF, (byte) 0xE1, (byte) (length >> 8), (byte) length});
+        output.write(new byte[]{'E', 'x', 'i', 'f', 0, 0});
+        output.write(tiff.array());
+        output.write(image, 2, image.length - 2);
+        return output.toByteArray();
+    }
+
+    private void entry(ByteBuffer tiff, int tag, int type, int count, int value) {
+        tiff.putShort((short) tag).putShort((short) type).putInt(count).putInt(value);
+    }
+}
@@ -0,0 +1,93 @@
+package com.vitalsport.photos.io;
+
+import com.vitalsport.photos.model.ImageHolder;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.http.MediaType;
+import org.springframework.util.StreamUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+import static org.mockito.Mockito.*;
+
+public class CachingImageHandlerTest {
+
+    private static final String path = "vitalsport/userId/album/image.png";
+
+    private ImageHandler delegate;
+    private CachingImageHandler cachingImageHandler;
+
+    @Before
+    public void setUp() throws IOException {
+        delegate = mock(ImageHandler.class);
+        cachingImageHandler = new CachingImageHandler(delegate, 10, 8, true);
+        when(delegate.download(anyString())).thenAnswer(invocation -> imageHolder(4));
+    }
+
+    @Test
+    public void downloadServesRepeatedRequestsFromCache() throws IOException {
+        cachingImageHandler.download(path);
+        ImageHolder cached = cachingImageHandler.download(path);
+
+        verify(delegate, times(1)).download(path);
+        assertThat(cached.getContentLength()).isEqualTo(4);
+        try (InputStream input = cached.getResource().getInputStream()) {
+            assertThat(StreamUtils.copyToByteArray(input)).isEqualTo(new byte[]{0, 1, 2, 3});
+        }
+    }
+
+    @Test
+    public void downloadBypassesCacheForEntriesLargerThanLimit() throws IOException {
+        when(delegate.download(path)).thenReturn(imageHolder(9));
+
+        cachingImageHandler.download(path);
+        cachingImageHandler.download(path);
+
+        verify(delegate, times(2)).download(path);
+    }
+
+    @Test
+    public void uploadInvalidatesCachedImage() throws IOException {
+        cachingImageHandler.download(path);
+        cachingImageHandler.upload(path, new byte[]{1});
+        cachingImageHandler.download(path);
+
+        verify(delegate, times(2)).download(path);
+    }
+
+    @Test
+    public void deleteDirectoryInvalidatesCachedImagesBelowIt() throws IOException {
+        cachingImageHandler.download(path);
+        cachingImageHandler.deleteDirectory("vitalsport/userId/album");
+        cachingImageHandler.download(path);
+
+        verify(delegate, times(2)).download(path);
+    }
+
+    @Test
+    public void downloadEvictsLeastRecentlyUsedImagesOverBudget() throws IOException {
+        cachingImageHandler.download("first");
+        cachingImageHandler.download("second");
+        cachingImageHandler.download("first");
+        cachingImageHandler.download("third");
+        cachingImageHandler.download("first");
+        cachingImageHandler.download("second");
+
+        verify(delegate, times(1)).download("first");
+        verify(delegate, times(2)).download("second");
+        assertThat(cachingImageHandler.metrics()).extracting("name", "value")
+                .contains(tuple("photos.cache.hits", 2L), tuple("photos.cache.evictions", 2L));
+    }
+
+    private ImageHolder imageHolder(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) i;
+        }
+        return new ImageHolder(MediaType.IMAGE_PNG, new ByteArrayResource(bytes), length, 1L, "\"tag\"");
+    }
+}
@@ -0,0 +1,79 @@
+package com.vitalsport.photos.io;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DeduplicatingImageHandlerTest {
+
+    private static final byte[] imageBytes = {1, 2, 3};
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path blobsPath;
+    private BlobStore blobStore;
+    private DeduplicatingImageHandler imageHandler;
+
+    @Before
+    public void setUp() throws IOException {
+        blobsPath = temporaryFolder.newFolder("blobs").toPath();
+        blobStore = new BlobStore(blobsPath.toString());
+        imageHandler = new DeduplicatingImageHandler(new BaseImageHandler(), blobStore);
+    }
+
+    @Test
+    public void uploadStoresIdenticalImagesOnce() throws IOException {
+        String first = path("first/image.png");
+        String second = path("second/copy.png");
+
+        imageHandler.upload(first, imageBytes);
+        imageHandler.upload(second, imageBytes);
+
+        assertThat(blobs()).hasSize(1);
+        assertThat(blobStore.references(blobs().get(0))).isEqualTo(2);
+        assertThat(Files.readAllBytes(new File(second).toPath())).isEqualTo(imageBytes);
+        assertThat(new File(second).getParentFile().list()).containsOnly("copy.png");
+    }
+
+    @Test
+    public void sweepReclaimsOnlyUnreferencedBlobs() throws IOException {
+        String first = path("first/image.png");
+        String second = path("second/image.png");
+        imageHandler.upload(first, imageBytes);
+        imageHandler.upload(second, imageBytes);
+        imageHandler.upload(second, new byte[]{4});
+
+        imageHandler.delete(first);
+        blobStore.sweep();
+
+        assertThat(blobs()).hasSize(1);
+        assertThat(Files.readAllBytes(new File(second).toPath())).isEqualTo(new byte[]{4});
+
+        imageHandler.deleteDirectory(new File(second).getParent());
+        blobStore.sweep();
+
+        assertThat(blobs()).isEmpty();
+    }
+
+    private String path(String name) {
+        return new File(temporaryFolder.getRoot(), "photos/" + name).getPath();
+    }
+
+    private List<Path> blobs() throws IOException {
+        try (Stream<Path> paths = Files.walk(blobsPath)) {
+            return paths.filter(Files::isRegularFile).collect(toList());
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.vitalsport.photos.io;
+
+import com.vitalsport.photos.io.ReplicatingImageHandler.Acknowledgement;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.util.StreamUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.atMost;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class ReplicatingImageHandlerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private BaseImageHandler baseImageHandler = new BaseImageHandler();
+    private String logPath;
+    private String path;
+    private ReplicatingImageHandler imageHandler;
+
+    @Before
+    public void setUp() {
+        logPath = new File(temporaryFolder.getRoot(), "replication/replication.log").getPath();
+        path = "userId/album/image.png";
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (imageHandler != null) {
+            imageHandler.shutdown();
+        }
+    }
+
+    @Test
+    public void quorumWritesWaitForAReplicaAndReadsFailOver() throws IOException {
+        imageHandler = new ReplicatingImageHandler(rooted("primary"), asList(rooted("first"), rooted("second")),
+                Acknowledgement.QUORUM, logPath, 100, 5000);
+
+        imageHandler.upload(path, new byte[]{1, 2, 3});
+
+        assertThat(replicated("first") || replicated("second")).isTrue();
+        Files.delete(location("primary"));
+        for (int read = 0; read < 3; read++) {
+            assertThat(read(imageHandler)).isEqualTo(new byte[]{1, 2, 3});
+        }
+    }
+
+    @Test
+    public void pendingChangesAreReplayedAfterRestart() throws IOException {
+        ImageHandler unavailable = mock(ImageHandler.class);
+        doThrow(new IOException("disk failure")).when(unavailable).upload(anyString(), any(InputStream.class));
+        imageHandler = new ReplicatingImageHandler(rooted("primary"), singletonList(unavailable),
+                Acknowledgement.ONE, logPath, 60000, 5000);
+
+        imageHandler.upload(path, new byte[]{1, 2, 3});
+        imageHandler.shutdown();
+        assertThat(replicated("first")).isFalse();
+
+        imageHandler = new ReplicatingImageHandler(rooted("primary"), singletonList(rooted("first")),
+                Acknowledgement.ALL, logPath, 100, 5000);
+        imageHandler.createDirectory("userId/empty");
+
+        assertThat(replicated("first")).isTrue();
+        assertThat(Paths.get(temporaryFolder.getRoot().getPath(), "first/userId/empty")).isDirectory();
+    }
+
+    @Test
+    public void movesReachReplicasThatMissedTheMovedFiles() throws IOException {
+        ImageHandler unavailable = mock(ImageHandler.class);
+        doThrow(new IOException("disk failure")).when(unavailable).upload(anyString(), any(InputStream.class));
+        imageHandler = new ReplicatingImageHandler(rooted("primary"), singletonList(unavailable),
+                Acknowledgement.ONE, logPath, 60000, 5000);
+
+        imageHandler.upload(path, new byte[]{1, 2, 3});
+        imageHandler.move("userId/album", "userId/.trash/album");
+        imageHandler.shutdown();
+
+        imageHandler = new ReplicatingImageHandler(rooted("primary"), singletonList(rooted("first")),
+                Acknowledgement.ALL, logPath, 100, 5000);
+        imageHandler.createDirectory("userId/empty");
+
+        assertThat(replicated("first")).isFalse();
+        assertThat(Paths.get(temporaryFolder.getRoot().getPath(), "first/userId/.trash/album/image.png"))
+                .hasBinaryContent(new byte[]{1, 2, 3});
+    }
+
+    @Test
+    public void copiesCarryTheModificationTimeOfThePrimary() throws IOException {
+        imageHandler = new ReplicatingImageHandler(rooted("primary"), singletonList(rooted("first")),
+                Acknowledgement.ALL, logPath, 100, 5000);
+
+        imageHandler.upload(path, new byte[]{1, 2, 3});
+        assertThat(rooted("first").download(path).getEntityTag())
+                .isEqualTo(rooted("primary").download(path).getEntityTag());
+
+        imageHandler.setLastModified(path, 1000000);
+        assertThat(rooted("first").download(path).getLastModified()).isEqualTo(1000000);
+    }
+
+    @Test
+    public void unacknowledgedWritesStandOnThePrimary() throws IOException {
+        ImageHandler unavailable = mock(ImageHandler.class);
+        doThrow(new IOException("disk failure")).when(unavailable).upload(anyString(), any(InputStream.class));
+        imageHandler = new ReplicatingImageHandler(rooted("primary"), singletonList(unavailable),
+                Acknowledgement.ALL, logPath, 60000, 100);
+
+        try {
+            imageHandler.upload(path, new byte[]{1, 2, 3});
+            fail("The upload wasn't acknowledged by the replica");
+        } catch (ReplicationTimeoutException exception) {
+            assertThat(replicated("primary")).isTrue();
+        }
+    }
+
+    @Test
+    public void failingReplicaIsPausedWithItsChangesQueued() throws IOException, InterruptedException {
+        ImageHandler unavailable = mock(ImageHandler.class);
+        doThrow(new IOException("disk failure")).when(unavailable).upload(anyString(), any(InputStream.class));
+        imageHandler = new ReplicatingImageHandler(rooted("primary"), singletonList(unavailable),
+                Acknowledgement.ONE, logPath, 100, 5000);
+
+        imageHandler.upload(path, new byte[]{1, 2, 3});
+        imageHandler.upload("userId/album/second.png", new byte[]{4, 5, 6});
+        imageHandler.upload("userId/album/third.png", new byte[]{7, 8, 9});
+        Thread.sleep(450);
+
+        verify(unavailable, atLeast(2)).upload(eq(path), any(InputStream.class));
+        verify(unavailable, atMost(6)).upload(eq(path), any(InputStream.class));
+        verify(unavailable, never()).upload(eq("userId/album/second.png"), any(InputStream.class));
+        verify(unavailable, never()).upload(eq("userId/album/third.png"), any(InputStream.class));
+    }
+
+    private ImageHandler rooted(String root) {
+        return new RootedImageHandler(baseImageHandler, new File(temporaryFolder.getRoot(), root).getPath());
+    }
+
+    private Path location(String root) {
+        return Paths.get(temporaryFolder.getRoot().getPath(), root, path);
+    }
+
+    private boolean replicated(String root) {
+        return Files.exists(location(root));
+    }
+
+    private byte[] read(ImageHandler handler) throws IOException {
+        try (InputStream input = handler.download(path).getResource().getInputStream()) {
+            return StreamUtils.copyToByteArray(input);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.vitalsport.photos.io;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ReplicationLogTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void logIsCompactedWhileChangesArePending() throws IOException {
+        Path path = temporaryFolder.getRoot().toPath().resolve("replication.log");
+        ReplicationLog replicationLog = new ReplicationLog(path, 2);
+        ReplicationLog.Change first = replicationLog.append((byte) 1, "userId/album/first.png");
+        replicationLog.append((byte) 1, "userId/album/second.png");
+        for (int acknowledgement = 0; acknowledgement < 20000; acknowledgement++) {
+            replicationLog.acknowledge(first.sequence, 0);
+        }
+        replicationLog.close();
+
+        assertThat(Files.size(path)).isLessThan(100000);
+        replicationLog = new ReplicationLog(path, 2);
+        assertThat(replicationLog.getPending()).hasSize(2);
+        assertThat(replicationLog.getPending().get(0).isPendingOn(0)).isFalse();
+        assertThat(replicationLog.getPending().get(0).isPendingOn(1)).isTrue();
+        replicationLog.close();
+    }
+}
@@ -0,0 +1,317 @@
+package com.vitalsport.photos.io;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.DeleteObjectRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsResult;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ListPartsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.vitalsport.photos.model.ImageHolder;
+import com.vitalsport.photos.model.ImageMetadata;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.util.StreamUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class S3ImageHandlerTest {
+
+    private static final String bucket = "photos";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private FakeS3 s3;
+    private S3ImageHandler imageHandler;
+
+    @Before
+    public void setUp() {
+        s3 = new FakeS3();
+        imageHandler = new S3ImageHandler(s3, bucket, 1024, 4);
+    }
+
+    @After
+    public void tearDown() {
+        imageHandler.shutdown();
+    }
+
+    @Test
+    public void rangesAreFetchedWithRangedGets() throws IOException {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(30, 20, BufferedImage.TYPE_INT_RGB), "png", png);
+        imageHandler.upload("/photos/userId/album/image.png", png.toByteArray());
+
+        ImageHolder imageHolder = imageHandler.download("/photos/userId/album/image.png");
+        ImageMetadata metadata = imageHandler.readMetadata("photos/userId/album/image.png");
+
+        assertThat(imageHolder.getContentLength()).isEqualTo(png.size());
+        assertThat(imageHolder.getMediaType().toString()).isEqualTo("image/png");
+        assertThat(read(new RangeResource(imageHolder.getResource(), 1, 3).getInputStream()))
+                .isEqualTo(Arrays.copyOfRange(png.toByteArray(), 1, 4));
+        assertThat(s3.ranges).containsExactly("1-3");
+        assertThat(metadata.getWidth()).isEqualTo(30);
+        assertThat(metadata.getHeight()).isEqualTo(20);
+        assertThat(metadata.getMimeType()).isEqualTo("image/png");
+    }
+
+    @Test
+    public void filesAreUploadedInPartsAndConsumed() throws IOException {
+        byte[] bytes = new byte[10 * 1024 + 1];
+        new Random(7).nextBytes(bytes);
+        Path file = temporaryFolder.newFile("image.jpg").toPath();
+        Files.write(file, bytes);
+
+        imageHandler.upload("photos/userId/album/image.jpg", file);
+
+        assertThat(file).doesNotExist();
+        assertThat(s3.parts.get()).isEqualTo(11);
+        assertThat(read(imageHandler.download("photos/userId/album/image.jpg").getResource().getInputStream()))
+                .isEqualTo(bytes);
+    }
+
+    @Test
+    public void directoriesArePrefixes() throws IOException {
+        imageHandler.createDirectory("photos/userId/empty");
+        imageHandler.upload("photos/userId/album/first.png", new byte[]{1});
+        imageHandler.upload("photos/userId/album/second.png", new ByteArrayInputStream(new byte[]{2}));
+
+        assertThat(imageHandler.list("photos/userId")).containsOnly("album", "empty");
+        assertThat(imageHandler.list("photos/userId/album")).containsOnly("first.png", "second.png");
+        assertThat(imageHandler.list("photos/userId/empty")).isEmpty();
+        assertThat(imageHandler.exists("photos/userId/empty")).isTrue();
+        assertThat(imageHandler.delete("photos/userId/album/first.png")).isTrue();
+        assertThat(imageHandler.delete("photos/userId/album/first.png")).isFalse();
+
+        imageHandler.deleteDirectory("photos/userId");
+
+        assertThat(imageHandler.exists("photos/userId/album")).isFalse();
+        assertThat(s3.objects).isEmpty();
+        expectedException.expect(FileNotFoundException.class);
+        imageHandler.download("photos/userId/album/second.png");
+    }
+
+    @Test
+    public void failedLookupsAreWrapped() {
+        s3.unavailable = true;
+
+        try {
+            imageHandler.delete("photos/userId/album/first.png");
+            fail("Deletion succeeded");
+        } catch (InternalError exception) {
+            assertThat(exception).hasMessageContaining("photos/userId/album/first.png");
+        }
+        expectedException.expect(InternalError.class);
+        imageHandler.exists("photos/userId/album");
+    }
+
+    private byte[] read(InputStream input) throws IOException {
+        try (InputStream stream = input) {
+            return StreamUtils.copyToByteArray(stream);
+        }
+    }
+
+    /**
+     * Keeps a single bucket in memory and answers only the calls the handler and the transfer manager make.
+     */
+    private static class FakeS3 extends AbstractAmazonS3 {
+
+        private final NavigableMap<String, byte[]> objects = new ConcurrentSkipListMap<>();
+        private final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+        private final List<String> ranges = Collections.synchronizedList(new ArrayList<>());
+        private final AtomicInteger parts = new AtomicInteger();
+        private volatile boolean unavailable;
+
+        @Override
+        public PutObjectResult putObject(PutObjectRequest request) {
+            try {
+                objects.put(request.getKey(), request.getFile() != null
+                        ? Files.readAllBytes(request.getFile().toPath())
+                        : StreamUtils.copyToByteArray(request.getInputStream()));
+            } catch (IOException exception) {
+                throw new AmazonS3Exception(exception.getMessage());
+            }
+            return new PutObjectResult();
+        }
+
+        @Override
+        public ObjectMetadata getObjectMetadata(GetObjectMetadataRequest request) {
+            if (unavailable) {
+                throw new AmazonClientException("Unable to execute HTTP request");
+            }
+            return metadata(request.getKey(), content(request.getKey()));
+        }
+
+        @Override
+        public S3Object getObject(GetObjectRequest request) {
+            byte[] content = content(request.getKey());
+            long[] range = request.getRange();
+            if (range != null) {
+                ranges.add(range[0] + "-" + range[1]);
+                content = Arrays.copyOfRange(content, (int) range[0], (int) range[1] + 1);
+            }
+            S3Object object = new S3Object();
+            object.setKey(request.getKey());
+            object.setObjectMetadata(metadata(request.getKey(), content));
+            object.setObjectContent(new ByteArrayInputStream(content));
+            return object;
+        }
+
+        @Override
+        public ObjectListing listObjects(ListObjectsRequest request) {
+            String prefix = request.getPrefix() == null ? "" : request.getPrefix();
+            int maxKeys = request.getMaxKeys() == null ? Integer.MAX_VALUE : request.getMaxKeys();
+            ObjectListing listing = new ObjectListing();
+            TreeSet<String> commonPrefixes = new TreeSet<>();
+            String start = request.getMarker() == null ? prefix : request.getMarker() + "\0";
+            for (String key : objects.tailMap(start, true).keySet()) {
+                if (!key.startsWith(prefix)) {
+                    break;
+                }
+                if (listing.getObjectSummaries().size() + commonPrefixes.size() == maxKeys) {
+                    listing.setTruncated(true);
+                    break;
+                }
+                int delimiter = request.getDelimiter() == null ? -1 : key.indexOf(request.getDelimiter(), prefix.length());
+                if (delimiter >= 0) {
+                    commonPrefixes.add(key.substring(0, delimiter + 1));
+                } else {
+                    S3ObjectSummary summary = new S3ObjectSummary();
+                    summary.setKey(key);
+                    listing.getObjectSummaries().add(summary);
+                }
+                listing.setNextMarker(key);
+            }
+            listing.setCommonPrefixes(new ArrayList<>(commonPrefixes));
+            listing.setPrefix(prefix);
+            listing.setDelimiter(request.getDelimiter());
+            listing.setMaxKeys(maxKeys);
+            listing.setBucketName(request.getBucketName());
+            return listing;
+        }
+
+        @Override
+        public ObjectListing listNextBatchOfObjects(ObjectListing previous) {
+            return listObjects(new ListObjectsRequest(previous.getBucketName(), previous.getPrefix(),
+                    previous.getNextMarker(), previous.getDelimiter(), previous.getMaxKeys()));
+        }
+
+        @Override
+        public void deleteObject(DeleteObjectRequest request) {
+            objects.remove(request.getKey());
+        }
+
+        @Override
+        public DeleteObjectsResult deleteObjects(DeleteObjectsRequest request) {
+            request.getKeys().forEach(key -> objects.remove(key.getKey()));
+            return new DeleteObjectsResult(Collections.emptyList());
+        }
+
+        @Override
+        public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+            InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+            result.setUploadId(UUID.randomUUID().toString());
+            uploads.put(result.getUploadId(), new ConcurrentSkipListMap<>());
+            return result;
+        }
+
+        @Override
+        public UploadPartResult uploadPart(UploadPartRequest request) {
+            byte[] part = new byte[(int) request.getPartSize()];
+            try (RandomAccessFile file = new RandomAccessFile(request.getFile(), "r")) {
+                file.seek(request.getFileOffset());
+                file.readFully(part);
+            } catch (IOException exception) {
+                throw new AmazonS3Exception(exception.getMessage());
+            }
+            uploads.get(request.getUploadId()).put(request.getPartNumber(), part);
+            parts.incrementAndGet();
+            UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag(Integer.toHexString(Arrays.hashCode(part)));
+            return result;
+        }
+
+        @Override
+        public PartListing listParts(ListPartsRequest request) {
+            return new PartListing();
+        }
+
+        @Override
+        public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            for (byte[] part : uploads.remove(request.getUploadId()).values()) {
+                content.write(part, 0, part.length);
+            }
+            objects.put(request.getKey(), content.toByteArray());
+            return new CompleteMultipartUploadResult();
+        }
+
+        private byte[] content(String key) {
+            byte[] content = objects.get(key);
+            if (content == null) {
+                AmazonS3Exception exception = new AmazonS3Exception("Not Found");
+                exception.setStatusCode(404);
+                throw exception;
+            }
+            return content;
+        }
+
+        private ObjectMetadata metadata(String key, byte[] content) {
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength(content.length);
+            metadata.setLastModified(new Date(1000));
+            metadata.setHeader(Headers.ETAG, key.hashCode() + "-" + content.length);
+            return metadata;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.vitalsport.photos.io;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.util.StreamUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TieringImageHandlerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path cold;
+    private String path;
+    private TieringImageHandler imageHandler;
+
+    @Before
+    public void setUp() throws IOException {
+        cold = temporaryFolder.newFolder("cold").toPath();
+        path = new File(temporaryFolder.getRoot(), "hot/userId/album/image.png").getPath();
+        imageHandler = new TieringImageHandler(new BaseImageHandler(), cold.toString(), 60000);
+        imageHandler.upload(path, new byte[]{1, 2, 3});
+    }
+
+    @After
+    public void tearDown() {
+        imageHandler.shutdown();
+    }
+
+    @Test
+    public void demotedImagesAreReadThroughALinkAndPromotedWhenReadAgain() throws Exception {
+        Files.setAttribute(Paths.get(path), "lastAccessTime", FileTime.fromMillis(0));
+        assertThat(imageHandler.demote(path)).isTrue();
+        assertThat(imageHandler.demote(path)).isFalse();
+
+        assertThat(Files.isSymbolicLink(Paths.get(path))).isTrue();
+        assertThat(coldFiles()).isEqualTo(1);
+        assertThat(read()).isEqualTo(new byte[]{1, 2, 3});
+        assertThat(Files.isSymbolicLink(Paths.get(path))).isTrue();
+
+        assertThat(read()).isEqualTo(new byte[]{1, 2, 3});
+        for (int attempt = 0; attempt < 100 && (Files.isSymbolicLink(Paths.get(path)) || coldFiles() > 0); attempt++) {
+            Thread.sleep(50);
+        }
+        assertThat(Files.isSymbolicLink(Paths.get(path))).isFalse();
+        assertThat(coldFiles()).isZero();
+        assertThat(read()).isEqualTo(new byte[]{1, 2, 3});
+    }
+
+    @Test
+    public void writesReplaceAndDeletesRemoveTheColdCopy() throws IOException {
+        imageHandler.demote(path);
+        assertThat(read()).isEqualTo(new byte[]{1, 2, 3});
+
+        imageHandler.upload(path, new byte[]{6});
+        assertThat(Files.isSymbolicLink(Paths.get(path))).isFalse();
+        assertThat(coldFiles()).isZero();
+
+        imageHandler.demote(path);
+        assertThat(imageHandler.delete(path)).isTrue();
+        assertThat(Paths.get(path)).doesNotExist();
+        assertThat(coldFiles()).isZero();
+    }
+
+    @Test
+    public void movedImagesKeepTheirColdCopyApartFromImagesDemotedFromTheSamePathLater() throws IOException {
+        String album = Paths.get(path).getParent().toString();
+        String trashed = new File(temporaryFolder.getRoot(), "hot/userId/.trash/album").getPath();
+        imageHandler.demote(path);
+        imageHandler.move(album, trashed);
+
+        imageHandler.upload(path, new byte[]{4, 5});
+        imageHandler.demote(path);
+        assertThat(coldFiles()).isEqualTo(2);
+
+        imageHandler.deleteDirectory(trashed);
+        assertThat(coldFiles()).isEqualTo(1);
+        assertThat(read()).isEqualTo(new byte[]{4, 5});
+    }
+
+    private long coldFiles() throws IOException {
+        return Files.walk(cold).filter(Files::isRegularFile).count();
+    }
+
+    private byte[] read() throws IOException {
+        try (InputStream input = imageHandler.download(path).getResource().getInputStream()) {
+            return StreamUtils.copyToByteArray(input);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.vitalsport.photos.service;
+
+import com.vitalsport.photos.builder.DirectoryPathBuilder;
+import com.vitalsport.photos.model.UploadResult;
+import com.vitalsport.photos.validator.InputValidator;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+public class BatchUploadServiceTest {
+
+    private static final String userId = "userId";
+    private static final String album = "album";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private PhotoLoader photoService;
+    private DirectoryPathBuilder directoryPathBuilder;
+    private BatchUploadService batchUploadService;
+
+    @Before
+    public void setUp() {
+        photoService = mock(PhotoLoader.class);
+        directoryPathBuilder = new DirectoryPathBuilder(temporaryFolder.getRoot().getPath() + "/", "all/",
+                "renditions/");
+        batchUploadService = new BatchUploadService(photoService, new InputValidator(), new SyncTaskExecutor());
+    }
+
+    @Test
+    public void uploadImagesReportsOutcomePerFile() {
+        MultipartFile first = file("first.png");
+        MultipartFile invalid = file("invalid.txt");
+        MultipartFile failing = file("failing.png");
+        doThrow(new IllegalArgumentException("ContentType: text/plain is not supported."))
+                .when(photoService).uploadImage(userId, album, "invalid.txt", invalid);
+        doThrow(new InternalError("disk full"))
+                .when(photoService).uploadImage(userId, album, "failing.png", failing);
+
+        List<UploadResult> results = batchUploadService.uploadImages(userId, album, asList(first, invalid, failing));
+
+        assertThat(results).containsExactly(
+                new UploadResult("first.png", 201, null),
+                new UploadResult("invalid.txt", 400, "ContentType: text/plain is not supported."),
+                new UploadResult("failing.png", 500, "disk full"));
+        verify(photoService).uploadImage(userId, album, "first.png", first);
+    }
+
+    @Test
+    public void uploadImagesLeavesNoAlbumWhenNothingIsStored() {
+        MultipartFile invalid = file("invalid.txt");
+        doThrow(new IllegalArgumentException("ContentType: text/plain is not supported."))
+                .when(photoService).uploadImage(userId, album, "invalid.txt", invalid);
+
+        batchUploadService.uploadImages(userId, album, Collections.singletonList(invalid));
+
+        assertThat(new File(directoryPathBuilder.getAlbumPath(userId, album))).doesNotExist();
+    }
+
+    @Test
+    public void uploadImagesThrowsIllegalArgumentExceptionOnEmptyBatch() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("No files to upload.");
+
+        batchUploadService.uploadImages(userId, album, Collections.<MultipartFile>emptyList());
+    }
+
+    private MultipartFile file(String name) {
+        MultipartFile file = mock(MultipartFile.class);
+        when(file.getOriginalFilename()).thenReturn(name);
+        return file;
+    }
+}
@@ -0,0 +1,73 @@
+package com.vitalsport.photos.service;
+
+import com.vitalsport.photos.builder.DirectoryPathBuilder;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LayoutMigratorTest {
+
+    private static final String userId = "userId";
+    private static final String album = "album";
+    private static final String image = "image.png";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private DirectoryPathBuilder directoryPathBuilder;
+    private LayoutMigrator layoutMigrator;
+
+    @Before
+    public void setUp() {
+        String root = temporaryFolder.getRoot().getPath() + "/";
+        directoryPathBuilder = new DirectoryPathBuilder(root + "photos/", "all/", root + "renditions/", 2,
+                root + "photos-sharded/", root + "renditions-sharded/");
+        layoutMigrator = new LayoutMigrator(directoryPathBuilder, new AlbumLocks(16), 1);
+    }
+
+    @Test
+    public void migrateMovesUsersInBatchesWhileBothLayoutsResolve() throws IOException {
+        write(Paths.get(temporaryFolder.getRoot().getPath(), "photos", userId, album, image));
+        write(Paths.get(temporaryFolder.getRoot().getPath(), "photos", "other", album, image));
+
+        Path legacyImage = Paths.get(directoryPathBuilder.getImagePath(userId, album, image));
+        assertThat(legacyImage).exists();
+
+        assertThat(layoutMigrator.migrate()).isEqualTo(1);
+        assertThat(layoutMigrator.migrate()).isEqualTo(1);
+        assertThat(layoutMigrator.migrate()).isEqualTo(0);
+
+        Path shardedImage = Paths.get(directoryPathBuilder.getImagePath(userId, album, image));
+        assertThat(shardedImage).isNotEqualTo(legacyImage).exists();
+        assertThat(shardedImage.toString()).matches(".*/photos-sharded/[0-9a-f]{2}/[0-9a-f]{2}/userId/album/image.png");
+        assertThat(directoryPathBuilder.getUserPaths()).extracting(path -> path.getFileName().toString())
+                .containsOnly(userId, "other");
+    }
+
+    @Test
+    public void migrateMergesDirectoryRecreatedInLegacyLayout() throws IOException {
+        write(Paths.get(temporaryFolder.getRoot().getPath(), "photos", userId, album, image));
+        layoutMigrator.migrate();
+        write(Paths.get(temporaryFolder.getRoot().getPath(), "photos", userId, album, "late.png"));
+
+        layoutMigrator.migrate();
+
+        assertThat(new File(temporaryFolder.getRoot(), "photos/" + userId)).doesNotExist();
+        assertThat(new File(directoryPathBuilder.getAlbumPath(userId, album)).list())
+                .containsOnly(image, "late.png");
+    }
+
+    private void write(Path path) throws IOException {
+        Files.createDirectories(path.getParent());
+        Files.write(path, new byte[]{1});
+    }
+}
@@ -0,0 +1,84 @@
+package com.vitalsport.photos.service;
+
+import com.codahale.metrics.MetricRegistry;
+import com.vitalsport.photos.model.ImageHolder;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.http.MediaType;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class MeteredPhotoLoaderTest {
+
+    private static final String userId = "userId";
+    private static final String album = "album";
+    private static final String image = "image.png";
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private PhotoLoader photoService;
+    private MetricRegistry metricRegistry;
+    private MeteredPhotoLoader meteredPhotoLoader;
+
+    @Before
+    public void setUp() {
+        photoService = mock(PhotoLoader.class);
+        metricRegistry = new MetricRegistry();
+        meteredPhotoLoader = new MeteredPhotoLoader(photoService, metricRegistry);
+    }
+
+    @Test
+    public void downloadImageIsTimedAndReadBytesAreCounted() throws IOException {
+        byte[] bytes = {1, 2, 3, 4};
+        when(photoService.downloadImage(userId, album, image, null)).thenReturn(
+                new ImageHolder(MediaType.IMAGE_PNG, new ByteArrayResource(bytes), bytes.length, 1, "\"tag\""));
+
+        ImageHolder imageHolder = meteredPhotoLoader.downloadImage(userId, album, image, null);
+        try (InputStream input = imageHolder.getResource().getInputStream()) {
+            assertThat(StreamUtils.copyToByteArray(input)).isEqualTo(bytes);
+        }
+
+        assertThat(metricRegistry.timer("timer.photos.download.success").getCount()).isEqualTo(1);
+        assertThat(metricRegistry.counter("counter.photos.bytes.read").getCount()).isEqualTo(4);
+    }
+
+    @Test
+    public void rejectedOperationIsTimedSeparately() {
+        doThrow(new IllegalArgumentException("album is null or empty.")).when(photoService).deleteAlbum(userId, null);
+        expectedException.expect(IllegalArgumentException.class);
+
+        try {
+            meteredPhotoLoader.deleteAlbum(userId, null);
+        } finally {
+            assertThat(metricRegistry.timer("timer.photos.deleteAlbum.rejected").getCount()).isEqualTo(1);
+            assertThat(metricRegistry.timer("timer.photos.deleteAlbum.success").getCount()).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void uploadCountsWrittenBytesAndListingsRecordTheirSize() {
+        MultipartFile file = mock(MultipartFile.class);
+        when(file.getSize()).thenReturn(42L);
+        when(photoService.getUserAlbums(userId)).thenReturn(asList("first", "second"));
+
+        meteredPhotoLoader.uploadImage(userId, album, image, file);
+        meteredPhotoLoader.getUserAlbums(userId);
+
+        assertThat(metricRegistry.timer("timer.photos.upload.success").getCount()).isEqualTo(1);
+        assertThat(metricRegistry.histogram("histogram.photos.albums.entries").getSnapshot().getMax()).isEqualTo(2);
+        assertThat(metricRegistry.counter("counter.photos.bytes.written").getCount()).isEqualTo(42);
+    }
+}
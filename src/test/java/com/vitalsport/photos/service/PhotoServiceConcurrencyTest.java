@@ -0,0 +1,143 @@
+package com.vitalsport.photos.service;
+
+import com.vitalsport.photos.builder.DirectoryPathBuilder;
+import com.vitalsport.photos.index.LogMetadataIndex;
+import com.vitalsport.photos.index.SimilarityIndex;
+import com.vitalsport.photos.io.BaseImageHandler;
+import com.vitalsport.photos.model.ImageMetadata;
+import com.vitalsport.photos.validator.InputValidator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.mock.web.MockMultipartFile;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Hammers a service over real storage and index with uploads, downloads and deletes of images and albums from
+ * many threads, then checks that the index describes exactly what is on disk.
+ */
+public class PhotoServiceConcurrencyTest {
+
+    private static final String userId = "userId";
+    private static final int THREADS = 8;
+    private static final int OPERATIONS = 400;
+    private static final int ALBUMS = 3;
+    private static final int IMAGES = 4;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private DirectoryPathBuilder directoryPathBuilder;
+    private LogMetadataIndex metadataIndex;
+    private PhotoService photoService;
+    private byte[] image;
+
+    @Before
+    public void setUp() throws IOException {
+        directoryPathBuilder = new DirectoryPathBuilder(temporaryFolder.newFolder("photos").getPath() + "/", "all/",
+                temporaryFolder.newFolder("renditions").getPath() + "/");
+        metadataIndex = new LogMetadataIndex(directoryPathBuilder, new BaseImageHandler(),
+                new File(temporaryFolder.getRoot(), "index/metadata.log").getPath(), 10000, false);
+        metadataIndex.open();
+        photoService = new PhotoService(directoryPathBuilder, new InputValidator(), new BaseImageHandler(),
+                mock(RenditionService.class), metadataIndex, mock(SimilarityIndex.class), mock(QuotaService.class),
+                new AlbumLocks(4), new TrashService(directoryPathBuilder, new BaseImageHandler(), 0, 0, 1000));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(4, 3, BufferedImage.TYPE_INT_RGB), "png", output);
+        image = output.toByteArray();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        metadataIndex.close();
+    }
+
+    @Test
+    public void indexMatchesStorageAfterConcurrentMutations() throws InterruptedException {
+        Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int operation = 0; operation < OPERATIONS; operation++) {
+                        mutate(ThreadLocalRandom.current());
+                    }
+                } catch (Throwable failure) {
+                    failures.add(failure);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(failures).isEmpty();
+        for (int album = 0; album < ALBUMS; album++) {
+            String name = "album" + album;
+            File directory = new File(directoryPathBuilder.getAlbumPath(userId, name));
+            assertThat(metadataIndex.getAlbums(userId).contains(name)).isEqualTo(directory.isDirectory());
+            List<String> stored = directory.isDirectory() ? sorted(Arrays.asList(directory.list())) : sorted(null);
+            List<String> indexed = sorted(metadataIndex.getImages(userId, name).stream()
+                    .map(ImageMetadata::getName)
+                    .collect(toList()));
+            assertThat(indexed).isEqualTo(stored);
+        }
+    }
+
+    private void mutate(ThreadLocalRandom random) {
+        String album = "album" + random.nextInt(ALBUMS);
+        String name = "image" + random.nextInt(IMAGES) + ".png";
+        try {
+            switch (random.nextInt(6)) {
+                case 0:
+                    photoService.createAlbum(userId, album);
+                    break;
+                case 1:
+                    photoService.deleteAlbum(userId, album);
+                    break;
+                case 2:
+                    photoService.deleteImage(userId, album, name);
+                    break;
+                case 3:
+                    photoService.downloadImage(userId, album, name);
+                    break;
+                default:
+                    photoService.uploadImage(userId, album, name, new MockMultipartFile(name, name, "image/png", image));
+                    break;
+            }
+        } catch (IllegalArgumentException exception) {
+            // the album or image doesn't exist, or does already
+        }
+    }
+
+    private List<String> sorted(List<String> names) {
+        List<String> sorted = names == null ? new ArrayList<>() : new ArrayList<>(names);
+        Collections.sort(sorted);
+        return sorted;
+    }
+}
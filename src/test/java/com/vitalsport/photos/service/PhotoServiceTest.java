@@ -1,21 +1,37 @@
 package com.vitalsport.photos.service;
 
+import com.vitalsport.photos.index.MetadataIndex;
+import com.vitalsport.photos.index.SimilarityIndex;
 import com.vitalsport.photos.io.ImageHandler;
+import com.vitalsport.photos.io.ReplicationTimeoutException;
 import com.vitalsport.photos.builder.DirectoryPathBuilder;
 import com.vitalsport.photos.model.ImageHolder;
+import com.vitalsport.photos.model.ImageMetadata;
+import com.vitalsport.photos.model.PhotoQuery;
+import com.vitalsport.photos.model.PhotoSort;
+import com.vitalsport.photos.model.SimilarImage;
 import com.vitalsport.photos.validator.InputValidator;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.mockito.InOrder;
+import org.springframework.http.MediaType;
 import org.springframework.web.multipart.MultipartFile;
 
-import java.io.File;
+import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
 
 import static java.lang.String.format;
-import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
+import static java.util.Arrays.asList;
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.*;
 
 public class PhotoServiceTest {
@@ -26,21 +42,35 @@ public class PhotoServiceTest {
 
     private static final String defaultAlbum = "default";
     private static final String path = "imagePath/";
+    private static final String renditionsPath = "renditionsPath/";
 
     private ImageHandler imageHandler;
     private InputValidator inputValidator;
     private PhotoService photoService;
     private DirectoryPathBuilder directoryPathBuilder;
+    private RenditionService renditionService;
+    private MetadataIndex metadataIndex;
+    private SimilarityIndex similarityIndex;
+    private QuotaService quotaService;
+    private TrashService trashService;
 
     @Rule
     public ExpectedException expectedException = ExpectedException.none();
 
     @Before
-    public void setUp() {
+    public void setUp() throws IOException {
         imageHandler = mock(ImageHandler.class);
         inputValidator = new InputValidator();
-        directoryPathBuilder = new DirectoryPathBuilder(path, defaultAlbum);
-        photoService = new PhotoService(directoryPathBuilder, inputValidator, imageHandler);
+        renditionService = mock(RenditionService.class);
+        directoryPathBuilder = new DirectoryPathBuilder(path, defaultAlbum, renditionsPath);
+        metadataIndex = mock(MetadataIndex.class);
+        similarityIndex = mock(SimilarityIndex.class);
+        quotaService = mock(QuotaService.class);
+        trashService = mock(TrashService.class);
+        when(imageHandler.readMetadata(anyString()))
+                .thenReturn(new ImageMetadata(fileName, 3, "image/png", 1, 1, 1L, 2L));
+        photoService = new PhotoService(directoryPathBuilder, inputValidator, imageHandler, renditionService,
+                metadataIndex, similarityIndex, quotaService, new AlbumLocks(16), trashService);
     }
 
     @Test
@@ -70,6 +100,42 @@ public class PhotoServiceTest {
         photoService.uploadImage(userId, imageAlbum, file, mock(MultipartFile.class));
     }
 
+    @Test
+    public void uploadImageThrowsIllegalArgumentExceptionOnHiddenAlbum() throws IOException {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Album name: .trash can't start with a dot.");
+
+        try {
+            photoService.uploadImage(userId, ".trash", "1~x", mock(MultipartFile.class));
+        } finally {
+            verify(imageHandler, never()).upload(anyString(), any(InputStream.class));
+        }
+    }
+
+    @Test
+    public void deleteAlbumThrowsIllegalArgumentExceptionOnHiddenAlbum() throws IOException {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Album name: .trash can't start with a dot.");
+
+        try {
+            photoService.deleteAlbum(userId, ".trash");
+        } finally {
+            verify(trashService, never()).trash(anyString(), anyString(), anyMapOf(String.class, Long.class));
+        }
+    }
+
+    @Test
+    public void createAlbumThrowsIllegalArgumentExceptionOnReservedName() throws IOException {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Album name: trash is reserved.");
+
+        try {
+            photoService.createAlbum(userId, "trash");
+        } finally {
+            verify(imageHandler, never()).createDirectory(anyString());
+        }
+    }
+
     @Test
     public void uploadImageThrowsIllegalArgumentExceptionOnEmptyFileName() {
         expectedException.expect(IllegalArgumentException.class);
@@ -113,10 +179,92 @@ public class PhotoServiceTest {
         MultipartFile multipartFile = mock(MultipartFile.class);
         when(multipartFile.isEmpty()).thenReturn(false);
         when(multipartFile.getContentType()).thenReturn(contentType);
-        when(multipartFile.getBytes()).thenReturn(expectedBytes);
+        InputStream expectedInput = new ByteArrayInputStream(expectedBytes);
+        when(multipartFile.getInputStream()).thenReturn(expectedInput);
 
         photoService.uploadImage(userId, imageAlbum, fileName, multipartFile);
-        verify(imageHandler, times(1)).upload(expectedPath, expectedBytes);
+        verify(imageHandler, times(1)).upload(expectedPath, expectedInput);
+        verify(renditionService, times(1)).schedule(userId, imageAlbum, fileName);
+        verify(metadataIndex, times(1)).putImage(eq(userId), eq(imageAlbum), any());
+        verify(renditionService, never()).deleteRenditions(userId, imageAlbum, fileName);
+    }
+
+    @Test
+    public void uploadImageOverExistingOneDeletesItsRenditionsBeforeScheduling() throws IOException {
+        MultipartFile multipartFile = mock(MultipartFile.class);
+        when(multipartFile.getContentType()).thenReturn("image/png");
+        when(multipartFile.getInputStream()).thenReturn(new ByteArrayInputStream(new byte[]{1, 2, 3}));
+        when(metadataIndex.getImage(userId, imageAlbum, fileName))
+                .thenReturn(new ImageMetadata(fileName, 2, "image/png", 1, 1, 1L, 2L));
+
+        photoService.uploadImage(userId, imageAlbum, fileName, multipartFile);
+
+        InOrder inOrder = inOrder(renditionService);
+        inOrder.verify(renditionService).deleteRenditions(userId, imageAlbum, fileName);
+        inOrder.verify(renditionService).schedule(userId, imageAlbum, fileName);
+    }
+
+    @Test
+    public void uploadImageNotAcknowledgedByReplicasIsIndexedBeforeFailing() throws IOException {
+        MultipartFile multipartFile = mock(MultipartFile.class);
+        when(multipartFile.getContentType()).thenReturn("image/png");
+        InputStream input = new ByteArrayInputStream(new byte[]{1, 2, 3});
+        when(multipartFile.getInputStream()).thenReturn(input);
+        String path = directoryPathBuilder.getImagePath(userId, imageAlbum, fileName);
+        doThrow(new ReplicationTimeoutException("timeout", null)).when(imageHandler).upload(path, input);
+
+        expectedException.expect(InternalError.class);
+        try {
+            photoService.uploadImage(userId, imageAlbum, fileName, multipartFile);
+        } finally {
+            verify(metadataIndex).putImage(eq(userId), eq(imageAlbum), any());
+            verify(renditionService).schedule(userId, imageAlbum, fileName);
+        }
+    }
+
+    @Test
+    public void uploadImageOverQuotaIsRejectedBeforeWriting() throws IOException {
+        MultipartFile multipartFile = mock(MultipartFile.class);
+        when(multipartFile.getContentType()).thenReturn("image/png");
+        when(multipartFile.getSize()).thenReturn(3L);
+        when(metadataIndex.getImage(userId, imageAlbum, fileName))
+                .thenReturn(new ImageMetadata(fileName, 2, "image/png", 1, 1, 1L, 2L));
+        when(quotaService.reserve(userId, 3, 2)).thenThrow(new QuotaExceededException("quota"));
+
+        expectedException.expect(QuotaExceededException.class);
+        try {
+            photoService.uploadImage(userId, imageAlbum, fileName, multipartFile);
+        } finally {
+            verify(quotaService).acquireUpload(userId);
+            verify(imageHandler, never()).upload(anyString(), any(InputStream.class));
+        }
+    }
+
+    @Test
+    public void uploadImageReleasesReservationWhenWriteFails() throws IOException {
+        MultipartFile multipartFile = mock(MultipartFile.class);
+        when(multipartFile.getContentType()).thenReturn("image/png");
+        when(multipartFile.getSize()).thenReturn(3L);
+        when(quotaService.reserve(userId, 3, 0)).thenReturn(3L);
+        doThrow(new IOException("disk failure")).when(imageHandler).upload(anyString(), any(InputStream.class));
+
+        expectedException.expect(InternalError.class);
+        try {
+            photoService.uploadImage(userId, imageAlbum, fileName, multipartFile);
+        } finally {
+            verify(quotaService).release(userId, 3);
+            verify(metadataIndex, never()).putImage(anyString(), anyString(), any());
+        }
+    }
+
+    @Test
+    public void deleteImageReleasesItsQuota() {
+        when(metadataIndex.getImage(userId, imageAlbum, fileName))
+                .thenReturn(new ImageMetadata(fileName, 2, "image/png", 1, 1, 1L, 2L));
+
+        photoService.deleteImage(userId, imageAlbum, fileName);
+
+        verify(quotaService).stored(userId, -2);
     }
 
     @Test
@@ -129,10 +277,11 @@ public class PhotoServiceTest {
         MultipartFile multipartFile = mock(MultipartFile.class);
         when(multipartFile.isEmpty()).thenReturn(false);
         when(multipartFile.getContentType()).thenReturn(contentType);
-        when(multipartFile.getBytes()).thenReturn(expectedBytes);
+        InputStream expectedInput = new ByteArrayInputStream(expectedBytes);
+        when(multipartFile.getInputStream()).thenReturn(expectedInput);
 
         photoService.uploadImage(userId, album, fileName, multipartFile);
-        verify(imageHandler, times(1)).upload(expectedPath, expectedBytes);
+        verify(imageHandler, times(1)).upload(expectedPath, expectedInput);
     }
 
     @Test
@@ -145,10 +294,11 @@ public class PhotoServiceTest {
         MultipartFile multipartFile = mock(MultipartFile.class);
         when(multipartFile.isEmpty()).thenReturn(false);
         when(multipartFile.getContentType()).thenReturn(contentType);
-        when(multipartFile.getBytes()).thenReturn(expectedBytes);
+        InputStream expectedInput = new ByteArrayInputStream(expectedBytes);
+        when(multipartFile.getInputStream()).thenReturn(expectedInput);
 
         photoService.uploadImage(userId, album, fileName, multipartFile);
-        verify(imageHandler, times(1)).upload(expectedPath, expectedBytes);
+        verify(imageHandler, times(1)).upload(expectedPath, expectedInput);
     }
 
     @Test
@@ -234,6 +384,51 @@ public class PhotoServiceTest {
         verify(imageHandler, times(1)).download(pathToFile);
     }
 
+    @Test
+    public void downloadImageThrowsIllegalArgumentExceptionOnNonPositiveSize() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("size should be positive.");
+
+        photoService.downloadImage(userId, imageAlbum, fileName, 0);
+    }
+
+    @Test
+    public void downloadImageReturnsRenditionForRequestedSize() throws IOException {
+        String renditionPath = directoryPathBuilder.getRenditionPath(userId, imageAlbum, fileName, 128);
+        ImageHolder expectedResult = mock(ImageHolder.class);
+        when(renditionService.getRenditionPath(userId, imageAlbum, fileName, 100)).thenReturn(renditionPath);
+        when(imageHandler.download(renditionPath)).thenReturn(expectedResult);
+
+        assertThat(photoService.downloadImage(userId, imageAlbum, fileName, 100)).isEqualTo(expectedResult);
+    }
+
+    @Test
+    public void downloadImageFallsBackToOriginalWhenRenditionIsMissing() throws IOException {
+        String renditionPath = directoryPathBuilder.getRenditionPath(userId, imageAlbum, fileName, 128);
+        String pathToFile = directoryPathBuilder.getImagePath(userId, imageAlbum, fileName);
+        ImageHolder expectedResult = mock(ImageHolder.class);
+        when(renditionService.getRenditionPath(userId, imageAlbum, fileName, 100)).thenReturn(renditionPath);
+        when(imageHandler.download(renditionPath)).thenThrow(FileNotFoundException.class);
+        when(imageHandler.download(pathToFile)).thenReturn(expectedResult);
+
+        assertThat(photoService.downloadImage(userId, imageAlbum, fileName, 100)).isEqualTo(expectedResult);
+    }
+
+    @Test
+    public void downloadImagePrefersAcceptedTranscodedVariant() throws IOException {
+        List<MediaType> accepted = Collections.singletonList(MediaType.valueOf("image/webp"));
+        String webpPath = directoryPathBuilder.getTranscodedPath(userId, imageAlbum, fileName, null, "webp");
+        String jpegPath = directoryPathBuilder.getTranscodedPath(userId, imageAlbum, fileName, null, "jpeg");
+        ImageHolder expectedResult = mock(ImageHolder.class);
+        when(renditionService.getTranscodedPaths(userId, imageAlbum, fileName, null, accepted))
+                .thenReturn(asList(webpPath, jpegPath));
+        when(imageHandler.download(webpPath)).thenThrow(FileNotFoundException.class);
+        when(imageHandler.download(jpegPath)).thenReturn(expectedResult);
+
+        assertThat(photoService.downloadImage(userId, imageAlbum, fileName, null, accepted)).isEqualTo(expectedResult);
+        verify(imageHandler, never()).download(directoryPathBuilder.getImagePath(userId, imageAlbum, fileName));
+    }
+
     @Test
     public void deleteImageThrowsIllegalArgumentExceptionOnNullUserId() {
         expectedException.expect(IllegalArgumentException.class);
@@ -291,11 +486,126 @@ public class PhotoServiceTest {
     @Test
     public void deleteImageOnValidInputData() {
         String pathToFile = directoryPathBuilder.getImagePath(userId, imageAlbum, fileName);
-        File file = mock(File.class);
-        when(imageHandler.prepareFile(pathToFile)).thenReturn(file);
 
         photoService.deleteImage(userId, imageAlbum, fileName);
-        verify(file, times(1)).delete();
+        verify(imageHandler, times(1)).delete(pathToFile);
+        verify(renditionService, times(1)).deleteRenditions(userId, imageAlbum, fileName);
+        verify(metadataIndex, times(1)).removeImage(userId, imageAlbum, fileName);
     }
 
-}
\ No newline at end of file
+    @Test
+    public void deleteAlbumMovesItToTheTrashWithItsHashes() throws IOException {
+        when(imageHandler.exists(directoryPathBuilder.getAlbumPath(userId, imageAlbum))).thenReturn(true);
+        when(metadataIndex.getImages(userId, imageAlbum)).thenReturn(asList(
+                new ImageMetadata(fileName, 2, "image/png", 1, 1, 1L, 2L),
+                new ImageMetadata("unhashed", 3, "image/png", 1, 1, 1L, 2L)));
+        when(similarityIndex.getHash(userId, imageAlbum, fileName)).thenReturn(7L);
+        when(similarityIndex.getHash(userId, imageAlbum, "unhashed")).thenReturn(null);
+
+        photoService.deleteAlbum(userId, imageAlbum);
+
+        verify(trashService).trash(userId, imageAlbum, Collections.singletonMap(fileName, 7L));
+        verify(imageHandler, never()).deleteDirectory(anyString());
+        verify(metadataIndex).removeAlbum(userId, imageAlbum);
+        verify(similarityIndex).removeAlbum(userId, imageAlbum);
+        verify(quotaService).stored(userId, -5);
+    }
+
+    @Test
+    public void restoreAlbumIndexesItsImagesAgain() throws IOException {
+        String trashId = "1~" + imageAlbum;
+        Map<String, Long> hashes = Collections.singletonMap(fileName, 7L);
+        when(trashService.getAlbum(trashId)).thenReturn(imageAlbum);
+        when(trashService.restore(userId, trashId)).thenReturn(hashes);
+        when(imageHandler.list(directoryPathBuilder.getAlbumPath(userId, imageAlbum)))
+                .thenReturn(asList(fileName, "unhashed"));
+
+        photoService.restoreAlbum(userId, trashId);
+
+        verify(metadataIndex).putAlbum(userId, imageAlbum);
+        verify(metadataIndex, times(2)).putImage(eq(userId), eq(imageAlbum), any());
+        verify(similarityIndex).putImage(userId, imageAlbum, fileName, 7L);
+        verify(renditionService).schedule(userId, imageAlbum, "unhashed");
+        verify(quotaService).stored(userId, 6);
+    }
+
+    @Test
+    public void restoreAlbumThrowsIllegalArgumentExceptionWhenAlbumExists() throws IOException {
+        String trashId = "1~" + imageAlbum;
+        when(trashService.getAlbum(trashId)).thenReturn(imageAlbum);
+        when(imageHandler.exists(directoryPathBuilder.getAlbumPath(userId, imageAlbum))).thenReturn(true);
+
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage(format("Album: %s is already exists.", imageAlbum));
+        try {
+            photoService.restoreAlbum(userId, trashId);
+        } finally {
+            verify(trashService, never()).restore(anyString(), anyString());
+        }
+    }
+
+    @Test
+    public void getUserPhotosReadsNamesFromIndex() {
+        when(metadataIndex.getImages(userId, imageAlbum)).thenReturn(asList(
+                new ImageMetadata("first.png", 1, "image/png", 1, 1, 0, 0),
+                new ImageMetadata("second.png", 1, "image/png", 1, 1, 0, 0)));
+
+        assertThat(photoService.getUserPhotos(userId, imageAlbum)).containsExactly("first.png", "second.png");
+    }
+
+    @Test
+    public void getUserPhotosResolvesDefaultAlbum() {
+        photoService.getUserPhotos(userId, null);
+        verify(metadataIndex, times(1)).getImages(userId, defaultAlbum);
+    }
+
+
+    @Test
+    public void getUserPhotosThrowsIllegalArgumentExceptionOnTooLargeLimit() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("limit should be between 1 and 1000.");
+
+        photoService.getUserPhotos(userId, imageAlbum, new PhotoQuery(PhotoSort.NAME, false, null, null, 1001));
+    }
+
+    @Test
+    public void getUserPhotosFiltersIndexedPageByMimeType() {
+        ImageMetadata png = new ImageMetadata("a.png", 1, "image/png", 1, 1, 1, 1);
+        ImageMetadata jpeg = new ImageMetadata("b.jpg", 1, "image/jpeg", 1, 1, 1, 1);
+        ImageMetadata after = PhotoSort.DATE.fromCursor(PhotoSort.DATE.toCursor(png));
+        when(metadataIndex.getImages(userId, imageAlbum, PhotoSort.DATE, true, after))
+                .thenReturn(Stream.of(png, jpeg));
+
+        PhotoQuery query = new PhotoQuery(PhotoSort.DATE, true, PhotoSort.DATE.toCursor(png), "image/jpeg", 10);
+
+        assertThat(photoService.getUserPhotos(userId, imageAlbum, query).collect(toList())).containsExactly(jpeg);
+    }
+
+    @Test
+    public void getArchiveImagesThrowsIllegalArgumentExceptionOnUnknownImage() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage(format("Image: %s wasn't found in album: %s for user: %s.", fileName, imageAlbum, userId));
+
+        photoService.getArchiveImages(userId, imageAlbum, asList(fileName));
+    }
+
+    @Test
+    public void getArchiveImagesReturnsWholeAlbumWithoutSelection() {
+        when(metadataIndex.getImages(userId, imageAlbum))
+                .thenReturn(asList(new ImageMetadata(fileName, 1, "image/png", 1, 1, 1, 1)));
+
+        assertThat(photoService.getArchiveImages(userId, imageAlbum, null)).containsExactly(fileName);
+    }
+
+    @Test
+    public void getSimilarPhotosLeavesOutTheImageItself() {
+        when(metadataIndex.getImage(userId, imageAlbum, fileName))
+                .thenReturn(new ImageMetadata(fileName, 1, "image/png", 1, 1, 1, 1));
+        when(similarityIndex.getHash(userId, imageAlbum, fileName)).thenReturn(7L);
+        SimilarImage burst = new SimilarImage(imageAlbum, "burst", 2);
+        when(similarityIndex.findSimilar(userId, 7L, 10))
+                .thenReturn(asList(new SimilarImage(imageAlbum, fileName, 0), burst));
+
+        assertThat(photoService.getSimilarPhotos(userId, imageAlbum, fileName, 10)).containsExactly(burst);
+    }
+}
@@ -0,0 +1,86 @@
+package com.vitalsport.photos.service;
+
+import com.vitalsport.photos.index.MetadataIndex;
+import com.vitalsport.photos.model.ImageMetadata;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+public class QuotaServiceTest {
+
+    private static final String userId = "userId";
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private MetadataIndex metadataIndex;
+
+    @Before
+    public void setUp() {
+        metadataIndex = mock(MetadataIndex.class);
+        when(metadataIndex.getAlbums(userId)).thenReturn(singletonList("album"));
+        when(metadataIndex.getImages(userId, "album")).thenReturn(asList(
+                new ImageMetadata("a.png", 40, "image/png", 1, 1, 1L, 2L),
+                new ImageMetadata("b.png", 50, "image/png", 1, 1, 1L, 2L)));
+    }
+
+    @Test
+    public void checkStorageCountsIndexedImagesOnceAndTracksChanges() {
+        QuotaService quotaService = new QuotaService(metadataIndex, 100, 0, 0, 10);
+
+        quotaService.checkStorage(userId, 10, 0);
+        quotaService.checkStorage(userId, 60, 50);
+        quotaService.stored(userId, 10);
+        quotaService.stored(userId, -40);
+        quotaService.checkStorage(userId, 40, 0);
+        verify(metadataIndex, times(1)).getAlbums(userId);
+
+        quotaService.stored(userId, 1);
+        expectedException.expect(QuotaExceededException.class);
+        quotaService.checkStorage(userId, 40, 0);
+    }
+
+    @Test
+    public void reserveCountsBytesBeforeTheyAreStored() {
+        QuotaService quotaService = new QuotaService(metadataIndex, 100, 0, 0, 10);
+
+        assertThat(quotaService.reserve(userId, 6, 0)).isEqualTo(6);
+        assertThat(quotaService.reserve(userId, 4, 0)).isEqualTo(4);
+        try {
+            quotaService.reserve(userId, 1, 0);
+            throw new AssertionError("Reservation over the quota succeeded");
+        } catch (QuotaExceededException exception) {
+            assertThat(exception).hasMessageContaining("100 of 100 bytes");
+        }
+
+        quotaService.release(userId, 4);
+        quotaService.stored(userId, 5 - 6);
+        assertThat(quotaService.reserve(userId, 5, 0)).isEqualTo(5);
+        expectedException.expect(QuotaExceededException.class);
+        quotaService.checkStorage(userId, 2, 0);
+    }
+
+    @Test
+    public void acquireUploadThrottlesAfterBurst() {
+        QuotaService quotaService = new QuotaService(metadataIndex, 0, 0.001, 3, 1);
+
+        for (int i = 0; i < 3; i++) {
+            quotaService.acquireUpload(userId);
+        }
+        try {
+            quotaService.acquireUpload(userId);
+            throw new AssertionError("Upload wasn't throttled");
+        } catch (RateLimitExceededException exception) {
+            assertThat(exception.getRetryAfter()).isGreaterThan(900);
+        }
+
+        expectedException.expect(RateLimitExceededException.class);
+        quotaService.acquireUpload("other");
+    }
+}
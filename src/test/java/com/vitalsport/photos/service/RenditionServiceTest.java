@@ -0,0 +1,167 @@
+package com.vitalsport.photos.service;
+
+import com.vitalsport.photos.builder.DirectoryPathBuilder;
+import com.vitalsport.photos.index.MetadataIndex;
+import com.vitalsport.photos.index.SimilarityIndex;
+import com.vitalsport.photos.io.BaseImageHandler;
+import com.vitalsport.photos.io.ImageScaler;
+import com.vitalsport.photos.model.ImageMetadata;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.http.MediaType;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Random;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RenditionServiceTest {
+
+    private static final String userId = "userId";
+    private static final String album = "album";
+    private static final String[] formats = {"image/webp", "image/jpeg"};
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private DirectoryPathBuilder directoryPathBuilder;
+    private RenditionService renditionService;
+
+    @Before
+    public void setUp() {
+        String root = temporaryFolder.getRoot().getPath() + "/";
+        directoryPathBuilder = new DirectoryPathBuilder(root + "photos/", "all/", root + "renditions/");
+        renditionService = new RenditionService(directoryPathBuilder, new BaseImageHandler(), new ImageScaler(),
+                mock(SimilarityIndex.class), mock(MetadataIndex.class), new AlbumLocks(1), new int[]{64}, 1, 1, 1,
+                formats, 0.5f);
+    }
+
+    @After
+    public void tearDown() {
+        renditionService.shutdown();
+    }
+
+    @Test
+    public void createRenditionsTranscodesJpegRenditionsButKeepsTheOriginal() throws IOException {
+        File original = new File(directoryPathBuilder.getImagePath(userId, album, "image.jpg"));
+        original.getParentFile().mkdirs();
+        ImageIO.write(noise(200, 100), "jpeg", original);
+
+        renditionService.createRenditions(userId, album, "image.jpg");
+
+        File full = new File(directoryPathBuilder.getTranscodedPath(userId, album, "image.jpg", null, "jpeg"));
+        File scaled = new File(directoryPathBuilder.getTranscodedPath(userId, album, "image.jpg", 64, "jpeg"));
+        assertThat(full).doesNotExist();
+        assertThat(scaled).exists();
+        assertThat(ImageIO.read(scaled).getWidth()).isEqualTo(64);
+    }
+
+    @Test
+    public void createRenditionsTurnsImagesUprightByTheirOrientation() throws IOException {
+        String path = directoryPathBuilder.getImagePath(userId, album, "image.jpg");
+        File original = new File(path);
+        original.getParentFile().mkdirs();
+        ImageIO.write(noise(200, 100), "jpeg", original);
+        BaseImageHandler imageHandler = spy(new BaseImageHandler());
+        doReturn(new ImageMetadata("image.jpg", original.length(), "image/jpeg", 200, 100, 1L, 2L, null, 6, null))
+                .when(imageHandler).readMetadata(path);
+        RenditionService service = new RenditionService(directoryPathBuilder, imageHandler, new ImageScaler(),
+                mock(SimilarityIndex.class), mock(MetadataIndex.class), new AlbumLocks(1), new int[]{64}, 1, 1, 1,
+                formats, 0.5f);
+
+        try {
+            service.createRenditions(userId, album, "image.jpg");
+        } finally {
+            service.shutdown();
+        }
+
+        BufferedImage scaled = ImageIO.read(
+                new File(directoryPathBuilder.getTranscodedPath(userId, album, "image.jpg", 64, "jpeg")));
+        assertThat(scaled.getWidth()).isEqualTo(32);
+        assertThat(scaled.getHeight()).isEqualTo(64);
+    }
+
+    @Test
+    public void getTranscodedPathsOffersOnlyExplicitlyAcceptedFormatsBesidesTheOriginalOne() {
+        ImageScaler imageScaler = spy(new ImageScaler());
+        when(imageScaler.canWrite(anyString())).thenReturn(true);
+        RenditionService service = new RenditionService(directoryPathBuilder, new BaseImageHandler(), imageScaler,
+                mock(SimilarityIndex.class), mock(MetadataIndex.class), new AlbumLocks(1), new int[]{64, 512}, 1, 1,
+                1, formats, 0.5f);
+        try {
+            assertThat(service.getTranscodedPaths(userId, album, "image.jpg", 100,
+                    singletonList(MediaType.valueOf("image/*"))))
+                    .containsExactly(directoryPathBuilder.getTranscodedPath(userId, album, "image.jpg", 512, "jpeg"));
+            assertThat(service.getTranscodedPaths(userId, album, "image.jpg", null,
+                    asList(MediaType.valueOf("image/webp"), MediaType.ALL)))
+                    .containsExactly(directoryPathBuilder.getTranscodedPath(userId, album, "image.jpg", null, "webp"));
+            assertThat(service.getTranscodedPaths(userId, album, "image.jpg", null, Collections.emptyList()))
+                    .isEmpty();
+            assertThat(service.getTranscodedPaths(userId, album, "image.jpg", null,
+                    asList(MediaType.valueOf("image/webp;q=0.5"), MediaType.valueOf("image/jpeg"))))
+                    .isEmpty();
+            assertThat(service.getTranscodedPaths(userId, album, "image.png", null,
+                    singletonList(MediaType.valueOf("image/webp;q=0"))))
+                    .isEmpty();
+        } finally {
+            service.shutdown();
+        }
+    }
+
+    @Test
+    public void backfillSchedulesImagesWithoutHashesButNotUndecodableOnes() throws IOException {
+        File broken = new File(directoryPathBuilder.getImagePath(userId, album, "broken.jpg"));
+        broken.getParentFile().mkdirs();
+        Files.write(broken.toPath(), new byte[]{1, 2, 3});
+        ImageIO.write(noise(200, 100), "jpeg", new File(directoryPathBuilder.getImagePath(userId, album, "image.jpg")));
+        SimilarityIndex similarityIndex = mock(SimilarityIndex.class);
+        when(similarityIndex.getHash(anyString(), anyString(), anyString())).thenReturn(null);
+        MetadataIndex metadataIndex = mock(MetadataIndex.class);
+        when(metadataIndex.getUsers()).thenReturn(singletonList(userId));
+        when(metadataIndex.getAlbums(userId)).thenReturn(singletonList(album));
+        when(metadataIndex.getImages(userId, album)).thenReturn(asList(
+                new ImageMetadata("broken.jpg", 3, "image/jpeg", 0, 0, 1L, 2L),
+                new ImageMetadata("image.jpg", 1, "image/jpeg", 200, 100, 1L, 2L)));
+        RenditionService service = new RenditionService(directoryPathBuilder, new BaseImageHandler(),
+                new ImageScaler(), similarityIndex, metadataIndex, new AlbumLocks(1), new int[]{64}, 1, 10, 10,
+                formats, 0.5f);
+        try {
+            assertThat(service.backfill()).isEqualTo(2);
+            verify(similarityIndex, timeout(5000)).putImage(eq(userId), eq(album), eq("image.jpg"), anyLong());
+
+            assertThat(service.backfill()).isEqualTo(1);
+        } finally {
+            service.shutdown();
+        }
+    }
+
+    private BufferedImage noise(int width, int height) {
+        Random random = new Random(7);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                image.setRGB(x, y, random.nextInt(0xffffff));
+            }
+        }
+        return image;
+    }
+}
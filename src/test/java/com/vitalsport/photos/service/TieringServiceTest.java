@@ -0,0 +1,137 @@
+package com.vitalsport.photos.service;
+
+import com.vitalsport.photos.builder.DirectoryPathBuilder;
+import com.vitalsport.photos.index.MetadataIndex;
+import com.vitalsport.photos.io.BaseImageHandler;
+import com.vitalsport.photos.io.ImageHandler;
+import com.vitalsport.photos.io.ImageScaler;
+import com.vitalsport.photos.io.TieringImageHandler;
+import com.vitalsport.photos.model.ImageMetadata;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.AdditionalAnswers.delegatesTo;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class TieringServiceTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private DirectoryPathBuilder directoryPathBuilder;
+    private TieringImageHandler tieringImageHandler;
+    private TieringService tieringService;
+
+    @Before
+    public void setUp() throws IOException {
+        String root = temporaryFolder.getRoot().getPath() + "/";
+        directoryPathBuilder = new DirectoryPathBuilder(root + "photos/", "all/", root + "renditions/");
+        tieringImageHandler = new TieringImageHandler(new BaseImageHandler(),
+                temporaryFolder.newFolder("cold").getPath(), 60000);
+        tieringService = new TieringService(directoryPathBuilder, tieringImageHandler, tieringImageHandler,
+                new ImageScaler(), mock(MetadataIndex.class), mock(QuotaService.class), new AlbumLocks(1),
+                TimeUnit.DAYS.toMillis(30), false, 0.85f, 10);
+    }
+
+    @After
+    public void tearDown() {
+        tieringImageHandler.shutdown();
+    }
+
+    @Test
+    public void onlyImagesUnusedForLongerThanTheThresholdAreDemoted() throws IOException {
+        Path cold = write("cold.png", TimeUnit.DAYS.toMillis(31));
+        Path read = write("read.png", TimeUnit.DAYS.toMillis(31));
+        Files.setAttribute(read, "lastAccessTime", FileTime.fromMillis(System.currentTimeMillis()));
+        Path recent = write("recent.png", 0);
+
+        assertThat(tieringService.demote()).isEqualTo(1);
+        assertThat(tieringService.demote()).isZero();
+
+        assertThat(Files.isSymbolicLink(cold)).isTrue();
+        assertThat(Files.isSymbolicLink(read)).isFalse();
+        assertThat(Files.isSymbolicLink(recent)).isFalse();
+    }
+
+    @Test
+    public void recompressedOriginalsKeepTheirExifAndAreWrittenThroughTheStorageChain() throws IOException {
+        ImageHandler imageHandler = mock(ImageHandler.class, delegatesTo(tieringImageHandler));
+        MetadataIndex metadataIndex = mock(MetadataIndex.class);
+        QuotaService quotaService = mock(QuotaService.class);
+        TieringService service = new TieringService(directoryPathBuilder, tieringImageHandler, imageHandler,
+                new ImageScaler(), metadataIndex, quotaService, new AlbumLocks(1), TimeUnit.DAYS.toMillis(30), true,
+                0.5f, 10);
+        byte[] original = jpegWithOrientation(6);
+        Path image = write("image.jpg", original, TimeUnit.DAYS.toMillis(31));
+
+        assertThat(service.demote()).isEqualTo(1);
+
+        assertThat(Files.isSymbolicLink(image)).isTrue();
+        assertThat(Files.size(image)).isLessThan(original.length);
+        verify(imageHandler).upload(eq(image.toString()), any(byte[].class));
+        ArgumentCaptor<ImageMetadata> metadata = ArgumentCaptor.forClass(ImageMetadata.class);
+        verify(metadataIndex).putImage(eq("userId"), eq("album"), metadata.capture());
+        assertThat(metadata.getValue().getOrientation()).isEqualTo(6);
+        verify(quotaService).stored("userId", Files.size(image) - original.length);
+    }
+
+    /**
+     * A noisy JPEG at full quality with an APP1 segment holding only the orientation.
+     */
+    private byte[] jpegWithOrientation(int orientation) throws IOException {
+        BufferedImage noise = new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(1);
+        for (int x = 0; x < noise.getWidth(); x++) {
+            for (int y = 0; y < noise.getHeight(); y++) {
+                noise.setRGB(x, y, random.nextInt());
+            }
+        }
+        byte[] image = new ImageScaler().write(noise, "image/jpeg", 1f);
+        ByteBuffer tiff = ByteBuffer.allocate(26).order(ByteOrder.LITTLE_ENDIAN);
+        tiff.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(8);
+        tiff.putShort((short) 1).putShort((short) 0x0112).putShort((short) 3).putInt(1).putInt(orientation);
+        tiff.putInt(0);
+        int length = 2 + 6 + tiff.capacity();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        output.write(image, 0, 2);
+        output.write(new byte[]{(byte) 0xFF, (byte) 0xE1, (byte) (length >> 8), (byte) length});
+        output.write(new byte[]{'E', 'x', 'i', 'f', 0, 0});
+        output.write(tiff.array());
+        output.write(image, 2, image.length - 2);
+        return output.toByteArray();
+    }
+
+    private Path write(String image, long age) throws IOException {
+        return write(image, new byte[]{1}, age);
+    }
+
+    private Path write(String image, byte[] content, long age) throws IOException {
+        Path path = Paths.get(directoryPathBuilder.getImagePath("userId", "album", image));
+        Files.createDirectories(path.getParent());
+        Files.write(path, content);
+        FileTime time = FileTime.fromMillis(System.currentTimeMillis() - age);
+        Files.setLastModifiedTime(path, time);
+        Files.setAttribute(path, "lastAccessTime", time);
+        return path;
+    }
+}
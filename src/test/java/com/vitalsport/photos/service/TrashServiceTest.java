@@ -0,0 +1,95 @@
+package com.vitalsport.photos.service;
+
+import com.vitalsport.photos.builder.DirectoryPathBuilder;
+import com.vitalsport.photos.io.BaseImageHandler;
+import com.vitalsport.photos.model.TrashedAlbum;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TrashServiceTest {
+
+    private static final String userId = "userId";
+    private static final String album = "album";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private DirectoryPathBuilder directoryPathBuilder;
+    private BaseImageHandler imageHandler;
+
+    @Before
+    public void setUp() throws IOException {
+        String root = temporaryFolder.getRoot().getPath() + "/";
+        directoryPathBuilder = new DirectoryPathBuilder(root + "photos/", "all/", root + "renditions/");
+        imageHandler = new BaseImageHandler();
+        for (String name : new String[]{"first.png", "second.png", "third.png"}) {
+            imageHandler.upload(directoryPathBuilder.getImagePath(userId, album, name), new byte[]{1});
+        }
+        imageHandler.upload(directoryPathBuilder.getRenditionPath(userId, album, "first.png", 128), new byte[]{1});
+    }
+
+    @Test
+    public void trashedAlbumIsRestoredWithItsRenditionsAndHashes() throws IOException {
+        TrashService trashService = new TrashService(directoryPathBuilder, imageHandler, 60000, 100, 1000);
+
+        String trashId = trashService.trash(userId, album, Collections.singletonMap("first.png", 7L));
+
+        assertThat(new File(directoryPathBuilder.getAlbumPath(userId, album))).doesNotExist();
+        assertThat(new File(directoryPathBuilder.getAlbumRenditionsPath(userId, album))).doesNotExist();
+        List<TrashedAlbum> trash = trashService.list(userId);
+        assertThat(trash).hasSize(1);
+        assertThat(trash.get(0).getId()).isEqualTo(trashId);
+        assertThat(trash.get(0).getAlbum()).isEqualTo(album);
+        assertThat(trash.get(0).getExpires()).isEqualTo(trash.get(0).getDeleted() + 60000);
+        assertThat(trashService.reclaim()).isZero();
+
+        Map<String, Long> hashes = trashService.restore(userId, trashId);
+
+        assertThat(hashes).isEqualTo(Collections.singletonMap("first.png", 7L));
+        assertThat(new File(directoryPathBuilder.getAlbumPath(userId, album)).list())
+                .containsOnly("first.png", "second.png", "third.png");
+        assertThat(new File(directoryPathBuilder.getRenditionPath(userId, album, "first.png", 128))).exists();
+        assertThat(trashService.list(userId)).isEmpty();
+    }
+
+    @Test
+    public void expiredAlbumIsReclaimedInBatches() throws IOException, InterruptedException {
+        TrashService trashService = new TrashService(directoryPathBuilder, imageHandler, 0, 3, 1000);
+        String trashId = trashService.trash(userId, album, Collections.emptyMap());
+        Thread.sleep(5);
+
+        assertThat(trashService.reclaim()).isEqualTo(3);
+        assertThat(trashService.list(userId)).isEmpty();
+        assertThat(trashService.reclaim()).isEqualTo(3);
+        assertThat(trashService.reclaim()).isEqualTo(2);
+        assertThat(trashService.reclaim()).isZero();
+
+        assertThat(new File(directoryPathBuilder.getTrashPath(userId)).list()).isEmpty();
+        assertThat(new File(directoryPathBuilder.getTrashedRenditionsPath(userId, trashId)).getParentFile().list())
+                .isEmpty();
+    }
+
+    @Test
+    public void reclaimFindsShardedUsersThroughStorage() throws IOException, InterruptedException {
+        String root = temporaryFolder.getRoot().getPath() + "/";
+        DirectoryPathBuilder sharded = new DirectoryPathBuilder(root + "photos/", "all/", root + "renditions/", 2,
+                root + "sharded/", root + "sharded-renditions/");
+        imageHandler.upload(sharded.getImagePath("other", album, "first.png"), new byte[]{1});
+        TrashService trashService = new TrashService(sharded, imageHandler, 0, 0, 1000);
+        trashService.trash("other", album, Collections.emptyMap());
+        Thread.sleep(5);
+
+        assertThat(trashService.reclaim()).isEqualTo(3);
+        assertThat(new File(sharded.getTrashPath("other")).list()).isEmpty();
+    }
+}
@@ -0,0 +1,168 @@
+package com.vitalsport.photos.service;
+
+import com.vitalsport.photos.model.UploadStatus;
+import com.vitalsport.photos.validator.InputValidator;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+public class UploadSessionServiceTest {
+
+    private static final String userId = "userId";
+    private static final String album = "album";
+    private static final String fileName = "image.png";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private PhotoLoader photoService;
+    private UploadSessionService uploadSessionService;
+
+    @Before
+    public void setUp() {
+        photoService = mock(PhotoLoader.class);
+        uploadSessionService = new UploadSessionService(photoService, new InputValidator(), mock(QuotaService.class),
+                temporaryFolder.getRoot().getPath(), 100, 60000);
+    }
+
+    @Test
+    public void writeTracksChunksReceivedOutOfOrder() {
+        String id = uploadSessionService.initiate(userId, album, fileName, "image/png", 10).getId();
+
+        uploadSessionService.write(userId, id, 6, chunk(6, 4));
+        UploadStatus status = uploadSessionService.write(userId, id, 0, chunk(0, 3));
+
+        assertThat(status.getReceived()).containsExactly("0-2", "6-9");
+        assertThat(status.isComplete()).isFalse();
+
+        status = uploadSessionService.write(userId, id, 2, chunk(2, 4));
+
+        assertThat(status.getReceived()).containsExactly("0-9");
+        assertThat(status.isComplete()).isTrue();
+    }
+
+    @Test
+    public void writeKeepsBytesReceivedBeforeConnectionDropped() {
+        String id = uploadSessionService.initiate(userId, album, fileName, "image/png", 10).getId();
+        InputStream dropping = new ByteArrayInputStream(new byte[]{0, 1, 2, 3}) {
+            @Override
+            public synchronized int read(byte[] bytes, int offset, int length) {
+                int read = super.read(bytes, offset, length);
+                if (read == -1) {
+                    throw new IllegalStateException("connection reset");
+                }
+                return read;
+            }
+        };
+
+        try {
+            uploadSessionService.write(userId, id, 0, dropping);
+        } catch (IllegalStateException exception) {
+            // the client resumes from the reported ranges
+        }
+
+        assertThat(uploadSessionService.status(userId, id).getReceived()).containsExactly("0-3");
+    }
+
+    @Test
+    public void commitMovesCompleteFileIntoAlbum() throws IOException {
+        String id = uploadSessionService.initiate(userId, album, fileName, "image/png", 4).getId();
+        uploadSessionService.write(userId, id, 0, chunk(0, 4));
+        doAnswer(invocation -> {
+            Path file = (Path) invocation.getArguments()[3];
+            assertThat(Files.readAllBytes(file)).isEqualTo(new byte[]{0, 1, 2, 3});
+            return null;
+        }).when(photoService).uploadImage(eq(userId), eq(album), eq(fileName), any(Path.class));
+
+        uploadSessionService.commit(userId, id);
+
+        verify(photoService).uploadImage(eq(userId), eq(album), eq(fileName), any(Path.class));
+    }
+
+    @Test
+    public void writeThrowsIllegalArgumentExceptionWhileSessionIsCommitted() {
+        String id = uploadSessionService.initiate(userId, album, fileName, "image/png", 4).getId();
+        uploadSessionService.write(userId, id, 0, chunk(0, 4));
+        doAnswer(invocation -> uploadSessionService.write(userId, id, 0, chunk(0, 4)))
+                .when(photoService).uploadImage(eq(userId), eq(album), eq(fileName), any(Path.class));
+
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Upload session: " + id + " is being committed.");
+
+        uploadSessionService.commit(userId, id);
+    }
+
+    @Test
+    public void sessionsAreRestoredAfterRestart() throws IOException {
+        String id = uploadSessionService.initiate(userId, album, fileName, "image/png", 10).getId();
+        uploadSessionService.write(userId, id, 0, chunk(0, 3));
+        uploadSessionService.write(userId, id, 6, chunk(6, 4));
+
+        uploadSessionService = new UploadSessionService(photoService, new InputValidator(), mock(QuotaService.class),
+                temporaryFolder.getRoot().getPath(), 100, 60000);
+        uploadSessionService.open();
+        uploadSessionService.sweep();
+        uploadSessionService.write(userId, id, 3, chunk(3, 3));
+        uploadSessionService.commit(userId, id);
+
+        verify(photoService).uploadImage(eq(userId), eq(album), eq(fileName), any(Path.class));
+    }
+
+    @Test
+    public void commitThrowsIllegalArgumentExceptionOnMissingBytes() {
+        String id = uploadSessionService.initiate(userId, album, fileName, "image/png", 4).getId();
+        uploadSessionService.write(userId, id, 1, chunk(1, 3));
+
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("is missing bytes.");
+
+        uploadSessionService.commit(userId, id);
+    }
+
+    @Test
+    public void statusThrowsIllegalArgumentExceptionForOtherUser() {
+        String id = uploadSessionService.initiate(userId, album, fileName, "image/png", 4).getId();
+
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Upload session: " + id + " wasn't found.");
+
+        uploadSessionService.status("otherUser", id);
+    }
+
+    @Test
+    public void sweepRemovesStaleSessions() throws IOException {
+        uploadSessionService = new UploadSessionService(photoService, new InputValidator(), mock(QuotaService.class),
+                temporaryFolder.getRoot().getPath(), 100, -1);
+        String id = uploadSessionService.initiate(userId, album, fileName, "image/png", 4).getId();
+
+        uploadSessionService.sweep();
+
+        assertThat(temporaryFolder.getRoot().list()).isEmpty();
+        expectedException.expect(IllegalArgumentException.class);
+        uploadSessionService.status(userId, id);
+    }
+
+    private InputStream chunk(int from, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (from + i);
+        }
+        return new ByteArrayInputStream(bytes);
+    }
+}
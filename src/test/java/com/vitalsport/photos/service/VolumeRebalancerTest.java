@@ -0,0 +1,119 @@
+package com.vitalsport.photos.service;
+
+import com.vitalsport.photos.builder.DirectoryPathBuilder;
+import com.vitalsport.photos.builder.VolumeRing;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.IntStream;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class VolumeRebalancerTest {
+
+    private static final String album = "album";
+    private static final String image = "image.png";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private String first;
+    private String second;
+    private VolumeRing volumeRing;
+
+    @Before
+    public void setUp() {
+        first = new File(temporaryFolder.getRoot(), "first").getPath();
+        second = new File(temporaryFolder.getRoot(), "second").getPath();
+        volumeRing = new VolumeRing(asList(first, second), 16);
+    }
+
+    @Test
+    public void usersResolveToTheirPreviousVolumeUntilMoved() throws IOException {
+        String userId = userOwnedBy(second + "/");
+        write(Paths.get(builder(singletonList(first)).getImagePath(userId, album, image)));
+        write(Paths.get(builder(singletonList(first)).getRenditionPath(userId, album, image, 128)));
+        DirectoryPathBuilder directoryPathBuilder = builder(asList(first, second));
+        VolumeRebalancer volumeRebalancer = new VolumeRebalancer(directoryPathBuilder, new AlbumLocks(16), 10);
+
+        assertThat(directoryPathBuilder.getImagePath(userId, album, image)).startsWith(first);
+
+        assertThat(volumeRebalancer.rebalance()).isEqualTo(2);
+        assertThat(volumeRebalancer.rebalance()).isEqualTo(0);
+
+        assertThat(Paths.get(directoryPathBuilder.getImagePath(userId, album, image)))
+                .startsWith(Paths.get(second)).exists();
+        assertThat(Paths.get(directoryPathBuilder.getRenditionPath(userId, album, image, 128)))
+                .startsWith(Paths.get(second)).exists();
+        assertThat(Files.walk(Paths.get(first)).filter(Files::isRegularFile).count()).isZero();
+        assertThat(directoryPathBuilder.getUserPaths()).extracting(path -> path.getFileName().toString())
+                .containsOnly(userId);
+    }
+
+    @Test
+    public void usersOwnedByTheirVolumeStay() throws IOException {
+        String userId = userOwnedBy(first + "/");
+        DirectoryPathBuilder directoryPathBuilder = builder(asList(first, second));
+        write(Paths.get(directoryPathBuilder.getImagePath(userId, album, image)));
+
+        assertThat(new VolumeRebalancer(directoryPathBuilder, new AlbumLocks(16), 10).rebalance()).isZero();
+        assertThat(Paths.get(directoryPathBuilder.getImagePath(userId, album, image))).startsWith(Paths.get(first));
+    }
+
+    @Test
+    public void usersAreMovedOnlyOnceNoAlbumOfTheirsIsInUse() throws Exception {
+        String userId = userOwnedBy(second + "/");
+        write(Paths.get(builder(singletonList(first)).getImagePath(userId, album, image)));
+        DirectoryPathBuilder directoryPathBuilder = builder(asList(first, second));
+        AlbumLocks albumLocks = new AlbumLocks(16);
+        VolumeRebalancer volumeRebalancer = new VolumeRebalancer(directoryPathBuilder, albumLocks, 10);
+
+        Lock upload = albumLocks.shared(userId, "other");
+        upload.lock();
+        CompletableFuture<Integer> moved = CompletableFuture.supplyAsync(() -> {
+            try {
+                return volumeRebalancer.rebalance();
+            } catch (IOException exception) {
+                throw new UncheckedIOException(exception);
+            }
+        });
+        Thread.sleep(100);
+        assertThat(moved.isDone()).isFalse();
+        assertThat(directoryPathBuilder.getImagePath(userId, album, image)).startsWith(first);
+
+        upload.unlock();
+        assertThat(moved.get(10, TimeUnit.SECONDS)).isEqualTo(1);
+        assertThat(directoryPathBuilder.getImagePath(userId, album, image)).startsWith(second);
+    }
+
+    private DirectoryPathBuilder builder(List<String> volumes) {
+        String root = temporaryFolder.getRoot().getPath() + "/";
+        return new DirectoryPathBuilder(root + "photos/", "all/", root + "renditions/", 2, "photos-sharded/",
+                "renditions-sharded/", new VolumeRing(volumes, 16));
+    }
+
+    private String userOwnedBy(String volume) {
+        return IntStream.range(0, 100).mapToObj(user -> "user" + user)
+                .filter(userId -> volumeRing.getOwner(userId).equals(volume))
+                .findFirst().get();
+    }
+
+    private void write(Path path) throws IOException {
+        Files.createDirectories(path.getParent());
+        Files.write(path, new byte[]{1});
+    }
+}
@@ -0,0 +1,42 @@
+package com.vitalsport.photos.web;
+
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.ServletException;
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class InFlightRequestsFilterTest {
+
+    private final InFlightRequestsFilter filter = new InFlightRequestsFilter();
+
+    @Test
+    public void peakIsKeptAcrossReadsUntilTwoWindowsPassed() throws ServletException, IOException {
+        filter.doFilter(new MockHttpServletRequest(), new MockHttpServletResponse(),
+                (request, response) -> filter.doFilter(new MockHttpServletRequest(), new MockHttpServletResponse(),
+                        (nestedRequest, nestedResponse) -> {
+                        }));
+
+        assertThat(peak()).isEqualTo(2);
+        assertThat(peak()).isEqualTo(2);
+
+        filter.rollPeak();
+        assertThat(peak()).isEqualTo(2);
+
+        filter.rollPeak();
+        assertThat(peak()).isEqualTo(0);
+    }
+
+    private Object peak() {
+        for (Metric<?> metric : filter.metrics()) {
+            if (metric.getName().equals("photos.requests.inflight.peak")) {
+                return metric.getValue();
+            }
+        }
+        throw new AssertionError("No peak metric");
+    }
+}
@@ -1,5 +1,276 @@
 package com.vitalsport.photos.web;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.vitalsport.photos.builder.ImageResponseBuilder;
+import com.vitalsport.photos.io.ZipArchiveWriter;
+import com.vitalsport.photos.model.ImageHolder;
+import com.vitalsport.photos.model.ImageMetadata;
+import com.vitalsport.photos.model.PhotoQuery;
+import com.vitalsport.photos.model.PhotoSort;
+import com.vitalsport.photos.service.BatchUploadService;
+import com.vitalsport.photos.service.PhotoService;
+import com.vitalsport.photos.service.UploadSessionService;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.util.StreamUtils;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.Executor;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+import static org.springframework.test.web.servlet.setup.MockMvcBuilders.standaloneSetup;
+
 public class PhotoControllerTest {
 
-}
\ No newline at end of file
+    private static final String userId = "userId";
+    private static final String album = "album";
+    private static final String image = "image.png";
+    private static final byte[] imageBytes = "0123456789".getBytes();
+    private static final long lastModified = 1450000000000L;
+    private static final String entityTag = "\"a-1\"";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Mock
+    private PhotoService photoService;
+
+    @Mock
+    private BatchUploadService batchUploadService;
+
+    @Mock
+    private UploadSessionService uploadSessionService;
+
+    @Spy
+    private ImageResponseBuilder imageResponseBuilder = new ImageResponseBuilder();
+
+    @Spy
+    private ObjectMapper objectMapper = new ObjectMapper();
+
+    @Spy
+    private ZipArchiveWriter zipArchiveWriter = new ZipArchiveWriter();
+
+    @Spy
+    private Executor ioExecutor = new SyncTaskExecutor();
+
+    @InjectMocks
+    private PhotoController photoController;
+
+    private MockMvc mockMvc;
+    private ImageHolder imageHolder;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        mockMvc = standaloneSetup(photoController).setControllerAdvice(new ExceptionControllerAdvice()).build();
+
+        File file = temporaryFolder.newFile(image);
+        Files.write(file.toPath(), imageBytes);
+        imageHolder = new ImageHolder(MediaType.IMAGE_PNG, new FileSystemResource(file),
+                imageBytes.length, lastModified, entityTag);
+        when(photoService.downloadImage(eq(userId), eq(album), eq(image), eq((Integer) null), anyListOf(MediaType.class)))
+                .thenReturn(imageHolder);
+    }
+
+    @Test
+    public void getImageReturnsWholeImageWithValidators() throws Exception {
+        performAsync(get("/{userId}/image", userId).param("album", album).param("image", image))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag", entityTag))
+                .andExpect(header().string("Accept-Ranges", "bytes"))
+                .andExpect(header().string("Vary", "Accept"))
+                .andExpect(header().longValue("Content-Length", imageBytes.length))
+                .andExpect(content().bytes(imageBytes));
+    }
+
+    @Test
+    public void getImageReturnsNotModifiedForMatchingEntityTag() throws Exception {
+        performAsync(get("/{userId}/image", userId).param("album", album).param("image", image)
+                .header("If-None-Match", entityTag))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string("ETag", entityTag));
+    }
+
+    @Test
+    public void getImageReturnsNotModifiedWhenNotModifiedSince() throws Exception {
+        performAsync(get("/{userId}/image", userId).param("album", album).param("image", image)
+                .header("If-Modified-Since", "Sun, 13 Dec 2015 09:46:40 GMT"))
+                .andExpect(status().isNotModified());
+    }
+
+    @Test
+    public void getImageReturnsSingleRange() throws Exception {
+        performAsync(get("/{userId}/image", userId).param("album", album).param("image", image)
+                .header("Range", "bytes=2-5"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string("Content-Range", "bytes 2-5/10"))
+                .andExpect(content().bytes("2345".getBytes()));
+    }
+
+    @Test
+    public void getImageReturnsMultipleRanges() throws Exception {
+        byte[] body = performAsync(get("/{userId}/image", userId).param("album", album).param("image", image)
+                .header("Range", "bytes=0-1,-2"))
+                .andExpect(status().isPartialContent())
+                .andReturn().getResponse().getContentAsByteArray();
+
+        String multipart = new String(body);
+        assertThat(multipart).contains("Content-Range: bytes 0-1/10\r\n\r\n01\r\n");
+        assertThat(multipart).contains("Content-Range: bytes 8-9/10\r\n\r\n89\r\n");
+    }
+
+    @Test
+    public void getImageIgnoresRangeForStaleIfRange() throws Exception {
+        performAsync(get("/{userId}/image", userId).param("album", album).param("image", image)
+                .header("Range", "bytes=2-5").header("If-Range", "\"stale\""))
+                .andExpect(status().isOk())
+                .andExpect(content().bytes(imageBytes));
+    }
+
+    @Test
+    public void getImageServesSatisfiableRangesOnly() throws Exception {
+        performAsync(get("/{userId}/image", userId).param("album", album).param("image", image)
+                .header("Range", "bytes=20-30,2-5"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string("Content-Range", "bytes 2-5/10"))
+                .andExpect(content().bytes("2345".getBytes()));
+    }
+
+    @Test
+    public void getImageRejectsUnsatisfiableRange() throws Exception {
+        performAsync(get("/{userId}/image", userId).param("album", album).param("image", image)
+                .header("Range", "bytes=20-"))
+                .andExpect(status().isRequestedRangeNotSatisfiable())
+                .andExpect(header().string("Content-Range", "bytes */10"));
+    }
+
+    @Test
+    public void getImagePassesRequestedSize() throws Exception {
+        when(photoService.downloadImage(eq(userId), eq(album), eq(image), eq(128), anyListOf(MediaType.class)))
+                .thenReturn(imageHolder);
+
+        performAsync(get("/{userId}/image", userId).param("album", album).param("image", image)
+                .param("size", "128"))
+                .andExpect(status().isOk());
+
+        verify(photoService).downloadImage(eq(userId), eq(album), eq(image), eq(128), anyListOf(MediaType.class));
+    }
+
+    @Test
+    public void getAlbumsImageListReturnsNamesWithoutPagingParameters() throws Exception {
+        when(photoService.getUserPhotos(userId, album)).thenReturn(asList("a.png", "b.png"));
+
+        MvcResult result = mockMvc.perform(get("/{userId}/{album}", userId, album))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        result.getAsyncResult();
+
+        assertThat(result.getResponse().getContentAsString()).isEqualTo("[\"a.png\",\"b.png\"]");
+
+        verify(photoService, never()).getUserPhotos(eq(userId), eq(album), any(PhotoQuery.class));
+    }
+
+    @Test
+    public void getAlbumsImageListReturnsPageWithNextCursor() throws Exception {
+        ImageMetadata first = new ImageMetadata("a.png", 1, "image/png", 1, 1, 1, 1);
+        ImageMetadata second = new ImageMetadata("b.png", 2, "image/png", 1, 1, 2, 2);
+        PhotoQuery query = new PhotoQuery(PhotoSort.SIZE, true, null, null, 1);
+        when(photoService.getUserPhotos(userId, album, query)).thenReturn(Stream.of(first, second));
+
+        MvcResult result = mockMvc.perform(get("/{userId}/{album}", userId, album)
+                .param("limit", "1").param("sort", "size").param("desc", "true"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        result.getAsyncResult();
+
+        JsonNode page = objectMapper.readTree(result.getResponse().getContentAsString());
+        assertThat(page.get("photos")).hasSize(1);
+        assertThat(page.get("photos").get(0).get("name").asText()).isEqualTo("a.png");
+        assertThat(page.get("next").asText()).isEqualTo(PhotoSort.SIZE.toCursor(first));
+    }
+
+    @Test
+    public void getImageReturnsServiceUnavailableWhenExecutorIsSaturated() throws Exception {
+        doThrow(new TaskRejectedException("saturated")).when(ioExecutor).execute(any(Runnable.class));
+
+        mockMvc.perform(get("/{userId}/image", userId).param("album", album).param("image", image))
+                .andExpect(status().isServiceUnavailable());
+    }
+
+    @Test
+    public void getImageMapsFailedLookupToBadRequest() throws Exception {
+        when(photoService.downloadImage(eq(userId), eq(album), eq("missing.png"), eq((Integer) null), anyListOf(MediaType.class)))
+                .thenThrow(new IllegalArgumentException("Image: missing.png wasn't found"));
+
+        performAsync(get("/{userId}/image", userId).param("album", album).param("image", "missing.png"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void getAlbumArchiveStreamsSelectedImagesAsZip() throws Exception {
+        when(photoService.getArchiveImages(userId, album, asList(image, "gone.png")))
+                .thenReturn(asList(image, "gone.png"));
+        when(photoService.downloadImage(userId, album, image)).thenReturn(imageHolder);
+        when(photoService.downloadImage(userId, album, "gone.png")).thenThrow(new IllegalArgumentException());
+
+        MvcResult result = mockMvc.perform(get("/{userId}/{album}/archive", userId, album)
+                .param("image", image, "gone.png"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        result.getAsyncResult();
+
+        assertThat(result.getResponse().getHeader("Content-Disposition")).isEqualTo("attachment; filename=\"album.zip\"");
+        try (ZipInputStream zip = new ZipInputStream(
+                new ByteArrayInputStream(result.getResponse().getContentAsByteArray()))) {
+            ZipEntry entry = zip.getNextEntry();
+            assertThat(entry.getName()).isEqualTo(image);
+            assertThat(entry.getMethod()).isEqualTo(ZipEntry.STORED);
+            assertThat(StreamUtils.copyToByteArray(zip)).isEqualTo(imageBytes);
+            assertThat(zip.getNextEntry()).isNull();
+        }
+    }
+
+    private ResultActions performAsync(RequestBuilder requestBuilder) throws Exception {
+        MvcResult started = mockMvc.perform(requestBuilder).andExpect(request().asyncStarted()).andReturn();
+        ResultActions dispatched = mockMvc.perform(asyncDispatch(started));
+        MvcResult result = dispatched.andReturn();
+        if (result.getRequest().isAsyncStarted()) {
+            result.getAsyncResult();
+        }
+        return dispatched;
+    }
+}